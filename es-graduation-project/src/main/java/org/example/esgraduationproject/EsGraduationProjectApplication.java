@@ -5,12 +5,14 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 import java.util.List;
 
 import static java.util.Arrays.asList;
 
 @SpringBootApplication
+@EnableScheduling
 public class EsGraduationProjectApplication implements CommandLineRunner {
 	private static final String RECREATE_INDEX_ARG = "recreateIndex";
 
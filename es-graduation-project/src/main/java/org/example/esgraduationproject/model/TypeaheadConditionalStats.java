@@ -0,0 +1,15 @@
+package org.example.esgraduationproject.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class TypeaheadConditionalStats {
+    private long taggedCount;
+    private long notModifiedCount;
+    private double notModifiedRate;
+    // Uncompressed JSON bytes, before server.compression
+    private long bytesSent;
+    private long bytesSaved;
+}
@@ -0,0 +1,27 @@
+package org.example.esgraduationproject.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class TypeaheadIndexingStats {
+    private String indexName;
+    private boolean running;
+    private long elapsedMs;
+    private long docsRead;
+    private long bytesRead;
+    private double docsReadPerSecond;
+    private double bytesReadPerSecond;
+    // Action or source lines that are not valid JSON, left out of the bulk
+    private long parseErrors;
+    private long docsIndexed;
+    private double docsIndexedPerSecond;
+    private long bulkLatencyMs;
+    private long esTookMs;
+    private long rejections;
+    private long failures;
+    // Bytes read out of the bulk data file size, -1 when the size is unknown
+    private double progress;
+    private long etaSeconds;
+}
@@ -7,6 +7,8 @@ public class TypeaheadServiceRequest {
     private Integer size;
     private String textQuery;
     private boolean considerItemCountInSorting;
+    // Latency budget in ms, the configured one is used when absent
+    private Long timeoutMs;
 
     public boolean isGetAllRequest() {
         return textQuery == null;
@@ -11,6 +11,8 @@ import java.util.Map;
 @JsonInclude(JsonInclude.Include.NON_EMPTY)
 public class TypeaheadServiceResponse {
     private Long totalHits;
+    // True when the latency budget ran out and ES returned what it had collected so far
+    private Boolean partial;
     private List<Map<String, Object>> typeaheads;
     private Map<String, Map<String, Map<String, Number>>> facets = new HashMap<>();
 }
@@ -0,0 +1,71 @@
+package org.example.esgraduationproject.repository;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.example.esgraduationproject.model.TypeaheadServiceRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Slow query log of typeahead searches. Entries go to the {@code slowlog.typeahead} logger,
+ * which is written to a separate rolling file by an async appender (see logback-spring.xml).
+ */
+@Component
+public class SlowQueryLog {
+
+    private static final Logger slowLog = LoggerFactory.getLogger("slowlog.typeahead");
+
+    @Value("${com.griddynamics.es.graduation.project.slowlog.warnThresholdMs:500}")
+    private long warnThresholdMs;
+    @Value("${com.griddynamics.es.graduation.project.slowlog.infoThresholdMs:100}")
+    private long infoThresholdMs;
+    // Share of the faster queries that are logged as well, 0.0 - 1.0
+    @Value("${com.griddynamics.es.graduation.project.slowlog.sampleRate:0.0}")
+    private double sampleRate;
+
+    public void log(TypeaheadServiceRequest request, SearchSourceBuilder source, SearchResponse response, long wallNanos) {
+        long wallMillis = TimeUnit.NANOSECONDS.toMillis(wallNanos);
+        if (wallMillis >= warnThresholdMs) {
+            if (slowLog.isWarnEnabled()) {
+                slowLog.warn(format("slow", request, source, response, wallMillis));
+            }
+        } else if (wallMillis >= infoThresholdMs) {
+            if (slowLog.isInfoEnabled()) {
+                slowLog.info(format("slow", request, source, response, wallMillis));
+            }
+        } else if (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate) {
+            if (slowLog.isInfoEnabled()) {
+                slowLog.info(format("sampled", request, source, response, wallMillis));
+            }
+        }
+    }
+
+    /**
+     * Failed searches are logged whatever their duration, with the exception that ended them.
+     */
+    public void logFailure(TypeaheadServiceRequest request, SearchSourceBuilder source, Exception failure, long wallNanos) {
+        if (slowLog.isWarnEnabled()) {
+            slowLog.warn(format("failed", request, source, null, TimeUnit.NANOSECONDS.toMillis(wallNanos)) + " error=" + failure);
+        }
+    }
+
+    private static String format(String reason, TypeaheadServiceRequest request, SearchSourceBuilder source,
+                                 SearchResponse response, long wallMillis) {
+        return String.format("%s wall=%dms took=%dms hits=%d textQuery=\"%s\" size=%s considerItemCountInSorting=%s source=%s",
+                reason,
+                wallMillis,
+                response == null ? -1 : response.getTook().millis(),
+                response == null || response.getHits().getTotalHits() == null ? -1 : response.getHits().getTotalHits().value,
+                request.getTextQuery(),
+                request.getSize(),
+                request.isConsiderItemCountInSorting(),
+                // Compact JSON, one line per entry
+                Strings.toString(source));
+    }
+}
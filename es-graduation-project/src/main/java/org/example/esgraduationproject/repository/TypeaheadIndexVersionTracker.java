@@ -0,0 +1,59 @@
+package org.example.esgraduationproject.repository;
+
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.client.GetAliasesResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Keeps track of the timestamped index the typeahead alias currently points to,
+ * so responses can be validated without asking ES on every request.
+ */
+@Component
+@Slf4j
+public class TypeaheadIndexVersionTracker {
+
+    @Autowired
+    private RestHighLevelClient esClient;
+
+    @Value("${com.griddynamics.es.graduation.project.index}")
+    private String aliasName;
+
+    private volatile String currentIndex;
+
+    public String getCurrentIndex() {
+        return currentIndex;
+    }
+
+    @Scheduled(fixedDelayString = "${com.griddynamics.es.graduation.project.indexVersionCheckIntervalMs:30000}")
+    public void refresh() {
+        try {
+            GetAliasesResponse aliasesResponse = esClient.indices()
+                .getAlias(new GetAliasesRequest().aliases(aliasName), RequestOptions.DEFAULT);
+            String index = aliasesResponse.getAliases().keySet().stream()
+                .sorted()
+                .reduce((first, second) -> second)
+                .orElse(null);
+            update(index);
+        } catch (IOException | ElasticsearchException ex) {
+            log.warn("Can not resolve the index behind alias {}: {}", aliasName, ex.getMessage());
+        }
+    }
+
+    public synchronized void update(String index) {
+        if (Objects.equals(index, currentIndex)) {
+            return;
+        }
+        log.info("Alias {} has moved from {} to {}", aliasName, currentIndex, index);
+        currentIndex = index;
+    }
+}
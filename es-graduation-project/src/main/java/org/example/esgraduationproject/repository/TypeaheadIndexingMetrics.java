@@ -0,0 +1,121 @@
+package org.example.esgraduationproject.repository;
+
+import lombok.extern.slf4j.Slf4j;
+import org.example.esgraduationproject.model.TypeaheadIndexingStats;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counters of the last {@code recreateIndex}: the bulk data file is read line by line into a single bulk request,
+ * so there is one bulk latency per run rather than a distribution.
+ * Logged every indexingMetrics.logIntervalMs while the file is loaded and served by the metrics endpoint.
+ */
+@Component
+@Slf4j
+public class TypeaheadIndexingMetrics {
+
+    private volatile Run run;
+
+    public void startRun(String indexName, long totalBytes) {
+        run = new Run(indexName, totalBytes);
+    }
+
+    public void finishRun() {
+        Run current = run;
+        if (current != null && current.finishNanos == 0) {
+            current.finishNanos = System.nanoTime();
+            log.info("Indexing of {} is over: {}", current.indexName, format(getStats()));
+        }
+    }
+
+    public void recordRead(long bytes) {
+        Run current = run;
+        if (current != null) {
+            current.docsRead++;
+            current.bytesRead += bytes;
+        }
+    }
+
+    public void recordParseError() {
+        Run current = run;
+        if (current != null) {
+            current.parseErrors++;
+        }
+    }
+
+    public void recordBulk(long latencyNanos, long esTookMillis, int docsIndexed, int rejections, int failures) {
+        Run current = run;
+        if (current != null) {
+            current.bulkLatencyMs = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+            current.esTookMs = esTookMillis;
+            current.docsIndexed += docsIndexed;
+            current.rejections += rejections;
+            current.failures += failures;
+        }
+    }
+
+    public TypeaheadIndexingStats getStats() {
+        Run current = run;
+        if (current == null) {
+            return new TypeaheadIndexingStats(null, false, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, -1, -1);
+        }
+        long endNanos = current.finishNanos == 0 ? System.nanoTime() : current.finishNanos;
+        double seconds = Math.max(1, TimeUnit.NANOSECONDS.toMillis(endNanos - current.startNanos)) / 1000.0;
+        double bytesReadPerSecond = current.bytesRead / seconds;
+        double progress = -1;
+        long etaSeconds = -1;
+        if (current.totalBytes > 0) {
+            progress = Math.min(1.0, (double) current.bytesRead / current.totalBytes);
+            if (current.finishNanos != 0) {
+                etaSeconds = 0;
+            } else if (bytesReadPerSecond > 0) {
+                etaSeconds = (long) (Math.max(0, current.totalBytes - current.bytesRead) / bytesReadPerSecond);
+            }
+        }
+        return new TypeaheadIndexingStats(current.indexName, current.finishNanos == 0, (long) (seconds * 1000),
+            current.docsRead, current.bytesRead, current.docsRead / seconds, bytesReadPerSecond, current.parseErrors,
+            current.docsIndexed, current.docsIndexed / seconds, current.bulkLatencyMs, current.esTookMs,
+            current.rejections, current.failures, progress, etaSeconds);
+    }
+
+    @Scheduled(fixedDelayString = "${com.griddynamics.es.graduation.project.indexingMetrics.logIntervalMs:10000}")
+    public void logProgress() {
+        Run current = run;
+        if (current != null && current.finishNanos == 0) {
+            log.info("Indexing {}: {}", current.indexName, format(getStats()));
+        }
+    }
+
+    private static String format(TypeaheadIndexingStats stats) {
+        return String.format("%d docs read (%.0f docs/s, %.2f MB/s), %d parse errors, %d indexed (%.0f docs/s), "
+                + "bulk %d ms, ES took %d ms, %d rejections, %d failures, %.0f%% done, ETA %d s",
+            stats.getDocsRead(), stats.getDocsReadPerSecond(), stats.getBytesReadPerSecond() / (1024 * 1024),
+            stats.getParseErrors(), stats.getDocsIndexed(), stats.getDocsIndexedPerSecond(),
+            stats.getBulkLatencyMs(), stats.getEsTookMs(), stats.getRejections(), stats.getFailures(),
+            Math.max(0, stats.getProgress()) * 100, stats.getEtaSeconds());
+    }
+
+    // Written by the single thread running recreateIndex, volatile for the log and the endpoint
+    private static class Run {
+        private final String indexName;
+        private final long totalBytes;
+        private final long startNanos = System.nanoTime();
+        private volatile long finishNanos;
+
+        private volatile long docsRead;
+        private volatile long bytesRead;
+        private volatile long parseErrors;
+        private volatile long docsIndexed;
+        private volatile long bulkLatencyMs;
+        private volatile long esTookMs;
+        private volatile long rejections;
+        private volatile long failures;
+
+        private Run(String indexName, long totalBytes) {
+            this.indexName = indexName;
+            this.totalBytes = totalBytes;
+        }
+    }
+}
@@ -16,6 +16,7 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import org.elasticsearch.action.DocWriteRequest;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.index.IndexRequest;
@@ -27,11 +28,13 @@ import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.client.indices.CreateIndexRequest;
 import org.elasticsearch.client.indices.CreateIndexResponse;
 import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.DisMaxQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.aggregations.AggregationBuilder;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
@@ -52,6 +55,7 @@ import org.springframework.stereotype.Component;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.SocketTimeoutException;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -72,6 +76,14 @@ public class TypeaheadRepositoryImpl implements TypeaheadRepository {
 
     @Autowired
     private RestHighLevelClient esClient;
+    @Autowired
+    private SlowQueryLog slowQueryLog;
+    @Autowired
+    private HedgedSearchExecutor hedgedSearchExecutor;
+    @Autowired
+    private TypeaheadIndexVersionTracker indexVersionTracker;
+    @Autowired
+    private TypeaheadIndexingMetrics indexingMetrics;
 
     @Value("${com.griddynamics.es.graduation.project.index}")
     private String aliasName;
@@ -88,6 +100,9 @@ public class TypeaheadRepositoryImpl implements TypeaheadRepository {
     float fuzzyTwoBoost;
     @Value("${com.griddynamics.es.graduation.project.request.prefixQueryBoost:0.9}")
     float prefixQueryBoost;
+    // Per shard cap on collected docs, 0 collects everything
+    @Value("${com.griddynamics.es.graduation.project.budget.terminateAfter:0}")
+    int terminateAfter;
 
     // Mappings, settings and bulk data files
     @Value("${com.griddynamics.es.graduation.project.files.mappings:classpath:elastic/typeaheads/mappings.json}")
@@ -110,11 +125,20 @@ public class TypeaheadRepositoryImpl implements TypeaheadRepository {
     }
 
     private TypeaheadServiceResponse getTypeaheads(QueryBuilder mainQuery, TypeaheadServiceRequest request) {
+        long startNanos = System.nanoTime();
         // Create search request
         SearchSourceBuilder ssb = new SearchSourceBuilder()
             .query(mainQuery)
             .size(request.getSize());
 
+        // Latency budget: shards return what they have when it runs out
+        if (request.getTimeoutMs() != null) {
+            ssb.timeout(TimeValue.timeValueMillis(request.getTimeoutMs()));
+        }
+        if (terminateAfter > 0) {
+            ssb.terminateAfter(terminateAfter);
+        }
+
         // Add sorting and aggregation if necessary
         if (!request.isGetAllRequest()) {
             // Sorting
@@ -134,12 +158,26 @@ public class TypeaheadRepositoryImpl implements TypeaheadRepository {
         // Search in ES
         SearchRequest searchRequest = new SearchRequest(aliasName).source(ssb);
         try {
-            SearchResponse searchResponse = esClient.search(searchRequest, RequestOptions.DEFAULT);
+            SearchResponse searchResponse = hedgedSearchExecutor.search(searchRequest);
             // Build service response
-            return getServiceResponse(searchResponse, !request.isGetAllRequest());
+            TypeaheadServiceResponse response = getServiceResponse(searchResponse, !request.isGetAllRequest());
+            if (searchResponse.isTimedOut() || Boolean.TRUE.equals(searchResponse.isTerminatedEarly())) {
+                response.setPartial(true);
+            }
+            slowQueryLog.log(request, ssb, searchResponse, System.nanoTime() - startNanos);
+            return response;
+        } catch (RuntimeException ex) {
+            slowQueryLog.logFailure(request, ssb, ex, System.nanoTime() - startNanos);
+            throw ex;
         } catch (IOException ex) {
+            slowQueryLog.logFailure(request, ssb, ex, System.nanoTime() - startNanos);
             log.error(ex.getMessage(), ex);
-            return new TypeaheadServiceResponse();
+            TypeaheadServiceResponse response = new TypeaheadServiceResponse();
+            // ES has not answered within the client socket timeout, there is nothing to return but the flag
+            if (ex instanceof SocketTimeoutException) {
+                response.setPartial(true);
+            }
+            return response;
         }
     }
 
@@ -267,7 +305,8 @@ public class TypeaheadRepositoryImpl implements TypeaheadRepository {
         updateAliasesByName(aliasName, newIndexName);
         deleteOutdatedIndex(aliasName, newIndexName);
 
-        processBulkInsertData(typeaheadsBulkInsertDataFile);
+        processBulkInsertData(typeaheadsBulkInsertDataFile, newIndexName);
+        indexVersionTracker.update(newIndexName);
     }
 
     private boolean indexExists(String indexName) {
@@ -374,26 +413,32 @@ public class TypeaheadRepositoryImpl implements TypeaheadRepository {
         }
     }
 
-    private void processBulkInsertData(Resource bulkInsertDataFile) {
+    private void processBulkInsertData(Resource bulkInsertDataFile, String newIndexName) {
         int requestCnt = 0;
+        indexingMetrics.startRun(newIndexName, contentLength(bulkInsertDataFile));
         try {
             BulkRequest bulkRequest = new BulkRequest();
             bulkRequest.setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
-            BufferedReader br = new BufferedReader(new InputStreamReader(bulkInsertDataFile.getInputStream()));
+            BufferedReader br = new BufferedReader(new InputStreamReader(bulkInsertDataFile.getInputStream(), Charsets.UTF_8));
 
             while (br.ready()) {
                 String line1 = br.readLine(); // action_and_metadata
                 if (isNotEmpty(line1) && br.ready()) {
                     requestCnt++;
                     String line2 = br.readLine();
+                    indexingMetrics.recordRead(line1.getBytes(Charsets.UTF_8).length + line2.getBytes(Charsets.UTF_8).length + 2);
                     IndexRequest indexRequest = createIndexRequestFromBulkData(line1, line2);
                     if (indexRequest != null) {
                         bulkRequest.add(indexRequest);
+                    } else {
+                        indexingMetrics.recordParseError();
                     }
                 }
             }
 
+            long bulkStartNanos = System.nanoTime();
             BulkResponse bulkResponse = esClient.bulk(bulkRequest, RequestOptions.DEFAULT);
+            recordBulk(bulkResponse, System.nanoTime() - bulkStartNanos);
             if (bulkResponse.getItems().length != requestCnt) {
                 log.warn("Only {} out of {} requests have been processed in a bulk request.", bulkResponse.getItems().length, requestCnt);
             } else {
@@ -408,6 +453,32 @@ public class TypeaheadRepositoryImpl implements TypeaheadRepository {
         } catch (IOException ex) {
             log.error("An exception occurred during bulk data processing", ex);
             throw new RuntimeException(ex);
+        } finally {
+            indexingMetrics.finishRun();
+        }
+    }
+
+    private void recordBulk(BulkResponse bulkResponse, long latencyNanos) {
+        int indexed = 0;
+        int rejections = 0;
+        int failures = 0;
+        for (BulkItemResponse item : bulkResponse.getItems()) {
+            if (!item.isFailed()) {
+                indexed++;
+            } else if (item.status() == RestStatus.TOO_MANY_REQUESTS) {
+                rejections++;
+            } else {
+                failures++;
+            }
+        }
+        indexingMetrics.recordBulk(latencyNanos, bulkResponse.getTook().millis(), indexed, rejections, failures);
+    }
+
+    private static long contentLength(Resource resource) {
+        try {
+            return resource.contentLength();
+        } catch (IOException ex) {
+            return -1;
         }
     }
 
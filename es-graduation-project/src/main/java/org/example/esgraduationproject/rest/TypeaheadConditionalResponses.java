@@ -0,0 +1,101 @@
+package org.example.esgraduationproject.rest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import org.example.esgraduationproject.model.TypeaheadConditionalStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Answers If-None-Match with 304 before the typeahead search runs. The strong ETag hashes the index
+ * version and the normalized request, so reindexing invalidates all of them; incomplete responses get none.
+ */
+@Component
+class TypeaheadConditionalResponses {
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${com.griddynamics.es.graduation.project.conditional.maxTrackedTags:10000}")
+    private int maxTrackedTags;
+
+    // Size of the last body sent per ETag, which is what a 304 for it saves
+    private Cache<String, Integer> bodySizes;
+
+    private final AtomicLong taggedCount = new AtomicLong();
+    private final AtomicLong notModifiedCount = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        bodySizes = CacheBuilder.newBuilder()
+            .maximumSize(maxTrackedTags)
+            .build();
+    }
+
+    <T> ResponseEntity<byte[]> respond(String tag, String ifNoneMatch, Supplier<T> search, Predicate<T> isComplete) {
+        String etag = tag == null ? null : "\"" + Hashing.murmur3_128().hashString(tag, Charsets.UTF_8) + "\"";
+        if (etag != null) {
+            taggedCount.incrementAndGet();
+            if (ifNoneMatch != null && matches(ifNoneMatch, etag)) {
+                notModifiedCount.incrementAndGet();
+                Integer size = bodySizes.getIfPresent(etag);
+                if (size != null) {
+                    bytesSaved.addAndGet(size);
+                }
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+            }
+        }
+
+        T response = search.get();
+        byte[] body;
+        try {
+            body = objectMapper.writeValueAsBytes(response);
+        } catch (JsonProcessingException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        bytesSent.addAndGet(body.length);
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON);
+        if (etag != null && isComplete.test(response)) {
+            bodySizes.put(etag, body.length);
+            builder.eTag(etag);
+        }
+        return builder.body(body);
+    }
+
+    TypeaheadConditionalStats getStats() {
+        long tagged = taggedCount.get();
+        long notModified = notModifiedCount.get();
+        return new TypeaheadConditionalStats(tagged, notModified,
+            tagged == 0 ? 0.0 : (double) notModified / tagged, bytesSent.get(), bytesSaved.get());
+    }
+
+    // Weak comparison, as If-None-Match requires
+    private static boolean matches(String ifNoneMatch, String etag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            if (value.startsWith("W/")) {
+                value = value.substring(2);
+            }
+            if (value.equals("*") || value.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,12 +1,20 @@
 package org.example.esgraduationproject.rest;
 
+import org.example.esgraduationproject.model.TypeaheadConditionalStats;
+import org.example.esgraduationproject.model.TypeaheadHedgingStats;
+import org.example.esgraduationproject.model.TypeaheadIndexingStats;
 import org.example.esgraduationproject.model.TypeaheadServiceRequest;
-import org.example.esgraduationproject.model.TypeaheadServiceResponse;
+import org.example.esgraduationproject.repository.HedgedSearchExecutor;
+import org.example.esgraduationproject.repository.TypeaheadIndexingMetrics;
 import org.example.esgraduationproject.service.TypeaheadService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
@@ -16,10 +24,34 @@ public class TypeaheadController {
 
     @Autowired
     private TypeaheadService typeaheadService;
+    @Autowired
+    private TypeaheadConditionalResponses conditionalResponses;
+    @Autowired
+    private TypeaheadIndexingMetrics indexingMetrics;
+    @Autowired
+    private HedgedSearchExecutor hedgedSearchExecutor;
 
     @PostMapping(consumes = MediaType.APPLICATION_JSON_VALUE,
         produces = MediaType.APPLICATION_JSON_VALUE)
-    public TypeaheadServiceResponse getSearchServiceResponse(@RequestBody TypeaheadServiceRequest request) {
-        return typeaheadService.getServiceResponse(request);
+    public ResponseEntity<byte[]> getSearchServiceResponse(@RequestBody TypeaheadServiceRequest request,
+                                                           @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        return conditionalResponses.respond(typeaheadService.getResponseTag(request), ifNoneMatch,
+            () -> typeaheadService.getServiceResponse(request),
+            response -> response.getTotalHits() != null && !Boolean.TRUE.equals(response.getPartial()));
+    }
+
+    @GetMapping(value = "/conditional/stats", produces = MediaType.APPLICATION_JSON_VALUE)
+    public TypeaheadConditionalStats getConditionalStats() {
+        return conditionalResponses.getStats();
+    }
+
+    @GetMapping(value = "/hedging/stats", produces = MediaType.APPLICATION_JSON_VALUE)
+    public TypeaheadHedgingStats getHedgingStats() {
+        return hedgedSearchExecutor.getStats();
+    }
+
+    @GetMapping(value = "/indexing/metrics", produces = MediaType.APPLICATION_JSON_VALUE)
+    public TypeaheadIndexingStats getIndexingMetrics() {
+        return indexingMetrics.getStats();
     }
 }
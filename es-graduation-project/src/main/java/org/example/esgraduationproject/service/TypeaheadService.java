@@ -6,5 +6,11 @@ import org.example.esgraduationproject.model.TypeaheadServiceResponse;
 public interface TypeaheadService {
     TypeaheadServiceResponse getServiceResponse(TypeaheadServiceRequest request);
 
+    /**
+     * Identifies the response for conditional requests: the index behind the alias plus the normalized
+     * request. Null when the index is not known yet.
+     */
+    String getResponseTag(TypeaheadServiceRequest request);
+
     void recreateIndex();
 }
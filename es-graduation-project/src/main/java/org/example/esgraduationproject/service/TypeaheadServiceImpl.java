@@ -2,6 +2,7 @@ package org.example.esgraduationproject.service;
 
 import org.example.esgraduationproject.model.TypeaheadServiceRequest;
 import org.example.esgraduationproject.model.TypeaheadServiceResponse;
+import org.example.esgraduationproject.repository.TypeaheadIndexVersionTracker;
 import org.example.esgraduationproject.repository.TypeaheadRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -16,9 +17,15 @@ public class TypeaheadServiceImpl implements TypeaheadService {
     private int defaultGetAllSize;
     @Value("${com.griddynamics.es.graduation.project.request.minQueryLength}")
     private int minQueryLength;
+    @Value("${com.griddynamics.es.graduation.project.budget.timeoutMs:200}")
+    private long defaultTimeoutMs;
+    @Value("${com.griddynamics.es.graduation.project.budget.maxTimeoutMs:1000}")
+    private long maxTimeoutMs;
 
     @Autowired
     private TypeaheadRepository typeaheadRepository;
+    @Autowired
+    private TypeaheadIndexVersionTracker indexVersionTracker;
 
     @Override
     public TypeaheadServiceResponse getServiceResponse(TypeaheadServiceRequest request) {
@@ -32,10 +39,29 @@ public class TypeaheadServiceImpl implements TypeaheadService {
         }
     }
 
+    @Override
+    public String getResponseTag(TypeaheadServiceRequest request) {
+        String indexVersion = indexVersionTracker.getCurrentIndex();
+        if (indexVersion == null) {
+            return null;
+        }
+        prepareServiceRequest(request);
+        String textQuery = request.isGetAllRequest()
+            ? ""
+            : request.getTextQuery().trim().toLowerCase().replaceAll("\\s+", " ");
+        return String.join("|", indexVersion, textQuery, String.valueOf(request.getSize()),
+            String.valueOf(request.isConsiderItemCountInSorting()));
+    }
+
     private void prepareServiceRequest(TypeaheadServiceRequest request) {
         if (request.getSize() == null || request.getSize() <= 0) {
             request.setSize(request.isGetAllRequest() ? defaultGetAllSize : defaultFindByQuerySize);
         }
+        if (request.getTimeoutMs() == null || request.getTimeoutMs() <= 0) {
+            request.setTimeoutMs(defaultTimeoutMs);
+        } else {
+            request.setTimeoutMs(Math.min(request.getTimeoutMs(), maxTimeoutMs));
+        }
     }
 
     @Override
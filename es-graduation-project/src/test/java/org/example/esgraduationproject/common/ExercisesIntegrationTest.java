@@ -169,4 +169,36 @@ public class ExercisesIntegrationTest extends BaseTest {
         ;
     }
 
+    @Test
+    public void testRepeatedRequestWithETagIsNotModified() {
+        String etag = client
+            .typeaheadRequest()
+            .body("{\"size\": 3, \"textQuery\": \"sho\"}")
+            .post()
+            .then()
+            .statusCode(200)
+            .header("ETag", notNullValue())
+            .extract().header("ETag");
+
+        client
+            .typeaheadRequest()
+            .header("If-None-Match", etag)
+            .body("{\"size\": 3, \"textQuery\": \"sho\"}")
+            .post()
+            .then()
+            .statusCode(304);
+    }
+
+    @Test
+    public void testIndexingMetricsCoverTheLastRecreate() {
+        client
+            .typeaheadRequest()
+            .get("/indexing/metrics")
+            .then()
+            .statusCode(200)
+            .body("running", is(false))
+            .body("docsIndexed", greaterThan(0))
+            .body("failures", is(0));
+    }
+
 }
@@ -5,12 +5,14 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 import java.util.List;
 
 import static java.util.Arrays.asList;
 
 @SpringBootApplication
+@EnableScheduling
 public class ProductIndexerApplication implements CommandLineRunner {
 
     private static final String RECREATE_INDEX_ARG = "recreateIndex";
@@ -27,7 +29,7 @@ public class ProductIndexerApplication implements CommandLineRunner {
         List<String> args = asList(strings);
         boolean needRecreateIndex = args.contains(RECREATE_INDEX_ARG);
         if (true) {
-            productService.recreateIndex();
+            productService.updateIndex();
         }
     }
 }
@@ -22,10 +22,17 @@ public class ElasticsearchConfig {
     private String esHost;
     private String user;
     private String pass;
+    // Force merges of a large index take minutes, so the indexer waits much longer than the search services
+    private int connectTimeoutMs = 1000;
+    private int socketTimeoutMs = 600000;
 
     @Bean(name = "esClient")
     public RestHighLevelClient getEsClient() {
-        RestClientBuilder restClientBuilder = RestClient.builder(HttpHost.create(esHost));
+        RestClientBuilder restClientBuilder = RestClient.builder(HttpHost.create(esHost))
+                .setMaxRetryTimeoutMillis(socketTimeoutMs)
+                .setRequestConfigCallback(requestConfigBuilder -> requestConfigBuilder
+                        .setConnectTimeout(connectTimeoutMs)
+                        .setSocketTimeout(socketTimeoutMs));
 
         // Use credentials if they exist (ES cluster should support authentication)
         if (isNotBlank(user) && isNotBlank(pass)) {
@@ -0,0 +1,47 @@
+package org.example.productindexer.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class IndexingStats {
+    private String indexName;
+    private boolean running;
+    private long elapsedMs;
+
+    // Feed side: a low rate with little slot wait means parsing is the bottleneck
+    private long docsRead;
+    private long bytesRead;
+    private double docsReadPerSecond;
+    private double bytesReadPerSecond;
+    private long parseErrors;
+
+    // ES side: bulk latency far above ES took is the network, slot wait growing with both is ES
+    private long docsIndexed;
+    private long bytesSent;
+    private double docsIndexedPerSecond;
+    private double bytesSentPerSecond;
+    private long bulkCount;
+    private double bulkLatencyAvgMs;
+    private double esTookAvgMs;
+    private long bulkLatencyP50Ms;
+    private long bulkLatencyP95Ms;
+    private long bulkLatencyP99Ms;
+    // Bulk count per latency bucket, keyed by the upper bound in ms
+    private Map<String, Long> bulkLatencyHistogram;
+    private long slotWaitMs;
+    private long retries;
+    private long rejections;
+    private long failures;
+
+    // From the bytes read out of the total feed size, -1 when the size is unknown
+    private double progress;
+    private long etaSeconds;
+}
@@ -0,0 +1,22 @@
+package org.example.productindexer.rest;
+
+import org.example.productindexer.model.IndexingStats;
+import org.example.productindexer.service.IndexingMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping(value = "/v1/indexer")
+public class IndexerController {
+
+    @Autowired
+    private IndexingMetrics indexingMetrics;
+
+    @GetMapping(value = "/metrics", produces = MediaType.APPLICATION_JSON_VALUE)
+    public IndexingStats getMetrics() {
+        return indexingMetrics.getStats();
+    }
+}
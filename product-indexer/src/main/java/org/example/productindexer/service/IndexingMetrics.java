@@ -0,0 +1,222 @@
+package org.example.productindexer.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.example.productindexer.model.IndexingStats;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the current, or last, indexing run: what the feed readers parse, what the bulk indexer
+ * sends and how ES answers. They are logged every metrics.logIntervalMs while a run is going on
+ * and served by the metrics endpoint.
+ */
+@Component
+@Slf4j
+public class IndexingMetrics {
+
+    // Upper bounds of the bulk latency buckets in ms, the last bucket has none
+    private static final long[] LATENCY_BUCKETS_MS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    private volatile Run run;
+
+    public void startRun(String indexName, long totalBytes) {
+        run = new Run(indexName, totalBytes);
+    }
+
+    public void finishRun() {
+        Run current = run;
+        if (current != null && current.finishNanos == 0) {
+            current.finishNanos = System.nanoTime();
+            log.info("Indexing of {} is over: {}", current.indexName, format(getStats()));
+        }
+    }
+
+    public void recordRead(long bytes) {
+        Run current = run;
+        if (current != null) {
+            current.docsRead.increment();
+            current.bytesRead.add(bytes);
+        }
+    }
+
+    public void recordParseError() {
+        Run current = run;
+        if (current != null) {
+            current.parseErrors.increment();
+        }
+    }
+
+    /**
+     * @param waitNanos time a reader was blocked until a bulk slot was free
+     */
+    public void recordSlotWait(long waitNanos) {
+        Run current = run;
+        if (current != null) {
+            current.slotWaitNanos.add(waitNanos);
+        }
+    }
+
+    public void recordBulk(long latencyNanos, long esTookMillis, long bytes, int docsIndexed) {
+        Run current = run;
+        if (current == null) {
+            return;
+        }
+        long latencyMs = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+        current.bulkCount.increment();
+        current.bulkLatencyNanos.add(latencyNanos);
+        current.esTookMillis.add(esTookMillis);
+        current.bytesSent.add(bytes);
+        current.docsIndexed.add(docsIndexed);
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS_MS.length && latencyMs > LATENCY_BUCKETS_MS[bucket]) {
+            bucket++;
+        }
+        current.latencyHistogram.incrementAndGet(bucket);
+    }
+
+    public void recordRejections(int count) {
+        Run current = run;
+        if (current != null) {
+            current.rejections.add(count);
+        }
+    }
+
+    public void recordRetries(int count) {
+        Run current = run;
+        if (current != null) {
+            current.retries.add(count);
+        }
+    }
+
+    public void recordFailures(int count) {
+        Run current = run;
+        if (current != null) {
+            current.failures.add(count);
+        }
+    }
+
+    public IndexingStats getStats() {
+        Run current = run;
+        if (current == null) {
+            return IndexingStats.builder().progress(-1).etaSeconds(-1).build();
+        }
+        long endNanos = current.finishNanos == 0 ? System.nanoTime() : current.finishNanos;
+        double seconds = Math.max(1, TimeUnit.NANOSECONDS.toMillis(endNanos - current.startNanos)) / 1000.0;
+        long bulkCount = current.bulkCount.sum();
+        long bytesRead = current.bytesRead.sum();
+        double bytesReadPerSecond = bytesRead / seconds;
+
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        long[] counts = new long[LATENCY_BUCKETS_MS.length + 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = current.latencyHistogram.get(i);
+            histogram.put(i < LATENCY_BUCKETS_MS.length ? String.valueOf(LATENCY_BUCKETS_MS[i]) : "+Inf", counts[i]);
+        }
+
+        double progress = -1;
+        long etaSeconds = -1;
+        if (current.totalBytes > 0) {
+            progress = Math.min(1.0, (double) bytesRead / current.totalBytes);
+            if (current.finishNanos != 0) {
+                etaSeconds = 0;
+            } else if (bytesReadPerSecond > 0) {
+                etaSeconds = (long) (Math.max(0, current.totalBytes - bytesRead) / bytesReadPerSecond);
+            }
+        }
+
+        return IndexingStats.builder()
+                .indexName(current.indexName)
+                .running(current.finishNanos == 0)
+                .elapsedMs((long) (seconds * 1000))
+                .docsRead(current.docsRead.sum())
+                .bytesRead(bytesRead)
+                .docsReadPerSecond(current.docsRead.sum() / seconds)
+                .bytesReadPerSecond(bytesReadPerSecond)
+                .parseErrors(current.parseErrors.sum())
+                .docsIndexed(current.docsIndexed.sum())
+                .bytesSent(current.bytesSent.sum())
+                .docsIndexedPerSecond(current.docsIndexed.sum() / seconds)
+                .bytesSentPerSecond(current.bytesSent.sum() / seconds)
+                .bulkCount(bulkCount)
+                .bulkLatencyAvgMs(bulkCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(current.bulkLatencyNanos.sum()) / (double) bulkCount)
+                .esTookAvgMs(bulkCount == 0 ? 0 : current.esTookMillis.sum() / (double) bulkCount)
+                .bulkLatencyP50Ms(percentile(counts, bulkCount, 50))
+                .bulkLatencyP95Ms(percentile(counts, bulkCount, 95))
+                .bulkLatencyP99Ms(percentile(counts, bulkCount, 99))
+                .bulkLatencyHistogram(histogram)
+                .slotWaitMs(TimeUnit.NANOSECONDS.toMillis(current.slotWaitNanos.sum()))
+                .retries(current.retries.sum())
+                .rejections(current.rejections.sum())
+                .failures(current.failures.sum())
+                .progress(progress)
+                .etaSeconds(etaSeconds)
+                .build();
+    }
+
+    @Scheduled(fixedDelayString = "${product.indexer.metrics.logIntervalMs:10000}")
+    public void logProgress() {
+        Run current = run;
+        if (current != null && current.finishNanos == 0) {
+            log.info("Indexing {}: {}", current.indexName, format(getStats()));
+        }
+    }
+
+    // Upper bound of the bucket the percentile falls in, -1 above the last bound
+    private static long percentile(long[] counts, long total, int percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100.0 * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return i < LATENCY_BUCKETS_MS.length ? LATENCY_BUCKETS_MS[i] : -1;
+            }
+        }
+        return -1;
+    }
+
+    private static String format(IndexingStats stats) {
+        return String.format("%d docs read (%.0f docs/s, %.2f MB/s), %d indexed (%.0f docs/s, %.2f MB/s), "
+                        + "bulk avg %.0f ms p95 <= %d ms, ES took avg %.0f ms, slot wait %d ms, "
+                        + "%d retries, %d rejections, %d failures, %d parse errors, %.0f%% done, ETA %d s",
+                stats.getDocsRead(), stats.getDocsReadPerSecond(), stats.getBytesReadPerSecond() / (1024 * 1024),
+                stats.getDocsIndexed(), stats.getDocsIndexedPerSecond(), stats.getBytesSentPerSecond() / (1024 * 1024),
+                stats.getBulkLatencyAvgMs(), stats.getBulkLatencyP95Ms(), stats.getEsTookAvgMs(), stats.getSlotWaitMs(),
+                stats.getRetries(), stats.getRejections(), stats.getFailures(), stats.getParseErrors(),
+                Math.max(0, stats.getProgress()) * 100, stats.getEtaSeconds());
+    }
+
+    private static class Run {
+        private final String indexName;
+        private final long totalBytes;
+        private final long startNanos = System.nanoTime();
+        private volatile long finishNanos;
+
+        private final LongAdder docsRead = new LongAdder();
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder parseErrors = new LongAdder();
+        private final LongAdder docsIndexed = new LongAdder();
+        private final LongAdder bytesSent = new LongAdder();
+        private final LongAdder bulkCount = new LongAdder();
+        private final LongAdder bulkLatencyNanos = new LongAdder();
+        private final LongAdder esTookMillis = new LongAdder();
+        private final LongAdder slotWaitNanos = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder rejections = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final AtomicLongArray latencyHistogram = new AtomicLongArray(LATENCY_BUCKETS_MS.length + 1);
+
+        private Run(String indexName, long totalBytes) {
+            this.indexName = indexName;
+            this.totalBytes = totalBytes;
+        }
+    }
+}
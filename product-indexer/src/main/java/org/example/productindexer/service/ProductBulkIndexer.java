@@ -0,0 +1,314 @@
+package org.example.productindexer.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.Builder;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends index and delete requests to ES in bulk batches of at most batchSize actions or maxBatchBytes, with up to
+ * maxInFlight batches in flight. {@link #add} blocks while all of them are busy, so a slow cluster slows
+ * the feed reader down instead of filling the heap. Several readers may add concurrently.
+ * <p>
+ * Only items rejected with 429 are retried, in a new batch after an exponential backoff; a batch keeps its
+ * slot until its retries are over. Anything else that fails, or is still rejected after maxRetries, is written
+ * to the dead-letter file as {@code {"id", "status", "reason", "source"}} lines for a later replay.
+ * <p>
+ * Bulk latency, slot waits, rejections, retries and failures are reported to {@link IndexingMetrics}.
+ * A request may come with a callback, run once it is indexed or dead-lettered.
+ */
+@Slf4j
+public class ProductBulkIndexer implements Closeable {
+
+    private final RestHighLevelClient esClient;
+    private final ObjectMapper objectMapper;
+    private final Settings settings;
+    private final Path deadLetterFile;
+    private final Semaphore inFlight;
+    private final ScheduledExecutorService retryScheduler;
+    private final IndexingMetrics metrics;
+
+    private final AtomicLong indexedCount = new AtomicLong();
+    private final AtomicLong retriedCount = new AtomicLong();
+    private final AtomicLong deadLetterCount = new AtomicLong();
+    private final Set<String> deadLetterIds = ConcurrentHashMap.newKeySet();
+    // Keyed by identity, retries send the same request objects again
+    private final Map<DocWriteRequest<?>, Runnable> callbacks = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    // Guards bulkRequest only, callers never wait for a bulk slot while holding it
+    private final Object batchLock = new Object();
+    private BulkRequest bulkRequest = new BulkRequest();
+    private BufferedWriter deadLetterWriter;
+
+    public ProductBulkIndexer(RestHighLevelClient esClient, ObjectMapper objectMapper, Settings settings, Path deadLetterFile,
+                              IndexingMetrics metrics) {
+        this.esClient = esClient;
+        this.metrics = metrics;
+        this.objectMapper = objectMapper;
+        this.settings = settings;
+        this.deadLetterFile = deadLetterFile;
+        this.inFlight = new Semaphore(settings.getMaxInFlight());
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "product-bulk-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void add(DocWriteRequest<?> request) throws IOException {
+        add(request, null);
+    }
+
+    /**
+     * @param onDone run on a client thread once the request is indexed or written to the dead-letter file
+     */
+    public void add(DocWriteRequest<?> request, Runnable onDone) throws IOException {
+        if (onDone != null) {
+            callbacks.put(request, onDone);
+        }
+        BulkRequest fullRequest = null;
+        synchronized (batchLock) {
+            bulkRequest.add(request);
+            if (bulkRequest.numberOfActions() >= settings.getBatchSize() || bulkRequest.estimatedSizeInBytes() >= settings.getMaxBatchBytes()) {
+                fullRequest = bulkRequest;
+                bulkRequest = new BulkRequest();
+            }
+        }
+        if (fullRequest != null) {
+            send(fullRequest);
+        }
+    }
+
+    /**
+     * Sends the pending batch and waits until every batch, retries included, is over.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            if (!inFlight.tryAcquire(settings.getMaxInFlight(), settings.getCloseTimeoutMs(), TimeUnit.MILLISECONDS)) {
+                throw new IOException("Bulk requests are still in flight after " + settings.getCloseTimeoutMs() + " ms");
+            }
+            inFlight.release(settings.getMaxInFlight());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bulk requests");
+        } finally {
+            retryScheduler.shutdownNow();
+            synchronized (this) {
+                if (deadLetterWriter != null) {
+                    deadLetterWriter.close();
+                }
+            }
+        }
+    }
+
+    public long getIndexedCount() {
+        return indexedCount.get();
+    }
+
+    public long getRetriedCount() {
+        return retriedCount.get();
+    }
+
+    public long getDeadLetterCount() {
+        return deadLetterCount.get();
+    }
+
+    public Set<String> getDeadLetterIds() {
+        return deadLetterIds;
+    }
+
+    private void flush() throws IOException {
+        BulkRequest request;
+        synchronized (batchLock) {
+            if (bulkRequest.numberOfActions() == 0) {
+                return;
+            }
+            request = bulkRequest;
+            bulkRequest = new BulkRequest();
+        }
+        send(request);
+    }
+
+    private void send(BulkRequest request) throws IOException {
+        long waitStartNanos = System.nanoTime();
+        try {
+            inFlight.acquire();
+            metrics.recordSlotWait(System.nanoTime() - waitStartNanos);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a free bulk slot");
+        }
+        send(request, 0);
+    }
+
+    // The slot taken in send(BulkRequest) is released once the batch is fully indexed or dead-lettered
+    private void send(BulkRequest request, int attempt) {
+        long startNanos = System.nanoTime();
+        esClient.bulkAsync(request, RequestOptions.DEFAULT, new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(BulkResponse response) {
+                BulkRequest rejected = new BulkRequest();
+                int indexed = 0;
+                int rejections = 0;
+                // Whatever happens to the items, the slot goes on to the retry or back to the pool
+                try {
+                    for (BulkItemResponse item : response.getItems()) {
+                        DocWriteRequest<?> itemRequest = request.requests().get(item.getItemId());
+                        if (!item.isFailed()) {
+                            indexed++;
+                            done(itemRequest);
+                            continue;
+                        }
+                        if (item.status() == RestStatus.TOO_MANY_REQUESTS) {
+                            rejections++;
+                        }
+                        if (item.status() == RestStatus.TOO_MANY_REQUESTS && attempt < settings.getMaxRetries()) {
+                            rejected.add(itemRequest);
+                        } else {
+                            writeDeadLetter(itemRequest, item.status().getStatus(), item.getFailureMessage());
+                        }
+                    }
+                    indexedCount.addAndGet(indexed);
+                    metrics.recordBulk(System.nanoTime() - startNanos, response.getTook().millis(),
+                            request.estimatedSizeInBytes(), indexed);
+                    metrics.recordRejections(rejections);
+                } finally {
+                    retryOrRelease(rejected, attempt);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception ex) {
+                boolean retried = false;
+                try {
+                    metrics.recordBulk(System.nanoTime() - startNanos, 0, request.estimatedSizeInBytes(), 0);
+                    if (isRejected(ex)) {
+                        metrics.recordRejections(request.numberOfActions());
+                    }
+                    if (isRejected(ex) && attempt < settings.getMaxRetries()) {
+                        retried = true;
+                        retryOrRelease(request, attempt);
+                        return;
+                    }
+                    log.warn("Bulk request of {} items has failed: {}", request.numberOfActions(), ex.getMessage());
+                    int status = ex instanceof ElasticsearchException ? ((ElasticsearchException) ex).status().getStatus() : 0;
+                    request.requests().forEach(itemRequest -> writeDeadLetter(itemRequest, status, ex.getMessage()));
+                } finally {
+                    if (!retried) {
+                        inFlight.release();
+                    }
+                }
+            }
+        });
+    }
+
+    private void retryOrRelease(BulkRequest rejected, int attempt) {
+        if (rejected.numberOfActions() == 0) {
+            inFlight.release();
+            return;
+        }
+        retriedCount.addAndGet(rejected.numberOfActions());
+        metrics.recordRetries(rejected.numberOfActions());
+        long delayMs = Math.min(settings.getMaxBackoffMs(), settings.getInitialBackoffMs() << attempt);
+        log.debug("Retrying {} rejected items in {} ms, attempt {}", rejected.numberOfActions(), delayMs, attempt + 1);
+        retryScheduler.schedule(() -> send(rejected, attempt + 1), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    // A failing callback is logged, it must not keep the other items of the batch from being done
+    private void done(DocWriteRequest<?> request) {
+        Runnable onDone = callbacks.remove(request);
+        if (onDone == null) {
+            return;
+        }
+        try {
+            onDone.run();
+        } catch (RuntimeException ex) {
+            log.error("Callback of product {} has failed", request.id(), ex);
+        }
+    }
+
+    private static boolean isRejected(Exception ex) {
+        if (ex instanceof ElasticsearchException) {
+            return ((ElasticsearchException) ex).status() == RestStatus.TOO_MANY_REQUESTS;
+        }
+        return ex instanceof ResponseException
+                && ((ResponseException) ex).getResponse().getStatusLine().getStatusCode() == RestStatus.TOO_MANY_REQUESTS.getStatus();
+    }
+
+    // Called from client threads, the file is created with the first failure
+    private synchronized void writeDeadLetter(DocWriteRequest<?> request, int status, String reason) {
+        deadLetterCount.incrementAndGet();
+        deadLetterIds.add(request.id());
+        metrics.recordFailures(1);
+        try {
+            if (deadLetterWriter == null) {
+                Files.createDirectories(deadLetterFile.getParent());
+                deadLetterWriter = Files.newBufferedWriter(deadLetterFile, StandardCharsets.UTF_8);
+                log.warn("Writing failed products to {}", deadLetterFile);
+            }
+            ObjectNode line = objectMapper.createObjectNode()
+                    .put("id", request.id())
+                    .put("status", status)
+                    .put("reason", reason);
+            if (request instanceof IndexRequest) {
+                line.set("source", objectMapper.readTree(((IndexRequest) request).source().utf8ToString()));
+            }
+            deadLetterWriter.write(objectMapper.writeValueAsString(line));
+            deadLetterWriter.newLine();
+        } catch (IOException ex) {
+            log.error("Can not write product {} to the dead-letter file {}", request.id(), deadLetterFile, ex);
+        }
+        done(request);
+    }
+
+    @Value
+    @Builder
+    public static class Settings {
+        @Builder.Default
+        int batchSize = 500;
+        @Builder.Default
+        long maxBatchBytes = 5 * 1024 * 1024;
+        @Builder.Default
+        int maxInFlight = 2;
+        @Builder.Default
+        int maxRetries = 5;
+        @Builder.Default
+        long initialBackoffMs = 100;
+        @Builder.Default
+        long maxBackoffMs = 5000;
+        @Builder.Default
+        long closeTimeoutMs = 600000;
+    }
+}
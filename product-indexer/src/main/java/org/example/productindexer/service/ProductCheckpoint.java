@@ -0,0 +1,173 @@
+package org.example.productindexer.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Progress of a full index build, so a build that dies halfway resumes into the same index instead of starting over.
+ * For each feed file it keeps the byte offset up to which every product has been acknowledged by ES,
+ * indexed or dead-lettered. Products after that offset may be sent twice on resume, which only overwrites them.
+ * <p>
+ * Layout: {@code [int magic][utf indexName][int count]} followed by {@code [utf file][long length][long offset][boolean done]}
+ * entries. The file is written under a temporary name and renamed, like the manifest.
+ */
+public class ProductCheckpoint {
+
+    static final String FILE_SUFFIX = ".checkpoint";
+    private static final int MAGIC = 0x50444331;
+
+    private final String indexName;
+    private final Map<String, FileProgress> files;
+
+    private ProductCheckpoint(String indexName, Map<String, FileProgress> files) {
+        this.indexName = indexName;
+        this.files = files;
+    }
+
+    /**
+     * @param fileLengths feed files in reading order with their sizes, a checkpoint only resumes the same feed
+     */
+    public static ProductCheckpoint start(String indexName, Map<String, Long> fileLengths) {
+        Map<String, FileProgress> files = new LinkedHashMap<>();
+        fileLengths.forEach((file, length) -> files.put(file, new FileProgress(length, 0, false)));
+        return new ProductCheckpoint(indexName, files);
+    }
+
+    public static Path checkpointFile(Path directory, String aliasName) {
+        return directory.resolve(aliasName + FILE_SUFFIX);
+    }
+
+    /**
+     * @return the checkpoint, or null when there is none
+     */
+    public static ProductCheckpoint load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a product checkpoint: " + file);
+            }
+            String indexName = in.readUTF();
+            int count = in.readInt();
+            Map<String, FileProgress> files = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                files.put(in.readUTF(), new FileProgress(in.readLong(), in.readLong(), in.readBoolean()));
+            }
+            return new ProductCheckpoint(indexName, files);
+        }
+    }
+
+    /**
+     * Writes the acknowledged progress, safe to call while products are being read and indexed.
+     */
+    public synchronized void write(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(indexName);
+            out.writeInt(files.size());
+            for (Map.Entry<String, FileProgress> entry : files.entrySet()) {
+                FileProgress progress = entry.getValue();
+                // Read before the pending offsets: a product is pending before the read offset moves past it
+                boolean readDone = progress.readDone;
+                long readOffset = progress.readOffset;
+                Long firstPending = progress.pending.ceiling(Long.MIN_VALUE);
+                out.writeUTF(entry.getKey());
+                out.writeLong(progress.length);
+                out.writeLong(firstPending != null ? Math.min(firstPending, readOffset) : readOffset);
+                out.writeBoolean(readDone && firstPending == null);
+            }
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public boolean matches(Map<String, Long> fileLengths) {
+        if (!fileLengths.keySet().equals(files.keySet())) {
+            return false;
+        }
+        return files.entrySet().stream()
+                .allMatch(entry -> entry.getValue().length == fileLengths.get(entry.getKey()));
+    }
+
+    public String getIndexName() {
+        return indexName;
+    }
+
+    /**
+     * @return progress of a feed file, null when the file is not part of this checkpoint
+     */
+    public FileProgress getFile(String file) {
+        return files.get(file);
+    }
+
+    /**
+     * @return bytes of the feed already acknowledged when the checkpoint was loaded
+     */
+    public long getCompletedBytes() {
+        return files.values().stream()
+                .mapToLong(progress -> progress.readDone ? progress.length : progress.readOffset)
+                .sum();
+    }
+
+    /**
+     * Reading position of one feed file. The reader calls {@link #begin} before a product is sent and
+     * {@link #advance} after, the bulk indexer calls {@link #ack} once the product is indexed or dead-lettered.
+     */
+    public static class FileProgress {
+        private final long length;
+        private final NavigableSet<Long> pending = new ConcurrentSkipListSet<>();
+        private volatile long readOffset;
+        private volatile boolean readDone;
+
+        private FileProgress(long length, long offset, boolean done) {
+            this.length = length;
+            this.readOffset = offset;
+            this.readDone = done;
+        }
+
+        /**
+         * @return whether every product of the file is acknowledged
+         */
+        public boolean isDone() {
+            return readDone && pending.isEmpty();
+        }
+
+        /**
+         * @return offset the reader resumes from, the start of the first product not acknowledged yet
+         */
+        public long getResumeOffset() {
+            return readOffset;
+        }
+
+        /**
+         * @param startOffset offset the product starts after, the end of the previous one
+         */
+        public void begin(long startOffset) {
+            pending.add(startOffset);
+        }
+
+        public void advance(long endOffset) {
+            readOffset = endOffset;
+        }
+
+        public void ack(long startOffset) {
+            pending.remove(startOffset);
+        }
+
+        public void finishReading() {
+            readDone = true;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.example.productindexer.service;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes the local product document store for one timestamped index, so the search service can
+ * ask ES for ids only and read the documents from a memory-mapped file.
+ * <p>
+ * Layout: documents as {@code [int length][json bytes]}, then the id index as
+ * {@code [short length][utf-8 id][long offset]} entries, then a footer {@code [int count][long indexOffset][int magic]}.
+ * The file is written under a temporary name and renamed to {@code <indexName>.docs} on commit.
+ */
+public class ProductDocStoreWriter implements Closeable {
+
+    static final String FILE_SUFFIX = ".docs";
+    private static final int MAGIC = 0x50445331;
+
+    private final Path tempFile;
+    private final Path targetFile;
+    private final DataOutputStream out;
+    private final Map<String, Long> offsets = new LinkedHashMap<>();
+    private long position;
+    private boolean committed;
+
+    public ProductDocStoreWriter(Path directory, String indexName) throws IOException {
+        Files.createDirectories(directory);
+        this.targetFile = directory.resolve(indexName + FILE_SUFFIX);
+        this.tempFile = directory.resolve(indexName + FILE_SUFFIX + ".tmp");
+        this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile), 1 << 16));
+    }
+
+    public static Path storeFile(Path directory, String indexName) {
+        return directory.resolve(indexName + FILE_SUFFIX);
+    }
+
+    public void add(String id, byte[] source) throws IOException {
+        if (offsets.containsKey(id)) {
+            throw new IllegalArgumentException("Duplicate product id in the doc store: " + id);
+        }
+        offsets.put(id, position);
+        out.writeInt(source.length);
+        out.write(source);
+        position += Integer.BYTES + source.length;
+    }
+
+    public void commit() throws IOException {
+        long indexOffset = position;
+        for (Map.Entry<String, Long> entry : offsets.entrySet()) {
+            byte[] id = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            out.writeShort(id.length);
+            out.write(id);
+            out.writeLong(entry.getValue());
+        }
+        out.writeInt(offsets.size());
+        out.writeLong(indexOffset);
+        out.writeInt(MAGIC);
+        out.close();
+
+        // The reader maps the whole file into a single buffer
+        if (Files.size(tempFile) > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Product doc store exceeds 2GB: " + tempFile);
+        }
+        Files.move(tempFile, targetFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!committed) {
+            out.close();
+            Files.deleteIfExists(tempFile);
+        }
+    }
+}
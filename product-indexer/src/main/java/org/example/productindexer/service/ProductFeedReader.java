@@ -0,0 +1,136 @@
+package org.example.productindexer.service;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.util.Map;
+
+/**
+ * Reads a product feed, a JSON array of product objects, one product at a time with the streaming parser,
+ * so only the product being read is held in memory whatever the size of the feed.
+ * <p>
+ * A reader can start at the byte offset where a product ends, see {@link #getByteOffset()}, to resume a feed:
+ * the rest of the array is read as if it were the whole feed.
+ * <p>
+ * Elements of the array that are not objects are passed to the {@link SkipHandler} and read over. Malformed
+ * JSON can not be read over, the parser has lost its place in the array, so it fails the reader.
+ */
+public class ProductFeedReader implements Closeable {
+
+    private static final TypeReference<Map<String, Object>> PRODUCT_TYPE = new TypeReference<Map<String, Object>>() {
+    };
+
+    private final ObjectMapper objectMapper;
+    private final JsonParser parser;
+    private final SkipHandler skipHandler;
+    // Offset in the feed of the first byte the parser sees, less the '[' put in front on resume
+    private final long offsetShift;
+    private long count;
+
+    public ProductFeedReader(ObjectMapper objectMapper, InputStream in) throws IOException {
+        this(objectMapper, in, 0);
+    }
+
+    public ProductFeedReader(ObjectMapper objectMapper, InputStream in, long startOffset) throws IOException {
+        this(objectMapper, in, startOffset, null);
+    }
+
+    /**
+     * @param startOffset 0, or the offset right after an element of the array
+     * @param skipHandler called with the elements that are not products, null to fail on the first one
+     */
+    public ProductFeedReader(ObjectMapper objectMapper, InputStream in, long startOffset, SkipHandler skipHandler) throws IOException {
+        this.objectMapper = objectMapper;
+        this.skipHandler = skipHandler;
+        if (startOffset == 0) {
+            this.offsetShift = 0;
+            this.parser = objectMapper.getFactory().createParser(in);
+        } else {
+            skipFully(in, startOffset);
+            PushbackInputStream rest = new PushbackInputStream(in);
+            long skipped = 0;
+            int next;
+            do {
+                next = rest.read();
+                skipped++;
+            } while (next == ' ' || next == '\t' || next == '\r' || next == '\n');
+            if (next != ',' && next >= 0) {
+                rest.unread(next);
+                skipped--;
+            }
+            this.offsetShift = startOffset + skipped - 1;
+            this.parser = objectMapper.getFactory().createParser(
+                    new SequenceInputStream(new ByteArrayInputStream(new byte[]{'['}), rest));
+        }
+        if (parser.nextToken() != JsonToken.START_ARRAY) {
+            throw new IOException("Product feed must be a JSON array, found " + parser.currentToken()
+                    + " at " + parser.getCurrentLocation());
+        }
+    }
+
+    /**
+     * @return the next product, or null once the array is over
+     */
+    public Map<String, Object> next() throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.START_OBJECT) {
+            if (token == JsonToken.END_ARRAY || token == null) {
+                return null;
+            }
+            String reason = "Product feed element at byte " + (parser.getTokenLocation().getByteOffset() + offsetShift)
+                    + " is not an object: " + token;
+            if (skipHandler == null) {
+                throw new JsonParseException(parser, reason);
+            }
+            skipHandler.skipped(objectMapper.readTree(parser), reason);
+        }
+        count++;
+        return objectMapper.readValue(parser, PRODUCT_TYPE);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return bytes of the feed consumed so far
+     */
+    public long getByteOffset() {
+        return parser.getCurrentLocation().getByteOffset() + offsetShift;
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+
+    @FunctionalInterface
+    public interface SkipHandler {
+        void skipped(JsonNode element, String reason) throws IOException;
+    }
+
+    private static void skipFully(InputStream in, long bytes) throws IOException {
+        long remaining = bytes;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Product feed ends before the resume offset " + bytes);
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+}
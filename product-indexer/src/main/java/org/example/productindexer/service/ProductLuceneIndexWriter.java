@@ -0,0 +1,204 @@
+package org.example.productindexer.service;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.custom.CustomAnalyzer;
+import org.apache.lucene.analysis.core.LowerCaseFilterFactory;
+import org.apache.lucene.analysis.miscellaneous.ASCIIFoldingFilterFactory;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.shingle.ShingleFilterFactory;
+import org.apache.lucene.analysis.standard.StandardTokenizerFactory;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FloatDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.similarities.BooleanSimilarity;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Builds the embedded Lucene index of one timestamped index, served by the lucene engine of the search service.
+ * <p>
+ * Analysis follows settings.json: name and brand use standard + lowercase + asciifolding, their shingles
+ * sub-fields add 2 to 4 word shingles without unigrams. Every product is written as a block of its SKU
+ * documents followed by the product document, the same layout ES uses for nested SKUs. Facet values are
+ * kept in doc values of the product, SKU colors and sizes lowercased like the ES normalizer does.
+ * The index is built in a temporary directory and renamed to {@code <indexName>} on commit.
+ */
+public class ProductLuceneIndexWriter implements Closeable {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String TYPE_FIELD = "type";
+    private static final String PRODUCT_TYPE = "product";
+    private static final String SKU_TYPE = "sku";
+    private static final String ID_FIELD = "id";
+    private static final String NAME_FIELD = "name";
+    private static final String NAME_SHINGLE = "name.shingles";
+    private static final String BRAND_FIELD = "brand";
+    private static final String BRAND_SHINGLE = "brand.shingles";
+    private static final String BRAND_KEYWORD_FIELD = "brand.keyword";
+    private static final String PRICE_FIELD = "price";
+    private static final String SKU_COLOR = "skus.color";
+    private static final String SKU_SIZE = "skus.size";
+    private static final String SKU_COLORS_FIELD = "sku_colors";
+    private static final String SKU_SIZES_FIELD = "sku_sizes";
+    private static final String SOURCE_FIELD = "_source";
+
+    private final Path tempDirectory;
+    private final Path targetDirectory;
+    private final FSDirectory directory;
+    private final IndexWriter writer;
+    private boolean committed;
+
+    public ProductLuceneIndexWriter(Path directory, String indexName) throws IOException {
+        this.targetDirectory = indexDirectory(directory, indexName);
+        this.tempDirectory = directory.resolve(indexName + TEMP_SUFFIX);
+        deleteRecursively(tempDirectory);
+        Files.createDirectories(tempDirectory);
+
+        this.directory = FSDirectory.open(tempDirectory);
+        IndexWriterConfig config = new IndexWriterConfig(createAnalyzer())
+                .setOpenMode(IndexWriterConfig.OpenMode.CREATE)
+                .setSimilarity(new BooleanSimilarity());
+        this.writer = new IndexWriter(this.directory, config);
+    }
+
+    public static Path indexDirectory(Path directory, String indexName) {
+        return directory.resolve(indexName);
+    }
+
+    /**
+     * @param source the product JSON as the API returns it, stored for hits
+     */
+    @SuppressWarnings("unchecked")
+    public void add(Map<String, Object> product, byte[] source) throws IOException {
+        List<Document> block = new ArrayList<>();
+        Set<String> colors = new LinkedHashSet<>();
+        Set<String> sizes = new LinkedHashSet<>();
+
+        Object skus = product.get("skus");
+        if (skus instanceof List) {
+            for (Object sku : (List<Object>) skus) {
+                if (!(sku instanceof Map)) {
+                    continue;
+                }
+                Document skuDocument = new Document();
+                skuDocument.add(new StringField(TYPE_FIELD, SKU_TYPE, Field.Store.NO));
+                Object color = ((Map<String, Object>) sku).get("color");
+                Object size = ((Map<String, Object>) sku).get("size");
+                if (color != null) {
+                    String value = color.toString().toLowerCase(Locale.ROOT);
+                    skuDocument.add(new StringField(SKU_COLOR, value, Field.Store.NO));
+                    colors.add(value);
+                }
+                if (size != null) {
+                    String value = size.toString().toLowerCase(Locale.ROOT);
+                    skuDocument.add(new StringField(SKU_SIZE, value, Field.Store.NO));
+                    sizes.add(value);
+                }
+                block.add(skuDocument);
+            }
+        }
+
+        String id = product.get("id").toString();
+        Document productDocument = new Document();
+        productDocument.add(new StringField(TYPE_FIELD, PRODUCT_TYPE, Field.Store.NO));
+        productDocument.add(new StringField(ID_FIELD, id, Field.Store.NO));
+        productDocument.add(new SortedDocValuesField(ID_FIELD, new BytesRef(id)));
+
+        Object name = product.get("name");
+        if (name != null) {
+            productDocument.add(new TextField(NAME_FIELD, name.toString(), Field.Store.NO));
+            productDocument.add(new TextField(NAME_SHINGLE, name.toString(), Field.Store.NO));
+        }
+        Object brand = product.get("brand");
+        if (brand != null) {
+            productDocument.add(new TextField(BRAND_FIELD, brand.toString(), Field.Store.NO));
+            productDocument.add(new TextField(BRAND_SHINGLE, brand.toString(), Field.Store.NO));
+            productDocument.add(new SortedDocValuesField(BRAND_KEYWORD_FIELD, new BytesRef(brand.toString())));
+        }
+        Object price = product.get("price");
+        if (price instanceof Number) {
+            productDocument.add(new FloatDocValuesField(PRICE_FIELD, ((Number) price).floatValue()));
+        }
+        colors.forEach(color -> productDocument.add(new SortedSetDocValuesField(SKU_COLORS_FIELD, new BytesRef(color))));
+        sizes.forEach(size -> productDocument.add(new SortedSetDocValuesField(SKU_SIZES_FIELD, new BytesRef(size))));
+        productDocument.add(new StoredField(SOURCE_FIELD, source));
+
+        // The product closes its block, so block joins find it as the parent of the SKUs before it
+        block.add(productDocument);
+        writer.addDocuments(block);
+    }
+
+    public void commit() throws IOException {
+        // The index is never updated, so a single segment is the cheapest one to search
+        writer.forceMerge(1);
+        writer.close();
+        directory.close();
+        Files.move(tempDirectory, targetDirectory, StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!committed) {
+            writer.rollback();
+            directory.close();
+            deleteRecursively(tempDirectory);
+        }
+    }
+
+    public static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path file : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static Analyzer createAnalyzer() throws IOException {
+        Analyzer textAnalyzer = CustomAnalyzer.builder()
+                .withTokenizer(StandardTokenizerFactory.class)
+                .addTokenFilter(LowerCaseFilterFactory.class)
+                .addTokenFilter(ASCIIFoldingFilterFactory.class)
+                .build();
+        Analyzer shingleAnalyzer = CustomAnalyzer.builder()
+                .withTokenizer(StandardTokenizerFactory.class)
+                .addTokenFilter(LowerCaseFilterFactory.class)
+                .addTokenFilter(ASCIIFoldingFilterFactory.class)
+                .addTokenFilter(ShingleFilterFactory.class,
+                        "minShingleSize", "2",
+                        "maxShingleSize", "4",
+                        "outputUnigrams", "false")
+                .build();
+
+        Map<String, Analyzer> fieldAnalyzers = new HashMap<>();
+        fieldAnalyzers.put(NAME_SHINGLE, shingleAnalyzer);
+        fieldAnalyzers.put(BRAND_SHINGLE, shingleAnalyzer);
+        return new PerFieldAnalyzerWrapper(textAnalyzer, fieldAnalyzers);
+    }
+}
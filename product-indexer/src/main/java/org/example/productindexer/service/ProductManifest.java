@@ -0,0 +1,89 @@
+package org.example.productindexer.service;
+
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Content hashes of the products in one index, what a delta run compares the feed against.
+ * <p>
+ * Layout: {@code [int magic][utf indexName][int count]} followed by {@code [utf id][long hash]} entries.
+ * The file is written under a temporary name and renamed on commit, like the doc store.
+ */
+public class ProductManifest {
+
+    static final String FILE_SUFFIX = ".manifest";
+    private static final int MAGIC = 0x50444d31;
+
+    private final String indexName;
+    private final Map<String, Long> hashes;
+
+    public ProductManifest(String indexName, Map<String, Long> hashes) {
+        this.indexName = indexName;
+        this.hashes = hashes;
+    }
+
+    public static Path manifestFile(Path directory, String aliasName) {
+        return directory.resolve(aliasName + FILE_SUFFIX);
+    }
+
+    /**
+     * @param source the product serialized with sorted keys, so a reordered feed does not look changed
+     */
+    public static long hash(byte[] source) {
+        return Hashing.murmur3_128().hashBytes(source).asLong();
+    }
+
+    /**
+     * @return the manifest, or null when there is none yet
+     */
+    public static ProductManifest load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a product manifest: " + file);
+            }
+            String indexName = in.readUTF();
+            int count = in.readInt();
+            Map<String, Long> hashes = new HashMap<>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++) {
+                hashes.put(in.readUTF(), in.readLong());
+            }
+            return new ProductManifest(indexName, hashes);
+        }
+    }
+
+    public void write(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(indexName);
+            out.writeInt(hashes.size());
+            for (Map.Entry<String, Long> entry : hashes.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public String getIndexName() {
+        return indexName;
+    }
+
+    public Map<String, Long> getHashes() {
+        return hashes;
+    }
+}
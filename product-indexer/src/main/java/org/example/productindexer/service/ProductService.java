@@ -1,21 +1,25 @@
 package org.example.productindexer.service;
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Charsets;
 import com.google.common.io.Resources;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.elasticsearch.action.DocWriteRequest;
-import org.elasticsearch.action.admin.indices.alias.Alias;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
 import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
 import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
-import org.elasticsearch.action.bulk.BulkRequest;
-import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.index.IndexRequest;
-import org.elasticsearch.action.support.WriteRequest;
 import org.elasticsearch.action.support.master.AcknowledgedResponse;
 import org.elasticsearch.client.GetAliasesResponse;
 import org.elasticsearch.client.RequestOptions;
@@ -23,18 +27,44 @@ import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.client.indices.CreateIndexRequest;
 import org.elasticsearch.client.indices.CreateIndexResponse;
 import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.client.indices.PutMappingRequest;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
 import org.springframework.stereotype.Service;
+import org.springframework.util.ResourceUtils;
 
+import javax.annotation.PostConstruct;
+import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 @Service
@@ -43,8 +73,12 @@ import java.util.stream.Collectors;
 public class ProductService {
 
     private static final ObjectMapper objectMapper = new ObjectMapper();
+    // Map keys sorted, so the content hash does not depend on the field order of the feed
+    private static final ObjectWriter canonicalWriter = objectMapper.writer()
+            .with(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS);
 
     private final RestHighLevelClient esClient;
+    private final IndexingMetrics metrics;
 
     @Value("${product.indexer.files.mappings:classpath:elastic/product/mappings.json}")
     private Resource productsMappingsFile;
@@ -52,24 +86,292 @@ public class ProductService {
     private Resource productsSettingsFile;
     @Value("${product.indexer.files.bulkData:classpath:elastic/product/task_8_data.json}")
     private Resource productsBulkInsertDataFile;
+    // A directory or a glob of feed files, bulkData is read when empty
+    @Value("${product.indexer.files.input:}")
+    private String inputFiles;
+    @Value("${product.indexer.ingest.parallelism:0}")
+    private int ingestParallelism;
     @Value("${product.indexer.index}")
     private String aliasName;
+    @Value("${product.indexer.docStore.enabled:false}")
+    private boolean docStoreEnabled;
+    @Value("${product.indexer.docStore.dir:data/docstore}")
+    private String docStoreDir;
+    @Value("${product.indexer.lucene.enabled:false}")
+    private boolean luceneEnabled;
+    @Value("${product.indexer.lucene.dir:data/lucene}")
+    private String luceneDir;
+    @Value("${product.indexer.bulk.batchSize:500}")
+    private int bulkBatchSize;
+    @Value("${product.indexer.bulk.maxBatchBytes:5242880}")
+    private long bulkMaxBatchBytes;
+    @Value("${product.indexer.bulk.maxInFlight:2}")
+    private int bulkMaxInFlight;
+    @Value("${product.indexer.bulk.maxRetries:5}")
+    private int bulkMaxRetries;
+    @Value("${product.indexer.bulk.initialBackoffMs:100}")
+    private long bulkInitialBackoffMs;
+    @Value("${product.indexer.bulk.maxBackoffMs:5000}")
+    private long bulkMaxBackoffMs;
+    @Value("${product.indexer.bulk.deadLetterDir:data/deadletter}")
+    private String deadLetterDir;
+    @Value("${product.indexer.load.forceMerge.enabled:true}")
+    private boolean forceMergeEnabled;
+    @Value("${product.indexer.load.forceMerge.maxNumSegments:1}")
+    private int forceMergeMaxNumSegments;
+    @Value("${product.indexer.load.healthTimeout:5m}")
+    private String healthTimeout;
+    @Value("${product.indexer.delta.enabled:false}")
+    private boolean deltaEnabled;
+    @Value("${product.indexer.delta.maxChangeRatio:0.2}")
+    private double deltaMaxChangeRatio;
+    @Value("${product.indexer.delta.manifestDir:data/manifest}")
+    private String manifestDir;
+    @Value("${product.indexer.checkpoint.enabled:false}")
+    private boolean checkpointEnabled;
+    @Value("${product.indexer.checkpoint.dir:data/checkpoint}")
+    private String checkpointDir;
+    @Value("${product.indexer.checkpoint.intervalMs:30000}")
+    private long checkpointIntervalMs;
 
     private static final int MAX_INDICES_NUMBER = 3;
+    private static final String REFRESH_INTERVAL_SETTING = "index.refresh_interval";
+    private static final String NUMBER_OF_REPLICAS_SETTING = "index.number_of_replicas";
+    private static final String DELTA_VERSION_META = "deltaVersion";
+
+    // Doc store and Lucene index are immutable snapshots of one index, only a new index refreshes them
+    @PostConstruct
+    public void validateConfiguration() {
+        if (deltaEnabled && (docStoreEnabled || luceneEnabled)) {
+            throw new IllegalStateException("product.indexer.delta.enabled can not be combined with "
+                    + "product.indexer.docStore.enabled or product.indexer.lucene.enabled");
+        }
+        // Both are written in one go at the end of the build, a resumed build would leave them incomplete
+        if (checkpointEnabled && (docStoreEnabled || luceneEnabled)) {
+            throw new IllegalStateException("product.indexer.checkpoint.enabled can not be combined with "
+                    + "product.indexer.docStore.enabled or product.indexer.lucene.enabled");
+        }
+    }
 
+    /**
+     * Applies the feed as a delta when delta mode is on and possible, otherwise rebuilds the index.
+     */
+    public void updateIndex() {
+        if (!deltaEnabled || !applyDelta()) {
+            recreateIndex();
+        }
+    }
+
+    /**
+     * Builds a new index from the feed and moves the alias to it once complete. With checkpoints on, a build
+     * that died halfway is resumed into its unfinished index, from the last acknowledged product of each file.
+     */
     public void recreateIndex() {
         String settings = getStrFromResource(productsSettingsFile);
         String mappings = getStrFromResource(productsMappingsFile);
+        Settings indexSettings = Settings.builder()
+                .loadFromSource(settings, XContentType.JSON)
+                .normalizePrefix(IndexMetaData.INDEX_SETTING_PREFIX)
+                .build();
+
+        List<Resource> inputs = resolveInputFiles();
+        ProductCheckpoint checkpoint = checkpointEnabled ? loadCheckpoint(inputs) : null;
+        boolean resumed = checkpoint != null;
+        String newIndexName;
+        if (resumed) {
+            newIndexName = checkpoint.getIndexName();
+            log.info("Resuming the build of index {}, {} bytes of the feed are already indexed.",
+                    newIndexName, checkpoint.getCompletedBytes());
+        } else {
+            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("_yyyyMMddHHmmss");
+            String timestamp = LocalDateTime.now().format(formatter);
+            newIndexName = aliasName + timestamp;
+            createIndex(newIndexName, indexSettings, mappings);
+            if (checkpointEnabled) {
+                checkpoint = ProductCheckpoint.start(newIndexName, fileLengths(inputs));
+            }
+        }
 
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("_yyyyMMddHHmmss");
-        String timestamp = LocalDateTime.now().format(formatter);
-        String newIndexName = aliasName + timestamp;
+        Map<String, Long> hashes = processBulkInsertData(inputs, newIndexName, checkpoint);
+        finishLoad(newIndexName, indexSettings);
 
-        createIndex(newIndexName, settings, mappings);
+        // Readers only see the new index once it is complete and tuned for search
         updateAliasesByName(aliasName, newIndexName);
         deleteOutdatedIndex(aliasName, newIndexName);
+        if (resumed) {
+            // Products indexed before the restart have not been hashed, the next delta run rebuilds the index
+            log.info("No manifest is written for the resumed index {}.", newIndexName);
+        } else {
+            writeManifest(new ProductManifest(newIndexName, hashes));
+        }
+        if (checkpoint != null) {
+            deleteCheckpoint();
+        }
+    }
+
+    /**
+     * Compares the feed with the manifest of the live index and sends only new, changed and deleted products
+     * to it. The feed is read twice, first to hash it and decide, then to send the changes, so memory stays
+     * bounded by the ids and hashes.
+     *
+     * @return false when the index has to be rebuilt instead: no manifest of the live index,
+     * or more than maxChangeRatio of the catalog has changed
+     */
+    private boolean applyDelta() {
+        Path manifestFile = ProductManifest.manifestFile(Paths.get(manifestDir), aliasName);
+        try {
+            ProductManifest manifest = ProductManifest.load(manifestFile);
+            String liveIndex = getAliasIndex();
+            if (manifest == null || liveIndex == null || !liveIndex.equals(manifest.getIndexName())) {
+                log.info("No manifest of the live index {} in {}, rebuilding the index.", liveIndex, manifestFile);
+                return false;
+            }
+
+            List<Resource> inputs = resolveInputFiles();
+            // Both passes over the feed count towards the progress
+            metrics.startRun(liveIndex, 2 * totalBytes(inputs));
+            try {
+                return applyDelta(manifest, liveIndex, inputs);
+            } finally {
+                metrics.finishRun();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to apply the product delta", ex);
+        }
+    }
+
+    private boolean applyDelta(ProductManifest manifest, String liveIndex, List<Resource> inputs) throws IOException {
+        Map<String, Long> hashes = new ConcurrentHashMap<>(manifest.getHashes().size() * 4 / 3 + 1);
+        Set<String> changedIds = ConcurrentHashMap.newKeySet();
+        forEachProduct(inputs, null, skippedFile(liveIndex + "_delta"), (product, onIndexed) -> {
+            String id = product.get("id").toString();
+            long hash = ProductManifest.hash(canonicalWriter.writeValueAsBytes(product));
+            hashes.put(id, hash);
+            if (!Long.valueOf(hash).equals(manifest.getHashes().get(id))) {
+                changedIds.add(id);
+            }
+        });
+        Set<String> deletedIds = manifest.getHashes().keySet().stream()
+                .filter(id -> !hashes.containsKey(id))
+                .collect(Collectors.toSet());
+
+        int changes = changedIds.size() + deletedIds.size();
+        double changeRatio = (double) changes / Math.max(1, manifest.getHashes().size());
+        if (changeRatio > deltaMaxChangeRatio) {
+            log.info("{} of {} products have changed, over the {} delta threshold, rebuilding the index.",
+                    changes, manifest.getHashes().size(), deltaMaxChangeRatio);
+            return false;
+        }
+        if (changes == 0) {
+            log.info("No product has changed since the last run, index {} is up to date.", liveIndex);
+            return true;
+        }
+
+        ProductBulkIndexer bulkIndexer = createBulkIndexer(liveIndex + "_delta");
+        try (bulkIndexer) {
+            // Skipped elements have been reported by the first pass
+            forEachProduct(inputs, null, null, (product, onIndexed) -> {
+                String id = product.get("id").toString();
+                if (changedIds.contains(id)) {
+                    ProductSkuAttributes.addDenormalized(product);
+                    bulkIndexer.add(new IndexRequest(liveIndex).id(id).source(product));
+                }
+            });
+            for (String id : deletedIds) {
+                bulkIndexer.add(new DeleteRequest(liveIndex, id));
+            }
+        }
+        esClient.indices().refresh(new RefreshRequest(liveIndex), RequestOptions.DEFAULT);
+        markDeltaVersion(liveIndex);
+
+        // Failed products keep their old hash, or none, so the next run sends them again
+        for (String id : bulkIndexer.getDeadLetterIds()) {
+            Long oldHash = manifest.getHashes().get(id);
+            if (oldHash != null) {
+                hashes.put(id, oldHash);
+            } else {
+                hashes.remove(id);
+            }
+        }
+        writeManifest(new ProductManifest(liveIndex, hashes));
+        log.info("Delta of {} changed and {} deleted products has been applied to {}, {} failed.",
+                changedIds.size(), deletedIds.size(), liveIndex, bulkIndexer.getDeadLetterCount());
+        return true;
+    }
+
+    // The search service keys its caches on the index version, this tells it that the index has changed in place
+    private void markDeltaVersion(String indexName) throws IOException {
+        Map<String, Object> meta = Collections.singletonMap(DELTA_VERSION_META, String.valueOf(System.currentTimeMillis()));
+        AcknowledgedResponse response = esClient.indices().putMapping(new PutMappingRequest(indexName)
+                .source(Collections.singletonMap("_meta", meta)), RequestOptions.DEFAULT);
+        if (!response.isAcknowledged()) {
+            log.warn("Delta version update not acknowledged for index {}", indexName);
+        }
+    }
+
+    /**
+     * @return the checkpoint of an unfinished build of the same feed, or null to start a new index
+     */
+    private ProductCheckpoint loadCheckpoint(List<Resource> inputs) {
+        Path checkpointFile = ProductCheckpoint.checkpointFile(Paths.get(checkpointDir), aliasName);
+        try {
+            ProductCheckpoint checkpoint = ProductCheckpoint.load(checkpointFile);
+            if (checkpoint == null) {
+                return null;
+            }
+            if (!checkpoint.matches(fileLengths(inputs))) {
+                log.info("The feed has changed since checkpoint {}, starting a new index.", checkpointFile);
+                return null;
+            }
+            if (!esClient.indices().exists(new GetIndexRequest(checkpoint.getIndexName()), RequestOptions.DEFAULT)) {
+                log.info("Index {} of checkpoint {} does not exist, starting a new index.", checkpoint.getIndexName(), checkpointFile);
+                return null;
+            }
+            return checkpoint;
+        } catch (IOException ex) {
+            log.warn("Can not read checkpoint {}, starting a new index: {}", checkpointFile, ex.getMessage());
+            return null;
+        }
+    }
 
-        processBulkInsertData(productsBulkInsertDataFile, newIndexName);
+    private void writeCheckpoint(ProductCheckpoint checkpoint) {
+        Path checkpointFile = ProductCheckpoint.checkpointFile(Paths.get(checkpointDir), aliasName);
+        try {
+            checkpoint.write(checkpointFile);
+        } catch (IOException ex) {
+            // The previous checkpoint stays, a resume only sends more products again
+            log.warn("Can not write checkpoint {}: {}", checkpointFile, ex.getMessage());
+        }
+    }
+
+    private void deleteCheckpoint() {
+        Path checkpointFile = ProductCheckpoint.checkpointFile(Paths.get(checkpointDir), aliasName);
+        try {
+            Files.deleteIfExists(checkpointFile);
+        } catch (IOException ex) {
+            // A stale checkpoint names an index that is behind the alias now, it is not resumed once the feed changes
+            log.warn("Can not delete checkpoint {}: {}", checkpointFile, ex.getMessage());
+        }
+    }
+
+    private String getAliasIndex() throws IOException {
+        GetAliasesResponse aliasesResponse = esClient.indices()
+                .getAlias(new GetAliasesRequest().aliases(aliasName), RequestOptions.DEFAULT);
+        return aliasesResponse.getAliases().keySet().stream()
+                .sorted()
+                .reduce((first, second) -> second)
+                .orElse(null);
+    }
+
+    private void writeManifest(ProductManifest manifest) {
+        Path manifestFile = ProductManifest.manifestFile(Paths.get(manifestDir), aliasName);
+        try {
+            manifest.write(manifestFile);
+            log.info("Manifest of {} products has been written to {}.", manifest.getHashes().size(), manifestFile);
+        } catch (IOException ex) {
+            // The next delta run rebuilds the index instead
+            log.warn("Can not write manifest {}: {}", manifestFile, ex.getMessage());
+        }
     }
 
     private IndexRequest createIndexRequestFromBulkData(String line1, String line2) {
@@ -152,54 +454,333 @@ public class ProductService {
                 if (!acknowledgedResponse.isAcknowledged()) {
                     throw new RuntimeException("Index delete not acknowledged.");
                 }
+                matchingIndices.forEach(this::deleteDocStore);
+                matchingIndices.forEach(this::deleteLuceneIndex);
             }
         } catch (IOException e) {
             throw new RuntimeException("Failed to delete aliases for: " + newIndexName, e);
         }
     }
 
-    private void processBulkInsertData(Resource bulkInsertDataFile, String newIndexName) {
-        try {
-            BulkRequest bulkRequest = new BulkRequest();
-            bulkRequest.setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
-
-            List<Map<String, Object>> products = objectMapper.readValue(
-                    bulkInsertDataFile.getInputStream(),
-                    new TypeReference<List<Map<String, Object>>>() {
+    /**
+     * Streams the feed files product by product: each one goes to the doc store and the Lucene index as it is
+     * read and to the bulk indexer shared by all files, which blocks the readers while all its batches are in flight.
+     * Heap use is bounded by maxInFlight batches and a product per reader, whatever the size of the feed.
+     * With a checkpoint, the acknowledged progress is written every checkpoint.intervalMs and once all is indexed.
+     */
+    private Map<String, Long> processBulkInsertData(List<Resource> inputs, String newIndexName, ProductCheckpoint checkpoint) {
+        ProductBulkIndexer bulkIndexer = createBulkIndexer(newIndexName);
+        // Content hashes for the manifest, the base of the next delta run
+        Map<String, Long> hashes = new ConcurrentHashMap<>();
+        metrics.startRun(newIndexName, totalBytes(inputs) - (checkpoint != null ? checkpoint.getCompletedBytes() : 0));
+        ScheduledExecutorService checkpointWriter = null;
+        if (checkpoint != null) {
+            checkpointWriter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "product-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
+            checkpointWriter.scheduleWithFixedDelay(() -> writeCheckpoint(checkpoint), 0, checkpointIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        try (ProductDocStoreWriter docStore = docStoreEnabled ? new ProductDocStoreWriter(Paths.get(docStoreDir), newIndexName) : null;
+             ProductLuceneIndexWriter luceneIndex = luceneEnabled ? new ProductLuceneIndexWriter(Paths.get(luceneDir), newIndexName) : null) {
+
+            long count;
+            // Closing the bulk indexer waits for all of its batches
+            try (bulkIndexer) {
+                count = forEachProduct(inputs, checkpoint, skippedFile(newIndexName), (product, onIndexed) -> {
+                    String id = product.get("id").toString();
+                    hashes.put(id, ProductManifest.hash(canonicalWriter.writeValueAsBytes(product)));
+                    // The store and the Lucene index hold the documents as the API returns them, before the denormalized fields
+                    if (docStore != null || luceneIndex != null) {
+                        byte[] source = objectMapper.writeValueAsBytes(product);
+                        if (docStore != null) {
+                            synchronized (docStore) {
+                                docStore.add(id, source);
+                            }
+                        }
+                        if (luceneIndex != null) {
+                            luceneIndex.add(product, source);
+                        }
                     }
-            );
-
-            products.stream()
-                    .map(product -> {
-                        String id = product.get("id").toString();
-                        return new IndexRequest(newIndexName)
-                                .id(id)
-                                .source(product);
-                    })
-                    .forEach(bulkRequest::add);
-
-            BulkResponse bulkResponse = esClient.bulk(bulkRequest, RequestOptions.DEFAULT);
-            if (bulkResponse.getItems().length != products.size()) {
-                log.warn("Only {} out of {} requests have been processed in a bulk request.", bulkResponse.getItems().length, products.size());
-            } else {
-                log.info("{} requests have been processed in a bulk request.", bulkResponse.getItems().length);
-            }
 
-            if (bulkResponse.hasFailures()) {
-                log.warn("Bulk data processing has failures:\n{}", bulkResponse.buildFailureMessage());
+                    ProductSkuAttributes.addDenormalized(product);
+                    bulkIndexer.add(new IndexRequest(newIndexName)
+                            .id(id)
+                            .source(product), onIndexed);
+                });
+            }
+            if (checkpoint != null) {
+                checkpointWriter.shutdownNow();
+                writeCheckpoint(checkpoint);
             }
+            esClient.indices().refresh(new RefreshRequest(newIndexName), RequestOptions.DEFAULT);
 
+            if (docStore != null) {
+                docStore.commit();
+                log.info("Doc store of {} products has been written for index {}.", count, newIndexName);
+            }
+            if (luceneIndex != null) {
+                luceneIndex.commit();
+                log.info("Lucene index of {} products has been written for index {}.", count, newIndexName);
+            }
         } catch (IOException ex) {
             log.error("An exception occurred during bulk data processing", ex);
             throw new RuntimeException(ex);
+        } finally {
+            if (checkpointWriter != null) {
+                checkpointWriter.shutdownNow();
+            }
+            metrics.finishRun();
+        }
+
+        if (bulkIndexer.getDeadLetterCount() > 0) {
+            log.warn("{} products have been indexed into {}, {} failed and have been written to the dead-letter file.",
+                    bulkIndexer.getIndexedCount(), newIndexName, bulkIndexer.getDeadLetterCount());
+        } else {
+            log.info("{} products have been indexed into {}, {} rejected items retried.",
+                    bulkIndexer.getIndexedCount(), newIndexName, bulkIndexer.getRetriedCount());
+        }
+        // Failed products are left out, so a delta run sends them again
+        hashes.keySet().removeAll(bulkIndexer.getDeadLetterIds());
+        return hashes;
+    }
+
+    /**
+     * Reads the feed files in parallel, one task per file on a work-stealing pool of ingest.parallelism
+     * threads (the number of cores by default), so large and small files even out across the threads.
+     * The handler is called concurrently. Progress is logged per file with the running totals, and every
+     * product read is reported to the metrics with its size in the feed.
+     * <p>
+     * With a checkpoint, finished files are skipped, the others are read from their resume offset,
+     * and each product is tracked until the handler reports it indexed.
+     * <p>
+     * Elements of the feed that are not products are counted as parse errors and written to the skipped file.
+     * Malformed JSON stops the run, the reader can not find the next product after it.
+     *
+     * @param skippedFile where skipped elements are written, null to pass over them silently
+     * @return the number of products read
+     */
+    private long forEachProduct(List<Resource> inputs, ProductCheckpoint checkpoint, Path skippedFile,
+                                ProductHandler handler) throws IOException {
+        int parallelism = ingestParallelism > 0 ? ingestParallelism : Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(Math.min(parallelism, inputs.size()));
+        AtomicLong productCount = new AtomicLong();
+        AtomicInteger fileCount = new AtomicInteger();
+        long startMillis = System.currentTimeMillis();
+        try (SkippedElements skipped = new SkippedElements(skippedFile)) {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (Resource input : inputs) {
+                tasks.add(pool.submit(() -> {
+                    long fileStartMillis = System.currentTimeMillis();
+                    ProductCheckpoint.FileProgress progress = checkpoint != null ? checkpoint.getFile(input.getDescription()) : null;
+                    if (progress != null && progress.isDone()) {
+                        log.info("{} is already indexed, {}/{} files done.", input.getFilename(), fileCount.incrementAndGet(), inputs.size());
+                        return null;
+                    }
+                    long resumeOffset = progress != null ? progress.getResumeOffset() : 0;
+                    try (ProductFeedReader reader = new ProductFeedReader(objectMapper, input.getInputStream(), resumeOffset,
+                            (element, reason) -> skipped.add(input.getFilename(), element, reason))) {
+                        Map<String, Object> product;
+                        long byteOffset = reader.getByteOffset();
+                        while ((product = reader.next()) != null) {
+                            long productStart = byteOffset;
+                            byteOffset = reader.getByteOffset();
+                            metrics.recordRead(byteOffset - productStart);
+                            if (progress == null) {
+                                handler.handle(product, null);
+                            } else {
+                                progress.begin(productStart);
+                                handler.handle(product, () -> progress.ack(productStart));
+                                progress.advance(byteOffset);
+                            }
+                        }
+                        if (progress != null) {
+                            progress.finishReading();
+                        }
+                        long total = productCount.addAndGet(reader.getCount());
+                        long elapsedMillis = Math.max(1, System.currentTimeMillis() - startMillis);
+                        log.info("{} products of {} read in {} ms, {}/{} files and {} products done, {} products/s.",
+                                reader.getCount(), input.getFilename(), System.currentTimeMillis() - fileStartMillis,
+                                fileCount.incrementAndGet(), inputs.size(), total, total * 1000 / elapsedMillis);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (ExecutionException ex) {
+            pool.shutdownNow();
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new RuntimeException("Failed to read the product feed", cause);
+        } catch (InterruptedException ex) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the product feed");
+        } finally {
+            pool.shutdown();
         }
+        return productCount.get();
+    }
+
+    private Path skippedFile(String indexName) {
+        return Paths.get(deadLetterDir).resolve(indexName + ".skipped.ndjson");
     }
 
-    private void createIndex(String newIndexName, String settings, String mappings) {
+    /**
+     * Feed elements that are not products, written to the skipped file as they are met by the reader threads.
+     * The file is only created with the first one.
+     */
+    private final class SkippedElements implements Closeable {
+        private final Path file;
+        private BufferedWriter writer;
+
+        private SkippedElements(Path file) {
+            this.file = file;
+        }
+
+        private synchronized void add(String feedFile, JsonNode element, String reason) {
+            if (file == null) {
+                return;
+            }
+            metrics.recordParseError();
+            log.warn("{} of {} has been skipped.", reason, feedFile);
+            try {
+                if (writer == null) {
+                    Files.createDirectories(file.getParent());
+                    writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+                    log.warn("Writing skipped feed elements to {}", file);
+                }
+                ObjectNode line = objectMapper.createObjectNode()
+                        .put("file", feedFile)
+                        .put("reason", reason);
+                line.set("source", element);
+                writer.write(objectMapper.writeValueAsString(line));
+                writer.newLine();
+            } catch (IOException ex) {
+                log.error("Can not write a skipped element of {} to {}", feedFile, file, ex);
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    // Size of the feed for the progress and ETA, -1 when a file can not tell
+    private static Map<String, Long> fileLengths(List<Resource> inputs) {
+        Map<String, Long> lengths = new LinkedHashMap<>();
+        for (Resource input : inputs) {
+            long length;
+            try {
+                length = input.contentLength();
+            } catch (IOException ex) {
+                length = -1;
+            }
+            lengths.put(input.getDescription(), length);
+        }
+        return lengths;
+    }
+
+    private static long totalBytes(List<Resource> inputs) {
+        long total = 0;
+        for (Resource input : inputs) {
+            try {
+                total += input.contentLength();
+            } catch (IOException ex) {
+                return -1;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Feed files from product.indexer.files.input: every *.json file of a directory, or the files matching
+     * a glob such as {@code /exports/products-*.json}, in name order. Falls back to the bulkData resource.
+     */
+    private List<Resource> resolveInputFiles() {
+        if (inputFiles == null || inputFiles.isEmpty()) {
+            return Collections.singletonList(productsBulkInsertDataFile);
+        }
+        Path inputPath = Paths.get(inputFiles);
+        String pattern = Files.isDirectory(inputPath) ? inputPath.resolve("*.json").toString() : inputFiles;
+        Resource[] resources;
+        try {
+            resources = new PathMatchingResourcePatternResolver().getResources(ResourceUtils.FILE_URL_PREFIX + pattern);
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Can not list feed files: " + inputFiles, ex);
+        }
+        if (resources.length == 0) {
+            throw new IllegalArgumentException("No feed files match " + inputFiles);
+        }
+        List<Resource> inputs = Arrays.asList(resources);
+        inputs.sort(Comparator.comparing(Resource::getFilename));
+        log.info("{} feed files found in {}.", inputs.size(), inputFiles);
+        return inputs;
+    }
+
+    @FunctionalInterface
+    private interface ProductHandler {
+        /**
+         * @param onIndexed to run once the product is indexed, null when progress is not tracked
+         */
+        void handle(Map<String, Object> product, Runnable onIndexed) throws IOException;
+    }
+
+    private ProductBulkIndexer createBulkIndexer(String deadLetterName) {
+        ProductBulkIndexer.Settings bulkSettings = ProductBulkIndexer.Settings.builder()
+                .batchSize(bulkBatchSize)
+                .maxBatchBytes(bulkMaxBatchBytes)
+                .maxInFlight(bulkMaxInFlight)
+                .maxRetries(bulkMaxRetries)
+                .initialBackoffMs(bulkInitialBackoffMs)
+                .maxBackoffMs(bulkMaxBackoffMs)
+                .build();
+        Path deadLetterFile = Paths.get(deadLetterDir).resolve(deadLetterName + ".ndjson");
+        return new ProductBulkIndexer(esClient, objectMapper, bulkSettings, deadLetterFile, metrics);
+    }
+
+    private void deleteDocStore(String indexName) {
+        Path storeFile = ProductDocStoreWriter.storeFile(Paths.get(docStoreDir), indexName);
+        try {
+            if (Files.deleteIfExists(storeFile)) {
+                log.info("Doc store {} has been deleted.", storeFile);
+            }
+        } catch (IOException ex) {
+            log.warn("Can not delete doc store {}: {}", storeFile, ex.getMessage());
+        }
+    }
+
+    private void deleteLuceneIndex(String indexName) {
+        Path indexDirectory = ProductLuceneIndexWriter.indexDirectory(Paths.get(luceneDir), indexName);
+        try {
+            if (Files.exists(indexDirectory)) {
+                ProductLuceneIndexWriter.deleteRecursively(indexDirectory);
+                log.info("Lucene index {} has been deleted.", indexDirectory);
+            }
+        } catch (IOException ex) {
+            log.warn("Can not delete Lucene index {}: {}", indexDirectory, ex.getMessage());
+        }
+    }
+
+    /**
+     * Creates the index for the load: no refreshes and no replicas, so the bulk load writes every document
+     * once and never stops for refreshes. The production values come back in {@link #finishLoad}.
+     */
+    private void createIndex(String newIndexName, Settings settings, String mappings) {
         CreateIndexRequest createIndexRequest = new CreateIndexRequest(newIndexName)
                 .mapping(mappings, XContentType.JSON)
-                .settings(settings, XContentType.JSON)
-                .alias(new Alias(aliasName));
+                .settings(Settings.builder()
+                        .put(settings)
+                        .put(REFRESH_INTERVAL_SETTING, "-1")
+                        .put(NUMBER_OF_REPLICAS_SETTING, 0));
 
         CreateIndexResponse createIndexResponse;
         try {
@@ -215,6 +796,46 @@ public class ProductService {
         }
     }
 
+    /**
+     * Makes the loaded index searchable: force-merges it while it has no replicas to copy the segments to,
+     * restores refresh_interval and number_of_replicas from settings.json and waits for the replicas.
+     */
+    private void finishLoad(String newIndexName, Settings settings) {
+        try {
+            if (forceMergeEnabled) {
+                long startMillis = System.currentTimeMillis();
+                esClient.indices().forcemerge(new ForceMergeRequest(newIndexName)
+                        .maxNumSegments(forceMergeMaxNumSegments), RequestOptions.DEFAULT);
+                log.info("Index {} has been force merged to {} segments in {} ms.", newIndexName,
+                        forceMergeMaxNumSegments, System.currentTimeMillis() - startMillis);
+            }
+
+            Settings.Builder searchSettings = Settings.builder()
+                    .put(NUMBER_OF_REPLICAS_SETTING, settings.getAsInt(NUMBER_OF_REPLICAS_SETTING, 1));
+            String refreshInterval = settings.get(REFRESH_INTERVAL_SETTING);
+            if (refreshInterval != null) {
+                searchSettings.put(REFRESH_INTERVAL_SETTING, refreshInterval);
+            } else {
+                // Back to the ES default
+                searchSettings.putNull(REFRESH_INTERVAL_SETTING);
+            }
+            AcknowledgedResponse settingsResponse = esClient.indices()
+                    .putSettings(new UpdateSettingsRequest(newIndexName).settings(searchSettings), RequestOptions.DEFAULT);
+            if (!settingsResponse.isAcknowledged()) {
+                throw new RuntimeException("Settings update not acknowledged for index: " + newIndexName);
+            }
+
+            ClusterHealthResponse health = esClient.cluster().health(new ClusterHealthRequest(newIndexName)
+                    .waitForGreenStatus()
+                    .timeout(healthTimeout), RequestOptions.DEFAULT);
+            if (health.isTimedOut()) {
+                log.warn("Index {} is {} after {}, the alias is moved anyway.", newIndexName, health.getStatus(), healthTimeout);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to prepare index " + newIndexName + " for search", ex);
+        }
+    }
+
     private static String getStrFromResource(Resource resource) {
         try {
             if (!resource.exists()) {
@@ -0,0 +1,58 @@
+package org.example.productindexer.service;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Flattened copies of the SKU attributes, which let searches facet and filter without nested queries.
+ * Written by the indexer and by the index rebuild of product-search-service, whose queries build
+ * color-size values with the same separator.
+ */
+public final class ProductSkuAttributes {
+
+    public static final String COLORS_FIELD = "sku_colors";
+    public static final String SIZES_FIELD = "sku_sizes";
+    public static final String COLOR_SIZES_FIELD = "sku_color_sizes";
+
+    private static final String COLOR_SIZE_SEPARATOR = "|";
+
+    private ProductSkuAttributes() {
+    }
+
+    public static String colorSize(Object color, Object size) {
+        return color + COLOR_SIZE_SEPARATOR + size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static void addDenormalized(Map<String, Object> product) {
+        Set<String> colors = new LinkedHashSet<>();
+        Set<String> sizes = new LinkedHashSet<>();
+        Set<String> colorSizes = new LinkedHashSet<>();
+
+        Object skus = product.get("skus");
+        if (skus instanceof List) {
+            for (Object sku : (List<Object>) skus) {
+                if (!(sku instanceof Map)) {
+                    continue;
+                }
+                Object color = ((Map<String, Object>) sku).get("color");
+                Object size = ((Map<String, Object>) sku).get("size");
+                if (color != null) {
+                    colors.add(color.toString());
+                }
+                if (size != null) {
+                    sizes.add(size.toString());
+                }
+                if (color != null && size != null) {
+                    colorSizes.add(colorSize(color, size));
+                }
+            }
+        }
+
+        product.put(COLORS_FIELD, colors);
+        product.put(SIZES_FIELD, sizes);
+        product.put(COLOR_SIZES_FIELD, colorSizes);
+    }
+}
@@ -0,0 +1,127 @@
+package org.example.productindexer;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.GetMappingsRequest;
+import org.example.productindexer.service.ProductLuceneIndexWriter;
+import org.example.productindexer.service.ProductManifest;
+import org.example.productindexer.service.ProductService;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * The indexer builds the index from the fixture on startup, the test then changes the feed and applies it as a delta.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE)
+@TestPropertySource(properties = {
+        "product.indexer.index=test_delta_products",
+        "product.indexer.files.input=" + DeltaIndexingIntegrationTest.DIR + "/feed",
+        "product.indexer.delta.enabled=true",
+        "product.indexer.delta.maxChangeRatio=0.5",
+        "product.indexer.delta.manifestDir=" + DeltaIndexingIntegrationTest.DIR + "/manifest",
+        "product.indexer.bulk.deadLetterDir=" + DeltaIndexingIntegrationTest.DIR + "/deadletter"
+})
+public class DeltaIndexingIntegrationTest {
+
+    static final String DIR = "target/delta-integration-test";
+    private static final String ALIAS = "test_delta_products";
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Autowired
+    ProductService productService;
+
+    @Autowired
+    RestHighLevelClient esClient;
+
+    // Written before the context starts, the startup run finds no manifest and builds a new index
+    @BeforeClass
+    public static void writeFeed() throws IOException {
+        ProductLuceneIndexWriter.deleteRecursively(Paths.get(DIR));
+        Files.createDirectories(Paths.get(DIR, "feed"));
+        writeFeed(readFixture());
+    }
+
+    @Test
+    public void testDeltaChangesTheLiveIndexInPlace() throws IOException {
+        String index = getAliasIndex();
+        Path manifestFile = ProductManifest.manifestFile(Paths.get(DIR, "manifest"), ALIAS);
+        ProductManifest built = ProductManifest.load(manifestFile);
+        assertThat(built.getIndexName(), is(index));
+        assertThat(built.getHashes().keySet(), containsInAnyOrder("1", "2", "3", "4", "5", "6", "7", "8"));
+        assertThat(getDeltaVersion(index), nullValue());
+
+        // 1 renamed, 8 deleted, 9 added
+        List<Map<String, Object>> products = readFixture();
+        products.get(0).put("name", "Women ankle jeans, model 1273");
+        Map<String, Object> added = products.remove(7);
+        added.put("id", "9");
+        products.add(added);
+        writeFeed(products);
+
+        productService.updateIndex();
+
+        assertThat(getAliasIndex(), is(index));
+        assertThat(getDeltaVersion(index), notNullValue());
+        assertThat(getSource("1").get("name"), is("Women ankle jeans, model 1273"));
+        assertThat(getSource("8"), nullValue());
+        assertThat(getSource("9").get("sku_colors"), notNullValue());
+
+        ProductManifest delta = ProductManifest.load(manifestFile);
+        assertThat(delta.getIndexName(), is(index));
+        assertThat(delta.getHashes().keySet(), containsInAnyOrder("1", "2", "3", "4", "5", "6", "7", "9"));
+        assertThat(delta.getHashes().get("1"), not(built.getHashes().get("1")));
+        assertThat(delta.getHashes().get("2"), is(built.getHashes().get("2")));
+    }
+
+    private String getAliasIndex() throws IOException {
+        return esClient.indices().getAlias(new GetAliasesRequest().aliases(ALIAS), RequestOptions.DEFAULT)
+                .getAliases().keySet().iterator().next();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object getDeltaVersion(String index) throws IOException {
+        Map<String, Object> mapping = esClient.indices()
+                .getMapping(new GetMappingsRequest().indices(index), RequestOptions.DEFAULT)
+                .mappings().get(index).getSourceAsMap();
+        Map<String, Object> meta = (Map<String, Object>) mapping.get("_meta");
+        return meta == null ? null : meta.get("deltaVersion");
+    }
+
+    private Map<String, Object> getSource(String id) throws IOException {
+        GetResponse response = esClient.get(new GetRequest(ALIAS, id), RequestOptions.DEFAULT);
+        return response.isExists() ? response.getSourceAsMap() : null;
+    }
+
+    private static List<Map<String, Object>> readFixture() throws IOException {
+        try (InputStream in = new ClassPathResource("elastic/product/task_8_data.json").getInputStream()) {
+            return objectMapper.readValue(in, new TypeReference<List<Map<String, Object>>>() {});
+        }
+    }
+
+    private static void writeFeed(List<Map<String, Object>> products) throws IOException {
+        Files.write(Paths.get(DIR, "feed", "products.json"), objectMapper.writeValueAsBytes(products));
+    }
+}
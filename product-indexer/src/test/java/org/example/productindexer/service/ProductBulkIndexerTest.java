@@ -0,0 +1,232 @@
+package org.example.productindexer.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+/**
+ * The client answers on the calling thread, so a batch and its retries are over by the time add or close returns.
+ */
+public class ProductBulkIndexerTest {
+
+    private static final String INDEX = "products_1";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final RestHighLevelClient esClient = mock(RestHighLevelClient.class);
+    private final AtomicInteger bulkCount = new AtomicInteger();
+    // Attempts of every product, a product sent twice in one batch is counted twice
+    private final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+    private Path deadLetterFile;
+
+    @Before
+    public void init() {
+        deadLetterFile = folder.getRoot().toPath().resolve("dead-letter.jsonl");
+    }
+
+    @Test
+    public void testRejectedItemsAreRetriedUntilIndexed() throws IOException {
+        // Product 2 is rejected twice, the others go through at once
+        answerItems((id, attempt) -> id.equals("2") && attempt < 3 ? RestStatus.TOO_MANY_REQUESTS : RestStatus.CREATED);
+        ProductBulkIndexer indexer = newIndexer(3);
+
+        List<String> done = new ArrayList<>();
+        for (String id : new String[]{"1", "2", "3"}) {
+            indexer.add(indexRequest(id), () -> done.add(id));
+        }
+        indexer.close();
+
+        assertThat(bulkCount.get(), is(3));
+        assertThat(attempts.get("1").get(), is(1));
+        assertThat(attempts.get("2").get(), is(3));
+        assertThat(done, contains("1", "3", "2"));
+        assertThat(indexer.getIndexedCount(), is(3L));
+        assertThat(indexer.getRetriedCount(), is(2L));
+        assertThat(indexer.getDeadLetterCount(), is(0L));
+        assertThat(Files.exists(deadLetterFile), is(false));
+    }
+
+    @Test
+    public void testRejectedRequestIsRetriedWhole() throws IOException {
+        AtomicInteger requests = new AtomicInteger();
+        doAnswer(invocation -> {
+            bulkCount.incrementAndGet();
+            ActionListener<BulkResponse> listener = invocation.getArgument(2);
+            if (requests.incrementAndGet() == 1) {
+                listener.onFailure(new ElasticsearchStatusException("rejected", RestStatus.TOO_MANY_REQUESTS));
+            } else {
+                listener.onResponse(respond(invocation.getArgument(0), (id, attempt) -> RestStatus.CREATED));
+            }
+            return null;
+        }).when(esClient).bulkAsync(any(BulkRequest.class), any(RequestOptions.class), any());
+        ProductBulkIndexer indexer = newIndexer(2);
+
+        indexer.add(indexRequest("1"));
+        indexer.add(indexRequest("2"));
+        indexer.close();
+
+        assertThat(bulkCount.get(), is(2));
+        assertThat(indexer.getIndexedCount(), is(2L));
+        assertThat(indexer.getRetriedCount(), is(2L));
+        assertThat(indexer.getDeadLetterCount(), is(0L));
+    }
+
+    @Test
+    public void testItemsOutOfRetriesAndFailedItemsAreDeadLettered() throws IOException {
+        answerItems((id, attempt) -> id.equals("1") ? RestStatus.TOO_MANY_REQUESTS
+                : id.equals("2") ? RestStatus.BAD_REQUEST : RestStatus.CREATED);
+        ProductBulkIndexer indexer = newIndexer(3);
+
+        List<String> done = new ArrayList<>();
+        for (String id : new String[]{"1", "2", "3"}) {
+            indexer.add(indexRequest(id), () -> done.add(id));
+        }
+        indexer.close();
+
+        // The first attempt and two retries
+        assertThat(attempts.get("1").get(), is(3));
+        assertThat(attempts.get("2").get(), is(1));
+        assertThat(done, containsInAnyOrder("1", "2", "3"));
+        assertThat(indexer.getIndexedCount(), is(1L));
+        assertThat(indexer.getDeadLetterCount(), is(2L));
+        assertThat(indexer.getDeadLetterIds(), containsInAnyOrder("1", "2"));
+
+        List<String> lines = Files.readAllLines(deadLetterFile);
+        assertThat(lines, hasSize(2));
+        ObjectMapper objectMapper = new ObjectMapper();
+        assertThat(objectMapper.readTree(lines.get(0)).path("status").asInt(), is(400));
+        assertThat(objectMapper.readTree(lines.get(0)).path("source").path("name").asText(), is("product 2"));
+        assertThat(objectMapper.readTree(lines.get(1)).path("status").asInt(), is(429));
+    }
+
+    @Test
+    public void testFailedRequestIsDeadLetteredAndReleasesItsSlot() throws IOException {
+        doAnswer(invocation -> {
+            bulkCount.incrementAndGet();
+            ActionListener<BulkResponse> listener = invocation.getArgument(2);
+            listener.onFailure(new ElasticsearchStatusException("broken", RestStatus.INTERNAL_SERVER_ERROR));
+            return null;
+        }).when(esClient).bulkAsync(any(BulkRequest.class), any(RequestOptions.class), any());
+        ProductBulkIndexer indexer = newIndexer(1);
+
+        // Every batch takes the only slot, each has to give it back for the next one to be sent
+        for (int i = 1; i <= 3; i++) {
+            indexer.add(indexRequest(String.valueOf(i)));
+        }
+        indexer.close();
+
+        assertThat(bulkCount.get(), is(3));
+        assertThat(indexer.getDeadLetterIds(), containsInAnyOrder("1", "2", "3"));
+    }
+
+    @Test
+    public void testThrowingCallbackKeepsOtherCallbacksAndReleasesItsSlot() throws IOException {
+        answerItems((id, attempt) -> id.equals("2") && attempt < 2 ? RestStatus.TOO_MANY_REQUESTS : RestStatus.CREATED);
+        ProductBulkIndexer indexer = newIndexer(3);
+
+        List<String> done = new ArrayList<>();
+        indexer.add(indexRequest("1"), () -> {
+            throw new IllegalStateException("callback failure");
+        });
+        indexer.add(indexRequest("2"), () -> done.add("2"));
+        indexer.add(indexRequest("3"), () -> done.add("3"));
+        // Would wait for the close timeout if the slot of the batch was lost
+        indexer.close();
+
+        assertThat(done, contains("3", "2"));
+        assertThat(indexer.getIndexedCount(), is(3L));
+    }
+
+    @Test
+    public void testCallbacksAreKeyedByRequestNotById() throws IOException {
+        answerItems((id, attempt) -> attempt == 1 ? RestStatus.TOO_MANY_REQUESTS : RestStatus.CREATED);
+        ProductBulkIndexer indexer = newIndexer(2);
+
+        // Two versions of one product in a batch, both rejected once: each callback is run once
+        AtomicInteger first = new AtomicInteger();
+        AtomicInteger second = new AtomicInteger();
+        indexer.add(indexRequest("1"), first::incrementAndGet);
+        indexer.add(indexRequest("1"), second::incrementAndGet);
+        indexer.close();
+
+        assertThat(first.get(), is(1));
+        assertThat(second.get(), is(1));
+        assertThat(indexer.getIndexedCount(), is(2L));
+    }
+
+    private ProductBulkIndexer newIndexer(int batchSize) {
+        ProductBulkIndexer.Settings settings = ProductBulkIndexer.Settings.builder()
+                .batchSize(batchSize)
+                .maxInFlight(1)
+                .maxRetries(2)
+                .initialBackoffMs(1)
+                .maxBackoffMs(1)
+                .closeTimeoutMs(5000)
+                .build();
+        return new ProductBulkIndexer(esClient, new ObjectMapper(), settings, deadLetterFile, new IndexingMetrics());
+    }
+
+    /**
+     * @param statuses status of an item by product id and its attempt, counted from 1
+     */
+    private void answerItems(BiFunction<String, Integer, RestStatus> statuses) {
+        doAnswer(invocation -> {
+            bulkCount.incrementAndGet();
+            ActionListener<BulkResponse> listener = invocation.getArgument(2);
+            listener.onResponse(respond(invocation.getArgument(0), statuses));
+            return null;
+        }).when(esClient).bulkAsync(any(BulkRequest.class), any(RequestOptions.class), any());
+    }
+
+    private BulkResponse respond(BulkRequest request, BiFunction<String, Integer, RestStatus> statuses) {
+        List<DocWriteRequest<?>> requests = request.requests();
+        BulkItemResponse[] items = new BulkItemResponse[requests.size()];
+        for (int i = 0; i < items.length; i++) {
+            String id = requests.get(i).id();
+            int attempt = attempts.computeIfAbsent(id, key -> new AtomicInteger()).incrementAndGet();
+            RestStatus status = statuses.apply(id, attempt);
+            items[i] = status == RestStatus.CREATED
+                    ? new BulkItemResponse(i, DocWriteRequest.OpType.INDEX,
+                            new IndexResponse(new ShardId(INDEX, "_na_", 0), "_doc", id, 1, 1, 1, true))
+                    : new BulkItemResponse(i, DocWriteRequest.OpType.INDEX,
+                            new BulkItemResponse.Failure(INDEX, "_doc", id, new IllegalStateException(status.name()), status));
+        }
+        return new BulkResponse(items, 1);
+    }
+
+    private static IndexRequest indexRequest(String id) {
+        return new IndexRequest(INDEX).id(id).source("{\"name\": \"product " + id + "\"}", XContentType.JSON);
+    }
+}
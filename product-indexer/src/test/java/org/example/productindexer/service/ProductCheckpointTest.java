@@ -0,0 +1,121 @@
+package org.example.productindexer.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ProductCheckpointTest {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final String FILE = "feed.json";
+    private static final String FEED = "[{\"id\": \"1\"},\n{\"id\": \"2\"},\n{\"id\": \"3\"},\n{\"id\": \"4\"}]";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCheckpointResumesFromTheFirstUnacknowledgedProduct() throws IOException {
+        ProductCheckpoint checkpoint = ProductCheckpoint.start("products_1", Collections.singletonMap(FILE, (long) FEED.length()));
+        ProductCheckpoint.FileProgress progress = checkpoint.getFile(FILE);
+        List<Long> starts = readAll(progress);
+
+        // Batches come back out of order: 1, 3 and 4 are acknowledged, 2 is still in flight
+        progress.ack(starts.get(3));
+        progress.ack(starts.get(0));
+        progress.ack(starts.get(2));
+        Path file = write(checkpoint);
+
+        ProductCheckpoint.FileProgress resumed = ProductCheckpoint.load(file).getFile(FILE);
+        assertThat(resumed.isDone(), is(false));
+        assertThat(resumed.getResumeOffset(), is(starts.get(1)));
+        // Products after the unacknowledged one are sent again, which only overwrites them
+        assertThat(resume(resumed.getResumeOffset()), contains("2", "3", "4"));
+    }
+
+    @Test
+    public void testCheckpointBeforeAnyAcknowledgementResumesTheWholeFile() throws IOException {
+        ProductCheckpoint checkpoint = ProductCheckpoint.start("products_1", Collections.singletonMap(FILE, (long) FEED.length()));
+        List<Long> starts = readAll(checkpoint.getFile(FILE));
+        checkpoint.getFile(FILE).ack(starts.get(1));
+
+        ProductCheckpoint.FileProgress resumed = ProductCheckpoint.load(write(checkpoint)).getFile(FILE);
+        assertThat(resumed.getResumeOffset(), is(1L));
+        assertThat(resume(resumed.getResumeOffset()), contains("1", "2", "3", "4"));
+    }
+
+    @Test
+    public void testCheckpointOfAFullyAcknowledgedFileIsDone() throws IOException {
+        ProductCheckpoint checkpoint = ProductCheckpoint.start("products_1", Collections.singletonMap(FILE, (long) FEED.length()));
+        ProductCheckpoint.FileProgress progress = checkpoint.getFile(FILE);
+        List<Long> starts = readAll(progress);
+        for (int i = starts.size() - 1; i >= 0; i--) {
+            progress.ack(starts.get(i));
+        }
+
+        ProductCheckpoint loaded = ProductCheckpoint.load(write(checkpoint));
+        assertThat(loaded.getIndexName(), is("products_1"));
+        assertThat(loaded.matches(Collections.singletonMap(FILE, (long) FEED.length())), is(true));
+        assertThat(loaded.getFile(FILE).isDone(), is(true));
+        assertThat(resume(loaded.getFile(FILE).getResumeOffset()), empty());
+    }
+
+    @Test
+    public void testMissingCheckpointLoadsAsNull() throws IOException {
+        assertThat(ProductCheckpoint.load(folder.getRoot().toPath().resolve("none.checkpoint")), nullValue());
+    }
+
+    /**
+     * Reads the feed the way ProductService does, without acknowledging anything.
+     *
+     * @return offset each product starts after
+     */
+    private static List<Long> readAll(ProductCheckpoint.FileProgress progress) throws IOException {
+        List<Long> starts = new ArrayList<>();
+        try (ProductFeedReader reader = new ProductFeedReader(objectMapper, stream(), 0)) {
+            long byteOffset = reader.getByteOffset();
+            while (reader.next() != null) {
+                long productStart = byteOffset;
+                byteOffset = reader.getByteOffset();
+                progress.begin(productStart);
+                starts.add(productStart);
+                progress.advance(byteOffset);
+            }
+        }
+        progress.finishReading();
+        return starts;
+    }
+
+    private static List<String> resume(long offset) throws IOException {
+        List<String> ids = new ArrayList<>();
+        try (ProductFeedReader reader = new ProductFeedReader(objectMapper, stream(), offset)) {
+            Map<String, Object> product;
+            while ((product = reader.next()) != null) {
+                ids.add(product.get("id").toString());
+            }
+        }
+        return ids;
+    }
+
+    private Path write(ProductCheckpoint checkpoint) throws IOException {
+        Path file = ProductCheckpoint.checkpointFile(folder.getRoot().toPath(), "products");
+        checkpoint.write(file);
+        return file;
+    }
+
+    private static ByteArrayInputStream stream() {
+        return new ByteArrayInputStream(FEED.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,133 @@
+package org.example.productindexer.service;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ProductFeedReaderTest {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    // Whitespace before and after the commas, and none at all
+    private static final String FEED = "[\n  {\"id\": \"1\"},\n  {\"id\": \"2\"} ,{\"id\": \"3\"}\t,\n{\"id\": \"4\"},{\"id\": \"5\"}\n]\n";
+
+    @Test
+    public void testResumeFromEveryRecordedOffsetReadsTheRestOnce() throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        List<String> ids = read(0, offsets);
+        assertThat(ids, contains("1", "2", "3", "4", "5"));
+        // Offset the first product starts after, then the end of each product
+        assertThat(offsets, hasSize(6));
+        assertThat(offsets.get(0), is(1L));
+
+        for (int i = 0; i < offsets.size(); i++) {
+            List<Long> resumedOffsets = new ArrayList<>();
+            List<String> resumedIds = read(offsets.get(i), resumedOffsets);
+            assertThat("resumed at " + offsets.get(i), resumedIds, is(ids.subList(i, ids.size())));
+            // The ends of the products are where the full read saw them, so a resumed build checkpoints the same offsets
+            assertThat("resumed at " + offsets.get(i), resumedOffsets.subList(1, resumedOffsets.size()),
+                    is(offsets.subList(i + 1, offsets.size())));
+        }
+    }
+
+    @Test
+    public void testResumeAtOffsetOneReadsTheWholeFeed() throws IOException {
+        assertThat(read(1, new ArrayList<>()), contains("1", "2", "3", "4", "5"));
+        assertThat(read(1, "[{\"id\": \"1\"}]", new ArrayList<>()), contains("1"));
+    }
+
+    @Test
+    public void testResumeBeforeCommaOrWhitespaceSkipsToTheNextProduct() throws IOException {
+        // Right after product 2: a space, then the comma
+        long afterSecond = FEED.indexOf("\"2\"}") + 4;
+        assertThat(FEED.charAt((int) afterSecond), is(' '));
+        assertThat(read(afterSecond, new ArrayList<>()), contains("3", "4", "5"));
+
+        // Right after product 4: the comma directly
+        long afterFourth = FEED.indexOf("\"4\"}") + 4;
+        assertThat(FEED.charAt((int) afterFourth), is(','));
+        assertThat(read(afterFourth, new ArrayList<>()), contains("5"));
+    }
+
+    @Test
+    public void testResumeBeforeTheEndOfTheArrayReadsNothing() throws IOException {
+        long afterLast = FEED.indexOf("\"5\"}") + 4;
+        assertThat(read(afterLast, new ArrayList<>()), empty());
+        assertThat(read(FEED.lastIndexOf(']'), new ArrayList<>()), empty());
+    }
+
+    @Test
+    public void testElementsThatAreNotProductsAreSkipped() throws IOException {
+        String feed = "[{\"id\": \"1\"}, 42, [{\"id\": \"x\"}], {\"id\": \"2\"}, \"3\", null]";
+        List<String> skipped = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        try (ProductFeedReader reader = new ProductFeedReader(objectMapper, stream(feed), 0,
+                (element, reason) -> skipped.add(element + " " + reason))) {
+            Map<String, Object> product;
+            while ((product = reader.next()) != null) {
+                ids.add(product.get("id").toString());
+            }
+            assertThat(reader.getCount(), is(2L));
+        }
+
+        assertThat(ids, contains("1", "2"));
+        assertThat(skipped, contains(
+                "42 Product feed element at byte " + feed.indexOf("42") + " is not an object: VALUE_NUMBER_INT",
+                "[{\"id\":\"x\"}] Product feed element at byte " + feed.indexOf("[{\"id\": \"x") + " is not an object: START_ARRAY",
+                "\"3\" Product feed element at byte " + feed.indexOf("\"3\"") + " is not an object: VALUE_STRING",
+                "null Product feed element at byte " + feed.indexOf("null") + " is not an object: VALUE_NULL"));
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void testElementThatIsNotAProductFailsWithoutSkipHandler() throws IOException {
+        try (ProductFeedReader reader = new ProductFeedReader(objectMapper, stream("[{\"id\": \"1\"}, 42]"))) {
+            assertThat(reader.next().get("id"), is("1"));
+            reader.next();
+        }
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void testMalformedJsonFailsEvenWithSkipHandler() throws IOException {
+        try (ProductFeedReader reader = new ProductFeedReader(objectMapper, stream("[{\"id\": \"1\"}, {\"id\" \"2\"}]"), 0,
+                (element, reason) -> {
+                })) {
+            assertThat(reader.next().get("id"), is("1"));
+            reader.next();
+        }
+    }
+
+    private static ByteArrayInputStream stream(String feed) {
+        return new ByteArrayInputStream(feed.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> read(long startOffset, List<Long> offsets) throws IOException {
+        return read(startOffset, FEED, offsets);
+    }
+
+    /**
+     * @param offsets receives the offset before the first product and after every product, as ProductService records them
+     */
+    private static List<String> read(long startOffset, String feed, List<Long> offsets) throws IOException {
+        List<String> ids = new ArrayList<>();
+        byte[] bytes = feed.getBytes(StandardCharsets.UTF_8);
+        try (ProductFeedReader reader = new ProductFeedReader(objectMapper, new ByteArrayInputStream(bytes), startOffset)) {
+            offsets.add(reader.getByteOffset());
+            Map<String, Object> product;
+            while ((product = reader.next()) != null) {
+                ids.add(product.get("id").toString());
+                offsets.add(reader.getByteOffset());
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,291 @@
+package org.example.productindexer.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.support.master.AcknowledgedResponse;
+import org.elasticsearch.client.ClusterClient;
+import org.elasticsearch.client.GetAliasesResponse;
+import org.elasticsearch.client.IndicesClient;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.client.indices.CreateIndexResponse;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.client.indices.GetIndexResponse;
+import org.elasticsearch.client.indices.PutMappingRequest;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Delta runs against a stubbed client: the live index is {@value #LIVE_INDEX}, its manifest holds ten products.
+ */
+public class ProductServiceDeltaTest {
+
+    private static final String ALIAS = "products";
+    private static final String LIVE_INDEX = "products_1";
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final ObjectWriter canonicalWriter = objectMapper.writer()
+            .with(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final RestHighLevelClient esClient = mock(RestHighLevelClient.class);
+    private final IndicesClient indicesClient = mock(IndicesClient.class);
+    // Requests of every bulk sent, retries included
+    private final List<DocWriteRequest<?>> sent = Collections.synchronizedList(new ArrayList<>());
+    // Products the stubbed cluster fails with a 400
+    private final Set<String> failedIds = ConcurrentHashMap.newKeySet();
+    private ProductService productService;
+    private Path feedDir;
+    private Path manifestFile;
+
+    @Before
+    public void init() throws IOException {
+        feedDir = folder.newFolder("feed").toPath();
+        Path manifestDir = folder.getRoot().toPath().resolve("manifest");
+        manifestFile = ProductManifest.manifestFile(manifestDir, ALIAS);
+
+        productService = new ProductService(esClient, new IndexingMetrics());
+        ReflectionTestUtils.setField(productService, "productsMappingsFile", new ClassPathResource("elastic/product/mappings.json"));
+        ReflectionTestUtils.setField(productService, "productsSettingsFile", new ClassPathResource("elastic/product/settings.json"));
+        ReflectionTestUtils.setField(productService, "inputFiles", feedDir.toString());
+        ReflectionTestUtils.setField(productService, "aliasName", ALIAS);
+        ReflectionTestUtils.setField(productService, "bulkBatchSize", 500);
+        ReflectionTestUtils.setField(productService, "bulkMaxBatchBytes", 5242880L);
+        ReflectionTestUtils.setField(productService, "bulkMaxInFlight", 2);
+        ReflectionTestUtils.setField(productService, "bulkMaxRetries", 1);
+        ReflectionTestUtils.setField(productService, "bulkInitialBackoffMs", 1L);
+        ReflectionTestUtils.setField(productService, "bulkMaxBackoffMs", 1L);
+        ReflectionTestUtils.setField(productService, "deadLetterDir", folder.getRoot().toPath().resolve("deadletter").toString());
+        ReflectionTestUtils.setField(productService, "healthTimeout", "1s");
+        ReflectionTestUtils.setField(productService, "deltaEnabled", true);
+        ReflectionTestUtils.setField(productService, "deltaMaxChangeRatio", 0.5);
+        ReflectionTestUtils.setField(productService, "manifestDir", manifestDir.toString());
+
+        when(esClient.indices()).thenReturn(indicesClient);
+        GetAliasesResponse aliases = mock(GetAliasesResponse.class);
+        when(aliases.getAliases()).thenReturn(Collections.singletonMap(LIVE_INDEX, Collections.emptySet()));
+        when(indicesClient.getAlias(any(), any())).thenReturn(aliases);
+        when(indicesClient.putMapping(any(PutMappingRequest.class), any())).thenReturn(new AcknowledgedResponse(true));
+        doAnswer(invocation -> {
+            BulkRequest request = invocation.getArgument(0);
+            ActionListener<BulkResponse> listener = invocation.getArgument(2);
+            listener.onResponse(respond(request));
+            return null;
+        }).when(esClient).bulkAsync(any(BulkRequest.class), any(RequestOptions.class), any());
+
+        List<Map<String, Object>> products = new ArrayList<>();
+        for (int id = 1; id <= 10; id++) {
+            products.add(product(id, "product " + id));
+        }
+        new ProductManifest(LIVE_INDEX, hashes(products)).write(manifestFile);
+    }
+
+    @Test
+    public void testDeltaSendsChangesAndDeletesToTheLiveIndex() throws IOException {
+        // 3 and 4 changed, 10 deleted, 11 and 12 new: half of the catalog
+        writeFeed(1, 2, -3, -4, 5, 6, 7, 8, 9, 11, 12);
+
+        productService.updateIndex();
+
+        verify(indicesClient, never()).create(any(CreateIndexRequest.class), any());
+        assertThat(sentIds(DocWriteRequest.OpType.INDEX), containsInAnyOrder("3", "4", "11", "12"));
+        assertThat(sentIds(DocWriteRequest.OpType.DELETE), contains("10"));
+        assertThat(sent.stream().map(DocWriteRequest::index).distinct().toArray(), arrayContaining(LIVE_INDEX));
+
+        ProductManifest manifest = ProductManifest.load(manifestFile);
+        assertThat(manifest.getIndexName(), is(LIVE_INDEX));
+        assertThat(manifest.getHashes().keySet(), containsInAnyOrder("1", "2", "3", "4", "5", "6", "7", "8", "9", "11", "12"));
+        assertThat(manifest.getHashes().get("4"), is(hash(product(4, "product 4 changed"))));
+        assertThat(manifest.getHashes().get("12"), is(hash(product(12, "product 12"))));
+    }
+
+    @Test
+    public void testDeltaStampsTheDeltaVersion() throws IOException {
+        writeFeed(1, 2, -3, 4, 5, 6, 7, 8, 9, 10);
+        long before = System.currentTimeMillis();
+
+        productService.updateIndex();
+
+        ArgumentCaptor<PutMappingRequest> captor = ArgumentCaptor.forClass(PutMappingRequest.class);
+        verify(indicesClient).putMapping(captor.capture(), any());
+        assertThat(captor.getValue().indices(), arrayContaining(LIVE_INDEX));
+        Map<String, Object> mapping = XContentHelper.convertToMap(captor.getValue().source(), false, XContentType.JSON).v2();
+        @SuppressWarnings("unchecked")
+        Map<String, Object> meta = (Map<String, Object>) mapping.get("_meta");
+        assertThat(Long.parseLong(meta.get("deltaVersion").toString()), greaterThanOrEqualTo(before));
+    }
+
+    @Test
+    public void testDeadLetteredProductsKeepTheirOldHash() throws IOException {
+        ProductManifest before = ProductManifest.load(manifestFile);
+        failedIds.add("3");
+        failedIds.add("11");
+        writeFeed(1, 2, -3, -4, 5, 6, 7, 8, 9, 10, 11);
+
+        productService.updateIndex();
+
+        // The failed change of 3 and the failed new 11 are found again by the next run
+        ProductManifest manifest = ProductManifest.load(manifestFile);
+        assertThat(manifest.getHashes().get("3"), is(before.getHashes().get("3")));
+        assertThat(manifest.getHashes(), not(hasKey("11")));
+        assertThat(manifest.getHashes().get("4"), is(hash(product(4, "product 4 changed"))));
+    }
+
+    @Test
+    public void testNothingIsSentWhenNothingHasChanged() throws IOException {
+        writeFeed(1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
+
+        productService.updateIndex();
+
+        assertThat(sent, empty());
+        verify(indicesClient, never()).putMapping(any(PutMappingRequest.class), any());
+    }
+
+    @Test
+    public void testElementsThatAreNotProductsAreSkippedOnce() throws IOException {
+        writeFeed(1, 2, -3, 4, 5, 6, 7, 8, 9, 10);
+        String feed = new String(Files.readAllBytes(feedDir.resolve("products.json")), StandardCharsets.UTF_8);
+        Files.write(feedDir.resolve("products.json"), feed.replace("},{", "},42,{").getBytes(StandardCharsets.UTF_8));
+
+        productService.updateIndex();
+
+        assertThat(sentIds(DocWriteRequest.OpType.INDEX), contains("3"));
+        // Read by both passes of the delta, written by the first only
+        List<String> lines = Files.readAllLines(folder.getRoot().toPath().resolve("deadletter").resolve(LIVE_INDEX + "_delta.skipped.ndjson"));
+        assertThat(lines, hasSize(9));
+        assertThat(objectMapper.readTree(lines.get(0)).path("source").asInt(), is(42));
+        assertThat(objectMapper.readTree(lines.get(0)).path("file").asText(), is("products.json"));
+    }
+
+    @Test
+    public void testIndexIsRebuiltOverTheChangeRatio() throws IOException {
+        when(indicesClient.create(any(CreateIndexRequest.class), any()))
+                .thenAnswer(invocation -> new CreateIndexResponse(true, true, invocation.<CreateIndexRequest>getArgument(0).index()));
+        when(indicesClient.putSettings(any(), any())).thenReturn(new AcknowledgedResponse(true));
+        when(indicesClient.updateAliases(any(), any())).thenReturn(new AcknowledgedResponse(true));
+        GetIndexResponse indices = mock(GetIndexResponse.class);
+        when(indices.getIndices()).thenReturn(new String[0]);
+        when(indicesClient.get(any(GetIndexRequest.class), any())).thenReturn(indices);
+        ClusterClient clusterClient = mock(ClusterClient.class);
+        when(esClient.cluster()).thenReturn(clusterClient);
+        when(clusterClient.health(any(), any())).thenReturn(mock(ClusterHealthResponse.class));
+        // 6 of 10 changed
+        writeFeed(-1, -2, -3, -4, -5, -6, 7, 8, 9, 10);
+
+        productService.updateIndex();
+
+        ArgumentCaptor<CreateIndexRequest> captor = ArgumentCaptor.forClass(CreateIndexRequest.class);
+        verify(indicesClient).create(captor.capture(), any());
+        String newIndex = captor.getValue().index();
+        assertThat(newIndex, allOf(startsWith(ALIAS + "_"), not(LIVE_INDEX)));
+        assertThat(sentIds(DocWriteRequest.OpType.INDEX), hasSize(10));
+        assertThat(sent.stream().map(DocWriteRequest::index).distinct().toArray(), arrayContaining(newIndex));
+        verify(indicesClient, never()).putMapping(any(PutMappingRequest.class), any());
+
+        ProductManifest manifest = ProductManifest.load(manifestFile);
+        assertThat(manifest.getIndexName(), is(newIndex));
+        assertThat(manifest.getHashes().size(), is(10));
+    }
+
+    /**
+     * @param ids products of the feed, a negative id is the product with a changed name
+     */
+    private void writeFeed(int... ids) throws IOException {
+        List<Map<String, Object>> products = new ArrayList<>();
+        for (int id : ids) {
+            products.add(id > 0 ? product(id, "product " + id) : product(-id, "product " + -id + " changed"));
+        }
+        Files.write(feedDir.resolve("products.json"), objectMapper.writeValueAsBytes(products));
+    }
+
+    private static Map<String, Object> product(int id, String name) {
+        Map<String, Object> product = new LinkedHashMap<>();
+        product.put("id", String.valueOf(id));
+        product.put("name", name);
+        product.put("price", id * 10.0);
+        product.put("skus", Collections.singletonList(Collections.singletonMap("color", "Blue")));
+        return product;
+    }
+
+    // Hashed the way the feed reader hands the product over
+    private static long hash(Map<String, Object> product) throws IOException {
+        Map<?, ?> read = objectMapper.readValue(objectMapper.writeValueAsBytes(product), Map.class);
+        return ProductManifest.hash(canonicalWriter.writeValueAsBytes(read));
+    }
+
+    private static Map<String, Long> hashes(List<Map<String, Object>> products) throws IOException {
+        Map<String, Long> hashes = new HashMap<>();
+        for (Map<String, Object> product : products) {
+            hashes.put(product.get("id").toString(), hash(product));
+        }
+        return hashes;
+    }
+
+    private List<String> sentIds(DocWriteRequest.OpType opType) {
+        List<String> ids = new ArrayList<>();
+        synchronized (sent) {
+            for (DocWriteRequest<?> request : sent) {
+                if (request.opType() == opType) {
+                    ids.add(request.id());
+                }
+            }
+        }
+        return ids;
+    }
+
+    private BulkResponse respond(BulkRequest request) {
+        List<DocWriteRequest<?>> requests = request.requests();
+        sent.addAll(requests);
+        BulkItemResponse[] items = new BulkItemResponse[requests.size()];
+        for (int i = 0; i < items.length; i++) {
+            DocWriteRequest<?> itemRequest = requests.get(i);
+            items[i] = failedIds.contains(itemRequest.id())
+                    ? new BulkItemResponse(i, itemRequest.opType(), new BulkItemResponse.Failure(itemRequest.index(), "_doc",
+                            itemRequest.id(), new IllegalArgumentException("mapper_parsing_exception"), RestStatus.BAD_REQUEST))
+                    : new BulkItemResponse(i, itemRequest.opType(),
+                            new IndexResponse(new ShardId(itemRequest.index(), "_na_", 0), "_doc", itemRequest.id(), 1, 1, 1, true));
+        }
+        return new BulkResponse(items, 1);
+    }
+}
@@ -2,8 +2,10 @@ package org.example.productsearchservice;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class ProductSearchServiceApplication {
 
     public static void main(String[] args) {
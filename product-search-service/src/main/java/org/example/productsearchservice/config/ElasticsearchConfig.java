@@ -22,10 +22,15 @@ public class ElasticsearchConfig {
     private String esHost;
     private String user;
     private String pass;
+    private int connectTimeoutMs = 1000;
+    private int socketTimeoutMs = 30000;
 
     @Bean(name = "esClient")
     public RestHighLevelClient getEsClient() {
-        RestClientBuilder restClientBuilder = RestClient.builder(HttpHost.create(esHost));
+        RestClientBuilder restClientBuilder = RestClient.builder(HttpHost.create(esHost))
+                .setRequestConfigCallback(requestConfigBuilder -> requestConfigBuilder
+                        .setConnectTimeout(connectTimeoutMs)
+                        .setSocketTimeout(socketTimeoutMs));
         if (isNotBlank(user) && isNotBlank(pass)) {
             final CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
             credentialsProvider.setCredentials(AuthScope.ANY,
@@ -0,0 +1,21 @@
+package org.example.productsearchservice.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ProductCacheStats {
+    private long size;
+    private long hitCount;
+    private long missCount;
+    private double hitRate;
+    private long prefetchCount;
+    private long prefetchHitCount;
+    private double prefetchHitRate;
+    private long prefetchRejectedCount;
+}
@@ -0,0 +1,19 @@
+package org.example.productsearchservice.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ProductConditionalStats {
+    private long taggedCount;
+    private long notModifiedCount;
+    private double notModifiedRate;
+    // Uncompressed JSON bytes, before server.compression
+    private long bytesSent;
+    private long bytesSaved;
+}
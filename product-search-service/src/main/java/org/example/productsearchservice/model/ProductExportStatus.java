@@ -0,0 +1,25 @@
+package org.example.productsearchservice.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Last line of an export. The status of a streamed response is sent before the products, so a client can only tell
+ * a complete export from a cut one by this line.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ProductExportStatus {
+    // True when every matching product has been written
+    private Boolean complete;
+    // Products written before this line
+    private long count;
+    // Why the export stopped early, absent on a complete export
+    private String error;
+}
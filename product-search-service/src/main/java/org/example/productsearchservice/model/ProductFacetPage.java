@@ -0,0 +1,24 @@
+package org.example.productsearchservice.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ProductFacetPage {
+    private String facet;
+    // Values in key order
+    private List<ProductAggregationDto> values;
+    // Pass as ProductFacetRequest.after to get the next page, absent on the last page
+    private String after;
+    // Set when the latency budget ran out before all values were counted
+    private Boolean partial;
+}
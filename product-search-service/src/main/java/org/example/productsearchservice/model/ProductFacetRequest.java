@@ -0,0 +1,18 @@
+package org.example.productsearchservice.model;
+
+import lombok.Data;
+
+import java.util.List;
+import java.util.Map;
+
+@Data
+public class ProductFacetRequest {
+    private String textQuery;
+    // Selections of the other facets narrow the counts, a selection of the expanded facet is ignored
+    private Map<String, List<String>> filters;
+    // Key of the last value of the previous page, as returned in ProductFacetPage.after
+    private String after;
+    private Integer size;
+    // Latency budget in ms, overrides product.search.budget.facets.timeoutMs up to budget.maxTimeoutMs
+    private Long timeoutMs;
+}
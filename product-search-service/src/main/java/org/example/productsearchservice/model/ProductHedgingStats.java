@@ -0,0 +1,20 @@
+package org.example.productsearchservice.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class ProductHedgingStats {
+    private boolean enabled;
+    // False while the index has no started replica, hedging is skipped then
+    private boolean replicated;
+    private long searchCount;
+    private long hedgeCount;
+    private long hedgeWinCount;
+    private double hedgeRate;
+    private double hedgeWinRate;
+    // -1 until minSamples searches have been timed
+    private long hedgeDelayMs;
+    private double budget;
+}
@@ -2,9 +2,18 @@ package org.example.productsearchservice.model;
 
 import lombok.Data;
 
+import java.util.List;
+import java.util.Map;
+
 @Data
 public class ProductRequest {
     private String textQuery;
     private Integer page;
     private Integer size;
+    // Selected facet values keyed by facet name (price, brand, color, size)
+    private Map<String, List<String>> filters;
+    // Returns an ES profile and service timings with the response
+    private boolean profile;
+    // Latency budget in ms, overrides product.search.budget.products.timeoutMs up to budget.maxTimeoutMs
+    private Long timeoutMs;
 }
@@ -0,0 +1,68 @@
+package org.example.productsearchservice.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+import java.util.Map;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_EMPTY)
+public class ProductSearchProfile {
+    // Service side timings
+    private double queryBuildMillis;
+    private double esRoundTripMillis;
+    private long esTookMillis;
+    private double responseMappingMillis;
+
+    // ES profile API breakdown, summed over shards
+    private List<ProfileEntry> queries;
+    private List<ProfileEntry> aggregations;
+
+    // Present when the facets of the request were approximated
+    private FacetApproximation facetApproximation;
+    // Present when the phrase boost was applied in a rescore window
+    private RescoreComparison rescoreComparison;
+
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    public static class ProfileEntry {
+        private String type;
+        private String description;
+        private double timeMillis;
+        private List<ProfileEntry> children;
+    }
+
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class FacetApproximation {
+        // Took of aggregation-only requests over the same query
+        private long sampledTookMillis;
+        private long exactTookMillis;
+        // Per facet: share of the top sampled values that are also among the top exact values
+        private Map<String, Double> precision;
+    }
+
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class RescoreComparison {
+        // Took of hits-only requests for the same page
+        private long rescoreTookMillis;
+        private long fullScoringTookMillis;
+        // nDCG of the rescored page, graded by the scores of the full scoring ranking
+        private double ndcg;
+    }
+}
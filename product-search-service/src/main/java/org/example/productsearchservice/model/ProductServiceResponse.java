@@ -11,12 +11,19 @@ import java.util.List;
 import java.util.Map;
 
 @Data
-@Builder
+@Builder(toBuilder = true)
 @NoArgsConstructor
 @AllArgsConstructor
 @JsonInclude(JsonInclude.Include.NON_EMPTY)
 public class ProductServiceResponse {
     private Long totalHits;
-    private List<Map<String, Object>> products;
+    private List<Product> products;
     private Map<String, Object> facets = new HashMap<>();
+    // Facets cut to the top values, the rest is paged by the facet expansion endpoint
+    private Map<String, Boolean> facetsHasMore;
+    // Set when the facet counts come from a sample of the top scoring hits
+    private Boolean approximateFacets;
+    // Set when the latency budget ran out and ES returned what it had collected so far
+    private Boolean partial;
+    private ProductSearchProfile profile;
 }
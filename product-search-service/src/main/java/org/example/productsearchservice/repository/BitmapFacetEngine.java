@@ -0,0 +1,199 @@
+package org.example.productsearchservice.repository;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.search.aggregations.bucket.range.RangeAggregator;
+import org.example.productsearchservice.model.Product;
+import org.example.productsearchservice.model.Sku;
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Counts the product facets in process. For the doc store of the index behind the alias it keeps
+ * one compressed bitmap per facet value over product ordinals; the counts for a query are then
+ * bitmap intersections with the set of matching products, which ES returns as plain ids.
+ * Keys are the values ES would aggregate on: brand as is, colors and sizes lowercased, price range keys.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class BitmapFacetEngine {
+
+    static final String PRICE = "price";
+    static final String BRAND = "brand";
+    static final String COLOR = "color";
+    static final String SIZE = "size";
+
+    private final ProductDocStore productDocStore;
+
+    @Value("${product.search.facets.bitmap.enabled:false}")
+    private boolean enabled;
+
+    private volatile FacetIndex current;
+
+    @PostConstruct
+    public void init() {
+        if (enabled) {
+            productDocStore.addListener(this::build);
+        }
+    }
+
+    /**
+     * @return the facet index of the current doc store, or null when facets have to come from ES
+     */
+    public FacetIndex getCurrent() {
+        return current;
+    }
+
+    private void build(ProductDocStore.Snapshot docStore) {
+        if (docStore == null) {
+            current = null;
+            return;
+        }
+
+        long startMillis = System.currentTimeMillis();
+        FacetIndex facetIndex = new FacetIndex(docStore.getIndexName(), docStore.size());
+        docStore.forEach((id, source) -> {
+            try {
+                facetIndex.add(id, ProductHitDecoder.decode(source, 0, source.length, ProductHitDecoder.ALL_SKUS));
+            } catch (IOException ex) {
+                log.warn("Product {} is left out of the facet index: {}", id, ex.getMessage());
+            }
+        });
+        facetIndex.optimize();
+        current = facetIndex;
+        log.info("Facet index of {} products has been built for {} in {} ms",
+                facetIndex.ordinals.size(), docStore.getIndexName(), System.currentTimeMillis() - startMillis);
+    }
+
+    public static final class FacetIndex {
+        private final String indexName;
+        private final Map<String, Integer> ordinals;
+        // Facet name -> value -> products having it; price keeps the order of the ranges
+        private final Map<String, Map<String, RoaringBitmap>> facets = new LinkedHashMap<>();
+
+        private FacetIndex(String indexName, int expectedSize) {
+            this.indexName = indexName;
+            this.ordinals = new HashMap<>(expectedSize * 4 / 3 + 1);
+            Map<String, RoaringBitmap> priceRanges = new LinkedHashMap<>();
+            ProductRepositoryImpl.PRICE_RANGES.forEach(range -> priceRanges.put(range.getKey(), new RoaringBitmap()));
+            facets.put(PRICE, priceRanges);
+            facets.put(BRAND, new HashMap<>());
+            facets.put(COLOR, new HashMap<>());
+            facets.put(SIZE, new HashMap<>());
+        }
+
+        private void add(String id, Product product) {
+            int ordinal = ordinals.size();
+            ordinals.put(id, ordinal);
+
+            if (product.getPrice() != null) {
+                // The price is mapped as a float, ES compares that value: 99.99 is stored as 99.98999... and is Cheap
+                float price = product.getPrice().floatValue();
+                for (RangeAggregator.Range range : ProductRepositoryImpl.PRICE_RANGES) {
+                    // ES ranges include from and exclude to
+                    if (price >= range.getFrom() && price < range.getTo()) {
+                        facets.get(PRICE).get(range.getKey()).add(ordinal);
+                    }
+                }
+            }
+            if (product.getBrand() != null) {
+                facets.get(BRAND).computeIfAbsent(product.getBrand(), key -> new RoaringBitmap()).add(ordinal);
+            }
+            if (product.getSkus() != null) {
+                for (Sku sku : product.getSkus()) {
+                    if (sku.getColor() != null) {
+                        facets.get(COLOR).computeIfAbsent(sku.getColor().toLowerCase(Locale.ROOT), key -> new RoaringBitmap()).add(ordinal);
+                    }
+                    if (sku.getSize() != null) {
+                        facets.get(SIZE).computeIfAbsent(sku.getSize().toLowerCase(Locale.ROOT), key -> new RoaringBitmap()).add(ordinal);
+                    }
+                }
+            }
+        }
+
+        private void optimize() {
+            facets.values().forEach(values -> values.values().forEach(RoaringBitmap::runOptimize));
+        }
+
+        public String getIndexName() {
+            return indexName;
+        }
+
+        /**
+         * @return the ordinals of the given products, or null when some of them are not in this index
+         */
+        public RoaringBitmap toBitmap(Collection<String> ids) {
+            RoaringBitmap result = new RoaringBitmap();
+            for (String id : ids) {
+                Integer ordinal = ordinals.get(id);
+                if (ordinal == null) {
+                    return null;
+                }
+                result.add(ordinal);
+            }
+            return result;
+        }
+
+        /**
+         * Counts every facet over the matching products narrowed by the selections of the other facets,
+         * which gives the same multi-select counts as the filtered ES aggregations.
+         *
+         * @param selections selected keys per facet, already normalized like the index keys
+         * @return facet name -> key -> count, non-zero counts only except for the price ranges
+         */
+        public Map<String, Map<String, Long>> count(RoaringBitmap matches, Map<String, Collection<String>> selections) {
+            Map<String, RoaringBitmap> selected = new HashMap<>();
+            selections.forEach((facet, keys) -> {
+                Map<String, RoaringBitmap> values = facets.get(facet);
+                if (values != null && !keys.isEmpty()) {
+                    RoaringBitmap union = new RoaringBitmap();
+                    keys.stream().map(values::get).filter(bitmap -> bitmap != null).forEach(union::or);
+                    selected.put(facet, union);
+                }
+            });
+
+            Map<String, Map<String, Long>> result = new LinkedHashMap<>();
+            facets.forEach((facet, values) -> {
+                RoaringBitmap base = matches;
+                for (Map.Entry<String, RoaringBitmap> selection : selected.entrySet()) {
+                    if (!selection.getKey().equals(facet)) {
+                        base = RoaringBitmap.and(base, selection.getValue());
+                    }
+                }
+
+                Map<String, Long> counts = PRICE.equals(facet) ? new LinkedHashMap<>() : new HashMap<>();
+                for (Map.Entry<String, RoaringBitmap> value : values.entrySet()) {
+                    long count = RoaringBitmap.andCardinality(base, value.getValue());
+                    if (count > 0 || PRICE.equals(facet)) {
+                        counts.put(value.getKey(), count);
+                    }
+                }
+                result.put(facet, PRICE.equals(facet) ? counts : sortByCount(counts));
+            });
+            return result;
+        }
+
+        // Same bucket order as the terms aggregations: count desc, then key asc
+        static Map<String, Long> sortByCount(Map<String, Long> counts) {
+            List<Map.Entry<String, Long>> entries = new ArrayList<>(counts.entrySet());
+            entries.sort(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder())
+                    .thenComparing(Map.Entry.comparingByKey()));
+            Map<String, Long> sorted = new LinkedHashMap<>();
+            entries.forEach(entry -> sorted.put(entry.getKey(), entry.getValue()));
+            return sorted;
+        }
+    }
+}
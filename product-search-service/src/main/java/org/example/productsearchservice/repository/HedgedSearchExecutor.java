@@ -0,0 +1,211 @@
+package org.example.productsearchservice.repository;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.example.productsearchservice.model.ProductHedgingStats;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs searches with optional hedging: when ES has not answered within a percentile of the recent
+ * latencies, the same request is sent again with a random {@code preference}, so it is likely routed
+ * to other shard copies, and the first response wins. Hedges are paid from a budget that grows by
+ * {@code budgetPercent} of a request with every search, which caps the extra load on the cluster.
+ * The client can not abort an async request, so the losing response is simply dropped.
+ * <p>
+ * A hedge only helps when another copy of the shards exists: hedging is skipped while the index behind
+ * the alias has no started replica, as with one node or {@code number_of_replicas: 0}.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class HedgedSearchExecutor {
+
+    private static final double MAX_BUDGET = 10.0;
+
+    private final RestHighLevelClient esClient;
+
+    private final AtomicLong searchCount = new AtomicLong();
+    private final AtomicLong hedgeCount = new AtomicLong();
+    private final AtomicLong hedgeWinCount = new AtomicLong();
+
+    @Value("${product.search.index}")
+    private String aliasName;
+    @Value("${product.search.hedging.enabled:false}")
+    private boolean enabled;
+    @Value("${product.search.hedging.percentile:95}")
+    private double percentile;
+    @Value("${product.search.hedging.minDelayMs:20}")
+    private long minDelayMs;
+    @Value("${product.search.hedging.windowSize:1000}")
+    private int windowSize;
+    @Value("${product.search.hedging.minSamples:100}")
+    private int minSamples;
+    @Value("${product.search.hedging.budgetPercent:5}")
+    private double budgetPercent;
+
+    // Ring of recent search latencies and the hedge delay derived from them
+    private long[] latencies;
+    private int latencyCount;
+    private int nextLatency;
+    private volatile long hedgeDelayMillis = -1;
+    private double budget;
+    // Whether the index has a shard copy a hedge could be routed to, checked with the index version
+    private volatile boolean replicated;
+
+    public SearchResponse search(SearchRequest searchRequest) throws IOException {
+        if (!enabled || !replicated) {
+            return esClient.search(searchRequest, RequestOptions.DEFAULT);
+        }
+        searchCount.incrementAndGet();
+
+        CompletableFuture<SearchResponse> result = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(1);
+        esClient.searchAsync(searchRequest, RequestOptions.DEFAULT, listener(result, pending, false));
+
+        long delayMillis = hedgeDelayMillis;
+        accrueBudget();
+        try {
+            if (delayMillis < 0) {
+                return result.get();
+            }
+            try {
+                return result.get(delayMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                if (!acquireBudget()) {
+                    return result.get();
+                }
+                // The primary may have failed since the timeout, its failure is the result then
+                if (!addAttempt(pending)) {
+                    refundBudget();
+                    return result.get();
+                }
+                SearchRequest hedgeRequest = new SearchRequest(searchRequest)
+                        .preference(UUID.randomUUID().toString());
+                hedgeCount.incrementAndGet();
+                esClient.searchAsync(hedgeRequest, RequestOptions.DEFAULT, listener(result, pending, true));
+                return result.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Search has been interrupted", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${product.search.indexVersionCheckIntervalMs:30000}")
+    public void refreshReplicas() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            ClusterHealthResponse health = esClient.cluster().health(new ClusterHealthRequest(aliasName), RequestOptions.DEFAULT);
+            boolean hasReplicas = health.getActiveShards() > health.getActivePrimaryShards();
+            if (hasReplicas != replicated) {
+                log.info("Hedging is {}: {} active shards for {} primaries behind {}", hasReplicas ? "active" : "skipped",
+                        health.getActiveShards(), health.getActivePrimaryShards(), aliasName);
+                replicated = hasReplicas;
+            }
+        } catch (IOException | ElasticsearchException ex) {
+            log.warn("Can not check the shard copies behind {}: {}", aliasName, ex.getMessage());
+        }
+    }
+
+    public synchronized ProductHedgingStats getStats() {
+        long searches = searchCount.get();
+        long hedges = hedgeCount.get();
+        long wins = hedgeWinCount.get();
+        return new ProductHedgingStats(enabled, replicated, searches, hedges, wins,
+                searches == 0 ? 0 : (double) hedges / searches,
+                hedges == 0 ? 0 : (double) wins / hedges,
+                hedgeDelayMillis, budget);
+    }
+
+    private ActionListener<SearchResponse> listener(CompletableFuture<SearchResponse> result, AtomicInteger pending,
+                                                    boolean hedge) {
+        long startNanos = System.nanoTime();
+        return new ActionListener<SearchResponse>() {
+            @Override
+            public void onResponse(SearchResponse response) {
+                recordLatency(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                if (result.complete(response) && hedge) {
+                    hedgeWinCount.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void onFailure(Exception ex) {
+                // A failed attempt only fails the search when no other attempt can still answer
+                if (pending.decrementAndGet() == 0) {
+                    result.completeExceptionally(ex);
+                } else {
+                    log.debug("{} search attempt failed: {}", hedge ? "Hedged" : "Primary", ex.getMessage());
+                }
+            }
+        };
+    }
+
+    // Counts one more attempt unless every attempt has failed already and the result is complete
+    private static boolean addAttempt(AtomicInteger pending) {
+        return pending.getAndUpdate(count -> count == 0 ? 0 : count + 1) > 0;
+    }
+
+    private synchronized void accrueBudget() {
+        budget = Math.min(MAX_BUDGET, budget + budgetPercent / 100.0);
+    }
+
+    private synchronized boolean acquireBudget() {
+        if (budget < 1.0) {
+            return false;
+        }
+        budget -= 1.0;
+        return true;
+    }
+
+    private synchronized void refundBudget() {
+        budget += 1.0;
+    }
+
+    private synchronized void recordLatency(long millis) {
+        if (latencies == null) {
+            latencies = new long[windowSize];
+        }
+        latencies[nextLatency] = millis;
+        nextLatency = (nextLatency + 1) % latencies.length;
+        latencyCount = Math.min(latencyCount + 1, latencies.length);
+
+        // The percentile is refreshed every tenth of the window rather than on every search
+        if (latencyCount >= minSamples && nextLatency % Math.max(1, latencies.length / 10) == 0) {
+            long[] sorted = Arrays.copyOf(latencies, latencyCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile / 100.0 * sorted.length) - 1);
+            hedgeDelayMillis = Math.max(minDelayMs, sorted[Math.max(0, index)]);
+        }
+    }
+}
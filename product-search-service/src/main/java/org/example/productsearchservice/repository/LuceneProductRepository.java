@@ -0,0 +1,847 @@
+package org.example.productsearchservice.repository;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.LowerCaseFilterFactory;
+import org.apache.lucene.analysis.custom.CustomAnalyzer;
+import org.apache.lucene.analysis.miscellaneous.ASCIIFoldingFilterFactory;
+import org.apache.lucene.analysis.standard.StandardTokenizerFactory;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.OrdinalMap;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorable;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.join.BitSetProducer;
+import org.apache.lucene.search.join.QueryBitSetProducer;
+import org.apache.lucene.search.join.ToParentBlockJoinQuery;
+import org.apache.lucene.search.similarities.BooleanSimilarity;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.LongValues;
+import org.apache.lucene.util.packed.PackedInts;
+import org.elasticsearch.search.aggregations.bucket.range.RangeAggregator;
+import org.example.productsearchservice.model.Product;
+import org.example.productsearchservice.model.ProductAggregationDto;
+import org.example.productsearchservice.model.ProductFacetPage;
+import org.example.productsearchservice.model.ProductFacetRequest;
+import org.example.productsearchservice.model.ProductRequest;
+import org.example.productsearchservice.model.ProductServiceResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Repository;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.example.productsearchservice.repository.BitmapFacetEngine.BRAND;
+import static org.example.productsearchservice.repository.BitmapFacetEngine.COLOR;
+import static org.example.productsearchservice.repository.BitmapFacetEngine.PRICE;
+import static org.example.productsearchservice.repository.BitmapFacetEngine.SIZE;
+
+/**
+ * Serves products from the embedded Lucene index product-indexer builds next to every ES index,
+ * so a single box can search without a cluster. The newest index directory is memory-mapped and
+ * reopened when a newer one appears.
+ * <p>
+ * The queries mirror {@link ProductRepositoryImpl}: cross_fields AND over name and brand with the boolean
+ * similarity, the phrase boost on the shingles fields, SKU attributes as a block join to the SKU documents.
+ * Hits and facet counts come out of one pass: facets are counted by the ordinals of their doc values, each against
+ * the selections of the others as the filtered ES aggregations do, and only the page of hits is collected in order.
+ * Values are turned into strings for the returned hits and buckets only.
+ */
+@Repository
+@Slf4j
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "product.search.engine", havingValue = LuceneProductRepository.ENGINE)
+public class LuceneProductRepository implements ProductRepository {
+
+    static final String ENGINE = "lucene";
+
+    // Fields written by ProductLuceneIndexWriter of product-indexer
+    private static final String TYPE_FIELD = "type";
+    private static final String PRODUCT_TYPE = "product";
+    private static final String ID_FIELD = "id";
+    private static final String NAME_FIELD = "name";
+    private static final String NAME_SHINGLE = "name.shingles";
+    private static final String BRAND_FIELD = "brand";
+    private static final String BRAND_SHINGLE = "brand.shingles";
+    private static final String BRAND_KEYWORD_FIELD = "brand.keyword";
+    private static final String PRICE_FIELD = "price";
+    private static final String SKU_COLOR = "skus.color";
+    private static final String SKU_SIZE = "skus.size";
+    private static final String SKU_COLORS_FIELD = "sku_colors";
+    private static final String SKU_SIZES_FIELD = "sku_sizes";
+    private static final String SOURCE_FIELD = "_source";
+    private static final Set<String> SOURCE_FIELDS = Collections.singleton(SOURCE_FIELD);
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final float SHINGLE_BOOST = 5;
+    private static final List<String> FACETS = Arrays.asList(PRICE, BRAND, COLOR, SIZE);
+    // Score desc, then id desc, the tie-break of the ES search
+    private static final Sort HIT_SORT = new Sort(SortField.FIELD_SCORE, new SortField(ID_FIELD, SortField.Type.STRING, true));
+
+    private final ProductIndexVersionTracker indexVersionTracker;
+
+    @Value("${product.search.index}")
+    private String aliasName;
+    @Value("${product.search.lucene.dir:data/lucene}")
+    private String directory;
+    @Value("${product.search.facets.topSize:10}")
+    private int facetTopSize;
+    @Value("${product.search.hits.onlyMatchingSkus:false}")
+    private boolean onlyMatchingSkus;
+    @Value("${product.search.export.batchSize:500}")
+    private int exportBatchSize;
+
+    private Analyzer textAnalyzer;
+    private volatile LuceneIndex current;
+
+    @PostConstruct
+    public void init() throws IOException {
+        // text_analyzer of settings.json; query shingles are built from its tokens, see createShingleBoostQuery
+        textAnalyzer = CustomAnalyzer.builder()
+                .withTokenizer(StandardTokenizerFactory.class)
+                .addTokenFilter(LowerCaseFilterFactory.class)
+                .addTokenFilter(ASCIIFoldingFilterFactory.class)
+                .build();
+        refresh();
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (current != null) {
+            current.reader.decRef();
+            current = null;
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${product.search.indexVersionCheckIntervalMs:30000}")
+    public synchronized void refresh() {
+        String latest = findLatestIndex();
+        LuceneIndex previous = current;
+        if (latest == null || (previous != null && latest.equals(previous.indexName))) {
+            return;
+        }
+
+        try {
+            current = open(latest);
+            log.info("Lucene index {} with {} products has been opened", latest, current.reader.numDocs());
+            if (previous != null) {
+                // Searches still holding the previous reader keep it open until they release it
+                previous.reader.decRef();
+            }
+            indexVersionTracker.update(latest);
+        } catch (IOException ex) {
+            log.error("Can not open Lucene index " + latest, ex);
+        }
+    }
+
+    private String findLatestIndex() {
+        Path root = Paths.get(directory);
+        if (!Files.isDirectory(root)) {
+            return null;
+        }
+        // Timestamped names sort by age, indices still being built keep the temporary suffix
+        try (Stream<Path> indices = Files.list(root)) {
+            return indices
+                    .filter(Files::isDirectory)
+                    .map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(aliasName + "_") && !name.endsWith(TEMP_SUFFIX))
+                    .max(Comparator.naturalOrder())
+                    .orElse(null);
+        } catch (IOException ex) {
+            log.warn("Can not list Lucene indices in {}: {}", root, ex.getMessage());
+            return null;
+        }
+    }
+
+    private LuceneIndex open(String indexName) throws IOException {
+        MMapDirectory indexDirectory = new MMapDirectory(Paths.get(directory, indexName));
+        DirectoryReader reader = DirectoryReader.open(indexDirectory);
+        reader.getReaderCacheHelper().addClosedListener(key -> indexDirectory.close());
+
+        IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(new BooleanSimilarity());
+        ProductAttributeExtractor attributeExtractor = new ProductAttributeExtractor(
+                readTerms(reader, SKU_COLOR), readTerms(reader, SKU_SIZE));
+        Map<String, FacetOrdinals> facetOrdinals = new HashMap<>();
+        facetOrdinals.put(BRAND, FacetOrdinals.build(reader, BRAND_KEYWORD_FIELD));
+        facetOrdinals.put(COLOR, FacetOrdinals.build(reader, SKU_COLORS_FIELD));
+        facetOrdinals.put(SIZE, FacetOrdinals.build(reader, SKU_SIZES_FIELD));
+        return new LuceneIndex(indexName, reader, searcher,
+                new QueryBitSetProducer(new TermQuery(new Term(TYPE_FIELD, PRODUCT_TYPE))), attributeExtractor, facetOrdinals);
+    }
+
+    private static List<String> readTerms(IndexReader reader, String field) throws IOException {
+        List<String> values = new ArrayList<>();
+        Terms terms = MultiTerms.getTerms(reader, field);
+        if (terms != null) {
+            TermsEnum termsEnum = terms.iterator();
+            for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+                values.add(term.utf8ToString());
+            }
+        }
+        return values;
+    }
+
+    private LuceneIndex acquire() {
+        while (true) {
+            LuceneIndex index = current;
+            if (index == null) {
+                log.warn("No Lucene product index in {}", directory);
+                return null;
+            }
+            // Fails only when the index has just been replaced and closed, the next read sees the new one
+            if (index.reader.tryIncRef()) {
+                return index;
+            }
+        }
+    }
+
+    private static void release(LuceneIndex index) {
+        try {
+            index.reader.decRef();
+        } catch (IOException ex) {
+            log.warn("Can not close Lucene index {}: {}", index.indexName, ex.getMessage());
+        }
+    }
+
+    @Override
+    public ProductServiceResponse getAllProductsByQuery(ProductRequest request) {
+        LuceneIndex index = acquire();
+        if (index == null) {
+            return new ProductServiceResponse();
+        }
+
+        try {
+            ProductAttributeExtractor.ExtractedAttributes attributes = index.attributeExtractor.extract(request.getTextQuery());
+            Map<String, Collection<String>> selections = ProductRepositoryImpl.normalizeSelections(request.getFilters());
+            int from = request.getPage() * request.getSize();
+            TopFieldCollector topHits = TopFieldCollector.create(HIT_SORT, Math.max(1, from + request.getSize()), Integer.MAX_VALUE);
+            FacetCollector collector = new FacetCollector(index, selections, FACETS, topHits);
+            index.searcher.search(createQuery(index, attributes), collector);
+
+            int[] docs = Arrays.stream(topHits.topDocs(from, request.getSize()).scoreDocs)
+                    .mapToInt(hit -> hit.doc)
+                    .toArray();
+            ProductServiceResponse response = new ProductServiceResponse();
+            response.setTotalHits((long) collector.totalHits);
+            response.setProducts(loadProducts(index, docs, createSkuFilter(attributes)));
+            // One value over the top size tells limitFacets there are more
+            ProductRepositoryImpl.mapLocalFacets(collector.getTopCounts(facetTopSize + 1), response);
+            ProductRepositoryImpl.limitFacets(response, facetTopSize);
+            return response;
+        } catch (IOException ex) {
+            log.error(ex.getMessage(), ex);
+            return new ProductServiceResponse();
+        } finally {
+            release(index);
+        }
+    }
+
+    // Hits and facets come out of the same in-process pass, so there is nothing to report earlier
+    @Override
+    public void streamProductsByQuery(ProductRequest request, ProductSearchListener listener) {
+        ProductServiceResponse response = getAllProductsByQuery(request);
+        listener.onHits(ProductServiceResponse.builder()
+                .totalHits(response.getTotalHits())
+                .products(response.getProducts())
+                .build());
+
+        response.getFacets().forEach((facet, values) -> {
+            ProductServiceResponse facetResponse = new ProductServiceResponse();
+            facetResponse.getFacets().put(facet, values);
+            if (response.getFacetsHasMore() != null && response.getFacetsHasMore().containsKey(facet)) {
+                facetResponse.setFacetsHasMore(Collections.singletonMap(facet, true));
+            }
+            listener.onFacet(facet, facetResponse);
+        });
+        listener.onComplete();
+    }
+
+    @Override
+    public void scrollAllProductsByQuery(ProductRequest request, int slice, int slices, Predicate<List<Product>> batchConsumer) {
+        LuceneIndex index = acquire();
+        if (index == null) {
+            return;
+        }
+
+        try {
+            ProductAttributeExtractor.ExtractedAttributes attributes = index.attributeExtractor.extract(request.getTextQuery());
+            Map<String, Collection<String>> selections = ProductRepositoryImpl.normalizeSelections(request.getFilters());
+            BiPredicate<String, String> skuFilter = createSkuFilter(attributes);
+
+            DocCollector hits = new DocCollector();
+            index.searcher.search(createQuery(index, attributes),
+                    new FacetCollector(index, selections, Collections.emptyList(), hits));
+
+            // Hits come in index order; slices take every n-th of them
+            int step = Math.max(1, slices);
+            int[] sliceDocs = new int[Math.max(0, (hits.size - slice + step - 1) / step)];
+            for (int i = 0; i < sliceDocs.length; i++) {
+                sliceDocs[i] = hits.docs[slice + i * step];
+            }
+
+            for (int from = 0; from < sliceDocs.length; from += exportBatchSize) {
+                int[] batch = Arrays.copyOfRange(sliceDocs, from, Math.min(sliceDocs.length, from + exportBatchSize));
+                if (!batchConsumer.test(loadProducts(index, batch, skuFilter))) {
+                    return;
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to scroll products for: " + request.getTextQuery(), ex);
+        } finally {
+            release(index);
+        }
+    }
+
+    @Override
+    public ProductFacetPage getFacetValues(String facet, ProductFacetRequest request) {
+        if (!BRAND.equals(facet) && !COLOR.equals(facet) && !SIZE.equals(facet)) {
+            throw new UnknownFacetException(facet);
+        }
+        LuceneIndex index = acquire();
+        if (index == null) {
+            return ProductFacetPage.builder()
+                    .facet(facet)
+                    .values(Collections.emptyList())
+                    .build();
+        }
+
+        try {
+            ProductAttributeExtractor.ExtractedAttributes attributes = index.attributeExtractor.extract(request.getTextQuery());
+            Map<String, Collection<String>> selections = ProductRepositoryImpl.normalizeSelections(request.getFilters());
+
+            FacetCollector collector = new FacetCollector(index, selections, Collections.singletonList(facet), null);
+            index.searcher.search(createQuery(index, attributes), collector);
+
+            // Key order, as the composite aggregation pages the values
+            Map<String, Long> page = collector.getCountsAfter(facet, request.getAfter(), request.getSize());
+            Function<String, String> valueFormatter = ProductRepositoryImpl.getFacetValueFormatter(facet);
+            List<ProductAggregationDto> values = page.entrySet().stream()
+                    .map(entry -> ProductAggregationDto.builder()
+                            .count(entry.getValue())
+                            .value(valueFormatter.apply(entry.getKey()))
+                            .build())
+                    .collect(Collectors.toList());
+            String after = values.size() == request.getSize()
+                    ? page.keySet().stream().skip(request.getSize() - 1).findFirst().orElse(null)
+                    : null;
+
+            return ProductFacetPage.builder()
+                    .facet(facet)
+                    .values(values)
+                    .after(after)
+                    .build();
+        } catch (IOException ex) {
+            throw new RuntimeException("Can not load values of facet " + facet, ex);
+        } finally {
+            release(index);
+        }
+    }
+
+    private Query createQuery(LuceneIndex index, ProductAttributeExtractor.ExtractedAttributes attributes) throws IOException {
+        // SKU documents share the index with the products, so only products may match
+        BooleanQuery.Builder query = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term(TYPE_FIELD, PRODUCT_TYPE)), BooleanClause.Occur.FILTER);
+
+        // Color and size have to match the same SKU, as within the ES nested query
+        if (attributes.hasSkuConstraints()) {
+            BooleanQuery.Builder skuQuery = new BooleanQuery.Builder();
+            if (!attributes.getColors().isEmpty()) {
+                skuQuery.add(createTermsQuery(SKU_COLOR, attributes.getColors()), BooleanClause.Occur.FILTER);
+            }
+            if (!attributes.getSizes().isEmpty()) {
+                skuQuery.add(createTermsQuery(SKU_SIZE, attributes.getSizes()), BooleanClause.Occur.FILTER);
+            }
+            query.add(new ToParentBlockJoinQuery(skuQuery.build(), index.parentsFilter,
+                    org.apache.lucene.search.join.ScoreMode.None), BooleanClause.Occur.FILTER);
+        }
+
+        // cross_fields with AND: every term has to be in name or brand and scores once, for the best field
+        List<String> tokens = analyze(String.join(" ", attributes.getGeneralTokens()));
+        for (String token : tokens) {
+            query.add(new DisjunctionMaxQuery(Arrays.asList(
+                    new TermQuery(new Term(NAME_FIELD, token)),
+                    new TermQuery(new Term(BRAND_FIELD, token))), 0), BooleanClause.Occur.MUST);
+        }
+
+        Query shingleBoostQuery = createShingleBoostQuery(tokens);
+        if (shingleBoostQuery != null) {
+            query.add(shingleBoostQuery, BooleanClause.Occur.SHOULD);
+        }
+        return query.build();
+    }
+
+    /**
+     * The ES phrase over the shingles fields matches when the query words follow each other in the field.
+     * Here the query bigrams, which are the shingles the index has at every position, are chained at
+     * consecutive positions for the same effect. A single word has no shingles and gets no boost, as in ES.
+     */
+    private static Query createShingleBoostQuery(List<String> tokens) {
+        if (tokens.size() < 2) {
+            return null;
+        }
+
+        List<Query> fieldQueries = new ArrayList<>();
+        for (String field : new String[]{NAME_SHINGLE, BRAND_SHINGLE}) {
+            PhraseQuery.Builder phrase = new PhraseQuery.Builder();
+            for (int i = 0; i + 1 < tokens.size(); i++) {
+                phrase.add(new Term(field, tokens.get(i) + " " + tokens.get(i + 1)), i);
+            }
+            fieldQueries.add(phrase.build());
+        }
+        return new BoostQuery(new DisjunctionMaxQuery(fieldQueries, 0), SHINGLE_BOOST);
+    }
+
+    private static Query createTermsQuery(String field, Collection<String> values) {
+        return new TermInSetQuery(field, values.stream()
+                .map(BytesRef::new)
+                .collect(Collectors.toList()));
+    }
+
+    private List<String> analyze(String text) throws IOException {
+        List<String> tokens = new ArrayList<>();
+        try (TokenStream stream = textAnalyzer.tokenStream(NAME_FIELD, text)) {
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                tokens.add(term.toString());
+            }
+            stream.end();
+        }
+        return tokens;
+    }
+
+    // The sources are written along with the index, one that can not be decoded fails the request like a broken index
+    private static List<Product> loadProducts(LuceneIndex index, int[] docs,
+                                              BiPredicate<String, String> skuFilter) throws IOException {
+        List<Product> products = new ArrayList<>(docs.length);
+        for (int doc : docs) {
+            Document document = index.searcher.doc(doc, SOURCE_FIELDS);
+            BytesRef source = document.getBinaryValue(SOURCE_FIELD);
+            products.add(ProductHitDecoder.decode(source.bytes, source.offset, source.length, skuFilter));
+        }
+        return products;
+    }
+
+    private BiPredicate<String, String> createSkuFilter(ProductAttributeExtractor.ExtractedAttributes attributes) {
+        if (!onlyMatchingSkus || !attributes.hasSkuConstraints()) {
+            return ProductHitDecoder.ALL_SKUS;
+        }
+
+        Set<String> colors = attributes.getColors();
+        Set<String> sizes = attributes.getSizes();
+        return (color, size) -> (colors.isEmpty() || (color != null && colors.contains(color.toLowerCase())))
+                && (sizes.isEmpty() || (size != null && sizes.contains(size.toLowerCase())));
+    }
+
+    private static final class LuceneIndex {
+        private final String indexName;
+        private final DirectoryReader reader;
+        private final IndexSearcher searcher;
+        private final BitSetProducer parentsFilter;
+        private final ProductAttributeExtractor attributeExtractor;
+        private final Map<String, FacetOrdinals> facetOrdinals;
+
+        private LuceneIndex(String indexName, DirectoryReader reader, IndexSearcher searcher, BitSetProducer parentsFilter,
+                            ProductAttributeExtractor attributeExtractor, Map<String, FacetOrdinals> facetOrdinals) {
+            this.indexName = indexName;
+            this.reader = reader;
+            this.searcher = searcher;
+            this.parentsFilter = parentsFilter;
+            this.attributeExtractor = attributeExtractor;
+            this.facetOrdinals = facetOrdinals;
+        }
+    }
+
+    /**
+     * Values of a facet numbered across the segments in key order, as the global ordinals of ES. Counts are kept
+     * by these numbers and only the values returned are looked up.
+     */
+    private static final class FacetOrdinals {
+        private final String field;
+        private final List<LeafReaderContext> leaves;
+        // Null with a single segment, whose ordinals are global already
+        private final OrdinalMap ordinalMap;
+        private final long valueCount;
+
+        private FacetOrdinals(String field, List<LeafReaderContext> leaves, OrdinalMap ordinalMap, long valueCount) {
+            this.field = field;
+            this.leaves = leaves;
+            this.ordinalMap = ordinalMap;
+            this.valueCount = valueCount;
+        }
+
+        private static FacetOrdinals build(IndexReader reader, String field) throws IOException {
+            List<LeafReaderContext> leaves = reader.leaves();
+            if (leaves.size() == 1) {
+                return new FacetOrdinals(field, leaves, null, DocValues.getSortedSet(leaves.get(0).reader(), field).getValueCount());
+            }
+
+            SortedSetDocValues[] values = new SortedSetDocValues[leaves.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = DocValues.getSortedSet(leaves.get(i).reader(), field);
+            }
+            OrdinalMap ordinalMap = OrdinalMap.build(reader.getReaderCacheHelper().getKey(), values, PackedInts.DEFAULT);
+            return new FacetOrdinals(field, leaves, ordinalMap, ordinalMap.getValueCount());
+        }
+
+        private LongValues getGlobalOrds(int leaf) {
+            return ordinalMap != null ? ordinalMap.getGlobalOrds(leaf) : LongValues.IDENTITY;
+        }
+
+        private String lookup(long ord) throws IOException {
+            int leaf = ordinalMap != null ? ordinalMap.getFirstSegmentNumber(ord) : 0;
+            long leafOrd = ordinalMap != null ? ordinalMap.getFirstSegmentOrd(ord) : ord;
+            return DocValues.getSortedSet(leaves.get(leaf).reader(), field).lookupOrd(leafOrd).utf8ToString();
+        }
+
+        /**
+         * @return ordinal of the first value after the key, the value count when there is none
+         */
+        private long getFirstOrdAfter(String key) throws IOException {
+            BytesRef term = new BytesRef(key);
+            long first = valueCount;
+            for (LeafReaderContext leaf : leaves) {
+                SortedSetDocValues values = DocValues.getSortedSet(leaf.reader(), field);
+                long ord = values.lookupTerm(term);
+                long next = ord >= 0 ? ord + 1 : -ord - 1;
+                if (next < values.getValueCount()) {
+                    first = Math.min(first, getGlobalOrds(leaf.ord).get(next));
+                }
+            }
+            return first;
+        }
+    }
+
+    /**
+     * Passes the products that match every facet selection on to the hits collector and counts the facets.
+     * A product missing the selection of one facet only is still counted in that facet, so each facet is counted
+     * against the selections of the others.
+     */
+    private static final class FacetCollector implements Collector {
+        private final LuceneIndex index;
+        private final Map<String, Collection<String>> selections;
+        private final Collector hits;
+        private final Map<String, long[]> counts = new LinkedHashMap<>();
+        private int totalHits;
+
+        /**
+         * @param countedFacets facets to count, in the order they are returned
+         * @param hits          collector of the products that match every selection, null when only counting
+         */
+        private FacetCollector(LuceneIndex index, Map<String, Collection<String>> selections,
+                               List<String> countedFacets, Collector hits) {
+            this.index = index;
+            this.selections = selections;
+            this.hits = hits;
+            for (String facet : countedFacets) {
+                counts.put(facet, new long[PRICE.equals(facet)
+                        ? ProductRepositoryImpl.PRICE_RANGES.size()
+                        : Math.toIntExact(index.facetOrdinals.get(facet).valueCount)]);
+            }
+        }
+
+        @Override
+        public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+            LeafCollector hitsCollector = hits != null ? hits.getLeafCollector(context) : null;
+            List<LeafFacet> facets = new ArrayList<>();
+            for (String facet : FACETS) {
+                Collection<String> selection = selections.get(facet);
+                long[] facetCounts = counts.get(facet);
+                if (selection == null && facetCounts == null) {
+                    continue;
+                }
+                facets.add(PRICE.equals(facet)
+                        ? new PriceLeafFacet(context, selection, facetCounts)
+                        : new OrdinalLeafFacet(index.facetOrdinals.get(facet), context, selection, facetCounts));
+            }
+
+            return new LeafCollector() {
+                @Override
+                public void setScorer(Scorable scorer) throws IOException {
+                    if (hitsCollector != null) {
+                        hitsCollector.setScorer(scorer);
+                    }
+                }
+
+                @Override
+                public void collect(int doc) throws IOException {
+                    LeafFacet missed = null;
+                    for (LeafFacet facet : facets) {
+                        facet.read(doc);
+                        if (!facet.isSelected()) {
+                            if (missed != null) {
+                                return;
+                            }
+                            missed = facet;
+                        }
+                    }
+
+                    if (missed != null) {
+                        missed.count();
+                        return;
+                    }
+                    totalHits++;
+                    if (hitsCollector != null) {
+                        hitsCollector.collect(doc);
+                    }
+                    for (LeafFacet facet : facets) {
+                        facet.count();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public ScoreMode scoreMode() {
+            return hits != null ? hits.scoreMode() : ScoreMode.COMPLETE_NO_SCORES;
+        }
+
+        /**
+         * @return price ranges in their order, empty ones included, the other facets by count desc, then key asc
+         */
+        private Map<String, Map<String, Long>> getTopCounts(int size) throws IOException {
+            Map<String, Map<String, Long>> result = new LinkedHashMap<>();
+            for (Map.Entry<String, long[]> facet : counts.entrySet()) {
+                long[] facetCounts = facet.getValue();
+                Map<String, Long> values = new LinkedHashMap<>();
+                if (PRICE.equals(facet.getKey())) {
+                    for (int i = 0; i < facetCounts.length; i++) {
+                        values.put(ProductRepositoryImpl.PRICE_RANGES.get(i).getKey(), facetCounts[i]);
+                    }
+                } else {
+                    // Ordinals are in key order, so they break the ties
+                    List<Integer> top = IntStream.range(0, facetCounts.length)
+                            .filter(ord -> facetCounts[ord] > 0)
+                            .boxed()
+                            .sorted(Comparator.<Integer>comparingLong(ord -> -facetCounts[ord]).thenComparing(Comparator.naturalOrder()))
+                            .limit(size)
+                            .collect(Collectors.toList());
+                    FacetOrdinals ordinals = index.facetOrdinals.get(facet.getKey());
+                    for (int ord : top) {
+                        values.put(ordinals.lookup(ord), facetCounts[ord]);
+                    }
+                }
+                result.put(facet.getKey(), values);
+            }
+            return result;
+        }
+
+        /**
+         * @param after key the page starts after, null for the first page
+         * @return counted values of the facet in key order
+         */
+        private Map<String, Long> getCountsAfter(String facet, String after, int size) throws IOException {
+            long[] facetCounts = counts.get(facet);
+            FacetOrdinals ordinals = index.facetOrdinals.get(facet);
+            Map<String, Long> page = new LinkedHashMap<>();
+            for (long ord = after != null ? ordinals.getFirstOrdAfter(after) : 0; ord < facetCounts.length && page.size() < size; ord++) {
+                if (facetCounts[(int) ord] > 0) {
+                    page.put(ordinals.lookup(ord), facetCounts[(int) ord]);
+                }
+            }
+            return page;
+        }
+    }
+
+    // Facet values of the current product in one segment
+    private abstract static class LeafFacet {
+
+        abstract void read(int doc) throws IOException;
+
+        // Whether the product matches the selection of the facet, true when nothing is selected
+        abstract boolean isSelected();
+
+        abstract void count();
+    }
+
+    private static final class OrdinalLeafFacet extends LeafFacet {
+        private final SortedSetDocValues values;
+        private final LongValues globalOrds;
+        // Segment ordinals of the selected values, null when nothing is selected
+        private final FixedBitSet selected;
+        private final long[] counts;
+        private long[] ords = new long[8];
+        private int ordCount;
+
+        private OrdinalLeafFacet(FacetOrdinals ordinals, LeafReaderContext context,
+                                 Collection<String> selection, long[] counts) throws IOException {
+            this.values = DocValues.getSortedSet(context.reader(), ordinals.field);
+            this.globalOrds = ordinals.getGlobalOrds(context.ord);
+            this.counts = counts;
+            if (selection == null) {
+                this.selected = null;
+                return;
+            }
+
+            this.selected = new FixedBitSet(Math.toIntExact(values.getValueCount()));
+            for (String value : selection) {
+                long ord = values.lookupTerm(new BytesRef(value));
+                if (ord >= 0) {
+                    selected.set((int) ord);
+                }
+            }
+        }
+
+        @Override
+        void read(int doc) throws IOException {
+            ordCount = 0;
+            if (!values.advanceExact(doc)) {
+                return;
+            }
+            for (long ord = values.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = values.nextOrd()) {
+                ords = ArrayUtil.grow(ords, ordCount + 1);
+                ords[ordCount++] = ord;
+            }
+        }
+
+        @Override
+        boolean isSelected() {
+            if (selected == null) {
+                return true;
+            }
+            for (int i = 0; i < ordCount; i++) {
+                if (selected.get((int) ords[i])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        void count() {
+            if (counts == null) {
+                return;
+            }
+            for (int i = 0; i < ordCount; i++) {
+                counts[(int) globalOrds.get(ords[i])]++;
+            }
+        }
+    }
+
+    private static final class PriceLeafFacet extends LeafFacet {
+        private final NumericDocValues prices;
+        // Selected ranges by their position in PRICE_RANGES, null when nothing is selected
+        private final boolean[] selected;
+        private final long[] counts;
+        private int range;
+
+        private PriceLeafFacet(LeafReaderContext context, Collection<String> selection, long[] counts) throws IOException {
+            this.prices = DocValues.getNumeric(context.reader(), PRICE_FIELD);
+            this.counts = counts;
+            if (selection == null) {
+                this.selected = null;
+                return;
+            }
+
+            this.selected = new boolean[ProductRepositoryImpl.PRICE_RANGES.size()];
+            for (int i = 0; i < selected.length; i++) {
+                selected[i] = selection.contains(ProductRepositoryImpl.PRICE_RANGES.get(i).getKey());
+            }
+        }
+
+        @Override
+        void read(int doc) throws IOException {
+            range = -1;
+            if (!prices.advanceExact(doc)) {
+                return;
+            }
+            float price = Float.intBitsToFloat((int) prices.longValue());
+            // ES ranges include from and exclude to
+            for (int i = 0; i < ProductRepositoryImpl.PRICE_RANGES.size(); i++) {
+                RangeAggregator.Range priceRange = ProductRepositoryImpl.PRICE_RANGES.get(i);
+                if (price >= priceRange.getFrom() && price < priceRange.getTo()) {
+                    range = i;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        boolean isSelected() {
+            return selected == null || (range >= 0 && selected[range]);
+        }
+
+        @Override
+        void count() {
+            if (counts != null && range >= 0) {
+                counts[range]++;
+            }
+        }
+    }
+
+    // Ids of the hit documents in index order
+    private static final class DocCollector extends SimpleCollector {
+        private int[] docs = new int[16];
+        private int size;
+        private int docBase;
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) {
+            docBase = context.docBase;
+        }
+
+        @Override
+        public void collect(int doc) {
+            docs = ArrayUtil.grow(docs, size + 1);
+            docs[size++] = docBase + doc;
+        }
+
+        @Override
+        public ScoreMode scoreMode() {
+            return ScoreMode.COMPLETE_NO_SCORES;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.example.productsearchservice.repository;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Recognizes SKU attribute values (colors and sizes) in a product query.
+ * <p>
+ * The dictionary is compiled into a token trie, so a query is matched in a single
+ * left-to-right pass: at every position the longest known (possibly multi-word)
+ * value wins, and tokens that start no value are kept as general query text.
+ */
+public class ProductAttributeExtractor {
+
+    public static final ProductAttributeExtractor EMPTY =
+            new ProductAttributeExtractor(Collections.emptyList(), Collections.emptyList());
+
+    private static final String COLOR = "color";
+    private static final String SIZE = "size";
+
+    private final TrieNode root = new TrieNode();
+
+    public ProductAttributeExtractor(Collection<String> colors, Collection<String> sizes) {
+        colors.forEach(color -> add(COLOR, color));
+        sizes.forEach(size -> add(SIZE, size));
+    }
+
+    public ExtractedAttributes extract(String textQuery) {
+        String[] tokens = tokenize(textQuery);
+        ExtractedAttributes result = new ExtractedAttributes();
+
+        int i = 0;
+        while (i < tokens.length) {
+            TrieNode node = root;
+            TrieNode longestMatch = null;
+            int longestMatchEnd = i;
+            for (int j = i; j < tokens.length; j++) {
+                node = node.children.get(tokens[j]);
+                if (node == null) {
+                    break;
+                }
+                if (node.attribute != null) {
+                    longestMatch = node;
+                    longestMatchEnd = j + 1;
+                }
+            }
+
+            if (longestMatch == null) {
+                result.generalTokens.add(tokens[i]);
+                i++;
+            } else {
+                (COLOR.equals(longestMatch.attribute) ? result.colors : result.sizes).add(longestMatch.value);
+                i = longestMatchEnd;
+            }
+        }
+        return result;
+    }
+
+    private void add(String attribute, String value) {
+        String[] tokens = tokenize(value);
+        if (tokens.length == 0) {
+            return;
+        }
+
+        TrieNode node = root;
+        for (String token : tokens) {
+            node = node.children.computeIfAbsent(token, key -> new TrieNode());
+        }
+        node.attribute = attribute;
+        node.value = String.join(" ", tokens);
+    }
+
+    private static String[] tokenize(String text) {
+        String trimmed = text == null ? "" : text.trim().toLowerCase();
+        return trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+");
+    }
+
+    private static class TrieNode {
+        private final Map<String, TrieNode> children = new HashMap<>();
+        private String attribute;
+        private String value;
+    }
+
+    @Getter
+    public static class ExtractedAttributes {
+        private final Set<String> colors = new LinkedHashSet<>();
+        private final Set<String> sizes = new LinkedHashSet<>();
+        private final List<String> generalTokens = new ArrayList<>();
+
+        public boolean hasSkuConstraints() {
+            return !colors.isEmpty() || !sizes.isEmpty();
+        }
+    }
+}
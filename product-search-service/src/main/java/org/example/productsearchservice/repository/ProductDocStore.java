@@ -0,0 +1,159 @@
+package org.example.productsearchservice.repository;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Read side of the document store written by product-indexer for every timestamped index.
+ * The file of the index behind the alias is memory-mapped, so documents stay off-heap and only
+ * the id to offset map lives on the heap. A store is used for hits of its own index only.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class ProductDocStore {
+
+    private static final String FILE_SUFFIX = ".docs";
+    private static final int MAGIC = 0x50445331;
+    private static final int FOOTER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    private final ProductIndexVersionTracker indexVersionTracker;
+    private final List<Consumer<Snapshot>> listeners = new CopyOnWriteArrayList<>();
+
+    @Value("${product.search.docStore.enabled:false}")
+    private boolean enabled;
+    @Value("${product.search.docStore.dir:data/docstore}")
+    private String directory;
+
+    private volatile Snapshot current;
+
+    @PostConstruct
+    public void init() {
+        if (enabled) {
+            indexVersionTracker.addListener(this::open);
+        }
+    }
+
+    /**
+     * @return the store of the index behind the alias, or null when there is none
+     */
+    public Snapshot getCurrent() {
+        return current;
+    }
+
+    /**
+     * Registers a listener that gets every newly opened store, or null when the current index has none.
+     */
+    public void addListener(Consumer<Snapshot> listener) {
+        listeners.add(listener);
+    }
+
+    private void open(String indexName) {
+        current = load(indexName);
+        listeners.forEach(listener -> listener.accept(current));
+    }
+
+    private Snapshot load(String indexName) {
+        if (indexName == null) {
+            return null;
+        }
+
+        Path file = Paths.get(directory, indexName + FILE_SUFFIX);
+        if (!Files.exists(file)) {
+            log.warn("No doc store {} for index {}, hits will be fetched from ES", file, indexName);
+            return null;
+        }
+
+        try {
+            Snapshot snapshot = Snapshot.load(indexName, file);
+            log.info("Doc store {} with {} products has been opened", file, snapshot.offsets.size());
+            return snapshot;
+        } catch (IOException | RuntimeException ex) {
+            log.error("Can not open doc store " + file, ex);
+            return null;
+        }
+    }
+
+    public static final class Snapshot {
+        private final String indexName;
+        private final MappedByteBuffer buffer;
+        private final Map<String, Integer> offsets;
+
+        private Snapshot(String indexName, MappedByteBuffer buffer, Map<String, Integer> offsets) {
+            this.indexName = indexName;
+            this.buffer = buffer;
+            this.offsets = offsets;
+        }
+
+        private static Snapshot load(String indexName, Path file) throws IOException {
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+
+            int footer = buffer.limit() - FOOTER_SIZE;
+            if (footer < 0 || buffer.getInt(footer + Integer.BYTES + Long.BYTES) != MAGIC) {
+                throw new IOException("Not a product doc store: " + file);
+            }
+            int count = buffer.getInt(footer);
+            int indexOffset = (int) buffer.getLong(footer + Integer.BYTES);
+
+            Map<String, Integer> offsets = new HashMap<>(count * 4 / 3 + 1);
+            ByteBuffer index = buffer.duplicate();
+            index.position(indexOffset);
+            for (int i = 0; i < count; i++) {
+                byte[] id = new byte[index.getShort() & 0xFFFF];
+                index.get(id);
+                offsets.put(new String(id, StandardCharsets.UTF_8), (int) index.getLong());
+            }
+            return new Snapshot(indexName, buffer, offsets);
+        }
+
+        public String getIndexName() {
+            return indexName;
+        }
+
+        public int size() {
+            return offsets.size();
+        }
+
+        public void forEach(BiConsumer<String, byte[]> consumer) {
+            offsets.keySet().forEach(id -> consumer.accept(id, get(id)));
+        }
+
+        /**
+         * @return the JSON source of the product, or null when the store does not have it
+         */
+        public byte[] get(String id) {
+            Integer offset = offsets.get(id);
+            if (offset == null) {
+                return null;
+            }
+            // A duplicate has its own position, so concurrent reads do not interfere
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            byte[] source = new byte[view.getInt()];
+            view.get(source);
+            return source;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.example.productsearchservice.repository;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.example.productsearchservice.model.Product;
+import org.example.productsearchservice.model.Sku;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiPredicate;
+
+/**
+ * Decodes product documents straight from their raw JSON bytes with a streaming parser,
+ * so no intermediate {@code Map} tree is built per hit. Fields the API does not return
+ * are skipped without being materialized.
+ */
+public final class ProductHitDecoder {
+
+    /**
+     * Keeps every SKU of a product.
+     */
+    public static final BiPredicate<String, String> ALL_SKUS = (color, size) -> true;
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private ProductHitDecoder() {
+    }
+
+    /**
+     * @param source     the {@code _source} bytes of a product document
+     * @param skuFilter  decides by color and size whether a SKU is kept in the result
+     */
+    public static Product decode(BytesReference source, BiPredicate<String, String> skuFilter) throws IOException {
+        BytesRef bytes = source.toBytesRef();
+        return decode(bytes.bytes, bytes.offset, bytes.length, skuFilter);
+    }
+
+    public static Product decode(byte[] bytes, int offset, int length, BiPredicate<String, String> skuFilter) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(bytes, offset, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Product source is not a JSON object");
+            }
+
+            Product product = new Product();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                switch (field) {
+                    case "id":
+                        product.setId(parser.getValueAsString());
+                        break;
+                    case "brand":
+                        product.setBrand(parser.getValueAsString());
+                        break;
+                    case "name":
+                        product.setName(parser.getValueAsString());
+                        break;
+                    case "price":
+                        product.setPrice(token == JsonToken.VALUE_NULL ? null : parser.getValueAsDouble());
+                        break;
+                    case "skus":
+                        product.setSkus(token == JsonToken.START_ARRAY ? decodeSkus(parser, skuFilter) : null);
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            return product;
+        }
+    }
+
+    private static List<Sku> decodeSkus(JsonParser parser, BiPredicate<String, String> skuFilter) throws IOException {
+        List<Sku> skus = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String color = null;
+            String size = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("color".equals(field)) {
+                    color = parser.getValueAsString();
+                } else if ("size".equals(field)) {
+                    size = parser.getValueAsString();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (skuFilter.test(color, size)) {
+                skus.add(new Sku(color, size));
+            }
+        }
+        return skus;
+    }
+}
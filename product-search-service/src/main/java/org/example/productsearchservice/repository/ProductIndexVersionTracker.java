@@ -0,0 +1,126 @@
+package org.example.productsearchservice.repository;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.client.GetAliasesResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.GetMappingsRequest;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Keeps track of the timestamped index the product alias currently points to
+ * and notifies listeners whenever the alias moves to another index.
+ * <p>
+ * Delta runs of the indexer change the index in place and stamp {@code _meta.deltaVersion} in its mapping,
+ * which makes a new version of the same index: listeners are notified and cache keys change as well.
+ * <p>
+ * A listener that throws is notified again on the next poll, along with the others, until all of them succeed.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class ProductIndexVersionTracker {
+
+    private final RestHighLevelClient esClient;
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+    @Value("${product.search.index}")
+    private String aliasName;
+    @Value("${product.search.engine:elasticsearch}")
+    private String engine;
+
+    private static final String DELTA_VERSION_META = "deltaVersion";
+
+    private volatile String currentIndex;
+    private volatile String currentVersion;
+    private volatile boolean listenerFailed;
+
+    public String getCurrentIndex() {
+        return currentIndex;
+    }
+
+    /**
+     * @return the current index, followed by its delta version once a delta has been applied to it
+     */
+    public String getCurrentVersion() {
+        return currentVersion;
+    }
+
+    public void addListener(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    @Scheduled(fixedDelayString = "${product.search.indexVersionCheckIntervalMs:30000}")
+    public void refresh() {
+        // The embedded Lucene index reports its own versions through update()
+        if (LuceneProductRepository.ENGINE.equals(engine)) {
+            return;
+        }
+        try {
+            GetAliasesResponse aliasesResponse = esClient.indices()
+                    .getAlias(new GetAliasesRequest().aliases(aliasName), RequestOptions.DEFAULT);
+            String index = aliasesResponse.getAliases().keySet().stream()
+                    .sorted()
+                    .reduce((first, second) -> second)
+                    .orElse(null);
+            update(index, index == null ? null : getDeltaVersion(index));
+        } catch (IOException | ElasticsearchException ex) {
+            log.warn("Can not resolve the index behind alias {}: {}", aliasName, ex.getMessage());
+        }
+    }
+
+    public void update(String index) {
+        update(index, null);
+    }
+
+    private synchronized void update(String index, String deltaVersion) {
+        String version = deltaVersion == null ? index : index + "@" + deltaVersion;
+        if (Objects.equals(version, currentVersion) && !listenerFailed) {
+            return;
+        }
+        if (Objects.equals(version, currentVersion)) {
+            log.info("Notifying the listeners of version {} again", version);
+        } else if (Objects.equals(index, currentIndex)) {
+            log.info("Index {} has been updated in place to version {}", index, version);
+        } else {
+            log.info("Alias {} has moved from {} to {}", aliasName, currentIndex, index);
+        }
+        currentIndex = index;
+        currentVersion = version;
+        listenerFailed = false;
+        for (Consumer<String> listener : listeners) {
+            try {
+                listener.accept(index);
+            } catch (RuntimeException ex) {
+                log.error("Listener of version " + version + " has failed, retrying on the next poll", ex);
+                listenerFailed = true;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private String getDeltaVersion(String index) throws IOException {
+        MappingMetaData mapping = esClient.indices()
+                .getMapping(new GetMappingsRequest().indices(index), RequestOptions.DEFAULT)
+                .mappings().get(index);
+        Object meta = mapping == null ? null : mapping.getSourceAsMap().get("_meta");
+        if (!(meta instanceof Map)) {
+            return null;
+        }
+        Object deltaVersion = ((Map<String, Object>) meta).get(DELTA_VERSION_META);
+        return deltaVersion == null ? null : deltaVersion.toString();
+    }
+}
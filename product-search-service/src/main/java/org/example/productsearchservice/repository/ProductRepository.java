@@ -1,8 +1,32 @@
 package org.example.productsearchservice.repository;
 
+import org.example.productsearchservice.model.Product;
+import org.example.productsearchservice.model.ProductFacetPage;
+import org.example.productsearchservice.model.ProductFacetRequest;
 import org.example.productsearchservice.model.ProductRequest;
 import org.example.productsearchservice.model.ProductServiceResponse;
 
+import java.util.List;
+import java.util.function.Predicate;
+
 public interface ProductRepository {
     ProductServiceResponse getAllProductsByQuery(ProductRequest request);
+
+    /**
+     * Same search as {@link #getAllProductsByQuery}, but the hits and every facet are separate concurrent
+     * searches reported to the listener as each of them completes. Returns without waiting for them.
+     */
+    void streamProductsByQuery(ProductRequest request, ProductSearchListener listener);
+
+    /**
+     * Walks every product matching the request (ignoring paging and facets) in batches.
+     * Batches are handed over synchronously, so a slow consumer slows the walk down;
+     * the consumer returns {@code false} to stop early.
+     */
+    void scrollAllProductsByQuery(ProductRequest request, int slice, int slices, Predicate<List<Product>> batchConsumer);
+
+    /**
+     * Pages through all values of a facet (brand, color or size) for the request, in key order.
+     */
+    ProductFacetPage getFacetValues(String facet, ProductFacetRequest request);
 }
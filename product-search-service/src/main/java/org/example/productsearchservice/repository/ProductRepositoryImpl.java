@@ -1,45 +1,90 @@
 package org.example.productsearchservice.repository;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.lucene.search.join.ScoreMode;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.search.ClearScrollRequest;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.*;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.aggregations.AggregationBuilder;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
 import org.elasticsearch.search.aggregations.BucketOrder;
 import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.filter.Filter;
+import org.elasticsearch.search.aggregations.bucket.sampler.DiversifiedAggregationBuilder;
 import org.elasticsearch.search.aggregations.bucket.nested.ParsedNested;
 import org.elasticsearch.search.aggregations.bucket.nested.ParsedReverseNested;
 import org.elasticsearch.search.aggregations.bucket.range.ParsedRange;
 import org.elasticsearch.search.aggregations.bucket.range.RangeAggregationBuilder;
 import org.elasticsearch.search.aggregations.bucket.range.RangeAggregator;
+import org.elasticsearch.search.aggregations.bucket.sampler.Sampler;
 import org.elasticsearch.search.aggregations.bucket.terms.ParsedTerms;
 import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.elasticsearch.search.rescore.QueryRescorerBuilder;
+import org.elasticsearch.search.slice.SliceBuilder;
 import org.elasticsearch.search.sort.FieldSortBuilder;
 import org.elasticsearch.search.sort.SortOrder;
+import org.example.productindexer.service.ProductSkuAttributes;
+import org.example.productsearchservice.model.Product;
 import org.example.productsearchservice.model.ProductAggregationDto;
+import org.example.productsearchservice.model.ProductFacetPage;
+import org.example.productsearchservice.model.ProductFacetRequest;
 import org.example.productsearchservice.model.ProductRequest;
+import org.example.productsearchservice.model.ProductSearchProfile;
 import org.example.productsearchservice.model.ProductServiceResponse;
+import org.example.productsearchservice.service.ProductCacheKey;
+import org.roaringbitmap.RoaringBitmap;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Repository;
 
+import javax.annotation.PostConstruct;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 @Repository
 @Slf4j
 @RequiredArgsConstructor
+@ConditionalOnProperty(name = "product.search.engine", havingValue = "elasticsearch", matchIfMissing = true)
 public class ProductRepositoryImpl implements ProductRepository {
 
     private static final String PRICE_AGG = "priceRangeAgg";
@@ -57,13 +102,40 @@ public class ProductRepositoryImpl implements ProductRepository {
     private static final String COLOR = "color";
     private static final String SKU_SIZE = "skus.size";
     private static final String SKU_FIELD = "skus";
+    private static final String SKU_COLORS_FIELD = ProductSkuAttributes.COLORS_FIELD;
+    private static final String SKU_SIZES_FIELD = ProductSkuAttributes.SIZES_FIELD;
+    private static final String SKU_COLOR_SIZES_FIELD = ProductSkuAttributes.COLOR_SIZES_FIELD;
+    private static final String[] DENORMALIZED_SKU_FIELDS = {SKU_COLORS_FIELD, SKU_SIZES_FIELD, SKU_COLOR_SIZES_FIELD};
     private static final String SIZE = "size";
     private static final String PRICE = "price";
     private static final String ID_FIELD = "_id";
     private static final String SCORE_FIELD = "_score";
-    private static final int AGGREGATION_SIZE = 1000;
+    private static final String FACET_VALUES_AGG = "facetValuesAgg";
+    private static final String FACET_VALUES_NESTED_AGG = "facetValuesNestedAgg";
+    private static final String FACET_VALUE_SOURCE = "value";
+    private static final String REVERSE_NESTED_AGG = "reverse_to_product";
+    private static final String FACET_FILTER_AGG_SUFFIX = "FacetFilterAgg";
+    private static final String FACET_SAMPLER_AGG = "facetSamplerAgg";
+    private static final String MAIN_QUERY_COUNT_AGG = "mainQueryCountAgg";
+    private static final String STREAM_HITS_PART = "hits";
+    private static final List<String> FACETS = Arrays.asList(PRICE, BRAND_FIELD, COLOR, SIZE);
+    static final List<RangeAggregator.Range> PRICE_RANGES = Arrays.asList(
+            new RangeAggregator.Range("Cheap", 0.0, 99.99),
+            new RangeAggregator.Range("Average", 100.0, 499.99),
+            new RangeAggregator.Range("Expensive", 500.0, null));
+
+    private static final String ATTRIBUTE_VALUES_AGG = "attributeValuesAgg";
 
     private final RestHighLevelClient esClient;
+    private final ProductIndexVersionTracker indexVersionTracker;
+    private final SlowQueryLog slowQueryLog;
+    private final HedgedSearchExecutor hedgedSearchExecutor;
+    private final ProductDocStore productDocStore;
+    private final BitmapFacetEngine bitmapFacetEngine;
+
+    private volatile ProductAttributeExtractor attributeExtractor = ProductAttributeExtractor.EMPTY;
+    // Main query totals by normalized text query, they decide how facets are counted without a pre-query
+    private Cache<String, Long> mainQueryTotals;
 
     @Value("${product.search.index}")
     private String aliasName;
@@ -80,112 +152,968 @@ public class ProductRepositoryImpl implements ProductRepository {
     float fuzzyTwoBoost;
     @Value("${product.search.request.prefixQueryBoost:0.9}")
     float prefixQueryBoost;
+    @Value("${product.search.attributes.maxValues:10000}")
+    int maxAttributeValues;
+    @Value("${product.search.facets.denormalizedSkus:false}")
+    boolean denormalizedSkus;
+    // One bucket more than returned tells whether a facet has more values
+    @Value("${product.search.facets.topSize:10}")
+    int facetTopSize;
+    @Value("${product.search.facets.approximate.enabled:false}")
+    boolean approximateFacetsEnabled;
+    @Value("${product.search.facets.approximate.hitsThreshold:100000}")
+    int approximateFacetsHitsThreshold;
+    @Value("${product.search.facets.approximate.shardSize:5000}")
+    int approximateFacetsShardSize;
+    // Diversifies the sample by this field when set, e.g. brand.keyword, so one brand can not fill it
+    @Value("${product.search.facets.approximate.diversifyField:}")
+    String approximateFacetsDiversifyField;
+    @Value("${product.search.facets.approximate.maxDocsPerValue:100}")
+    int approximateFacetsMaxDocsPerValue;
+    @Value("${product.search.facets.queryTotals.maxSize:10000}")
+    int queryTotalsMaxSize;
+    @Value("${product.search.rescore.enabled:false}")
+    boolean rescoreEnabled;
+    @Value("${product.search.rescore.windowSize:100}")
+    int rescoreWindowSize;
+    // Must not exceed index.max_result_window, all matching ids are fetched in one page
+    @Value("${product.search.facets.bitmap.maxMatches:2000}")
+    int bitmapFacetsMaxMatches;
+    @Value("${product.search.hits.onlyMatchingSkus:false}")
+    boolean onlyMatchingSkus;
+    // Per shard cap on collected docs, 0 collects everything
+    @Value("${product.search.budget.terminateAfter:0}")
+    int terminateAfter;
+    @Value("${product.search.export.batchSize:500}")
+    int exportBatchSize;
+    @Value("${product.search.export.scrollKeepAlive:1m}")
+    String exportScrollKeepAlive;
+
+    @PostConstruct
+    public void init() {
+        mainQueryTotals = CacheBuilder.newBuilder()
+                .maximumSize(queryTotalsMaxSize)
+                .build();
+        indexVersionTracker.addListener(this::reloadAttributeExtractor);
+        indexVersionTracker.addListener(indexName -> mainQueryTotals.invalidateAll());
+    }
+
+    private void reloadAttributeExtractor(String indexName) {
+        if (indexName == null) {
+            attributeExtractor = ProductAttributeExtractor.EMPTY;
+            return;
+        }
+
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+                .size(0)
+                .aggregation(createAttributeValuesAgg(COLOR, SKU_COLOR))
+                .aggregation(createAttributeValuesAgg(SIZE, SKU_SIZE));
+        try {
+            SearchResponse searchResponse = esClient.search(new SearchRequest(indexName).source(searchSourceBuilder), RequestOptions.DEFAULT);
+            List<String> colors = getAttributeValues(searchResponse, COLOR);
+            List<String> sizes = getAttributeValues(searchResponse, SIZE);
+            attributeExtractor = new ProductAttributeExtractor(colors, sizes);
+            log.info("Attribute dictionary for {} has been loaded: {} colors, {} sizes.", indexName, colors.size(), sizes.size());
+        } catch (IOException ex) {
+            // Thrown to the tracker, which retries on its next poll
+            throw new UncheckedIOException("Can not load the attribute dictionary for " + indexName, ex);
+        }
+    }
+
+    private AggregationBuilder createAttributeValuesAgg(String attribute, String field) {
+        return AggregationBuilders.nested(attribute, SKU_FIELD)
+                .subAggregation(AggregationBuilders.terms(ATTRIBUTE_VALUES_AGG)
+                        .field(field)
+                        .size(maxAttributeValues));
+    }
+
+    private static List<String> getAttributeValues(SearchResponse searchResponse, String attribute) {
+        ParsedNested nested = searchResponse.getAggregations().get(attribute);
+        ParsedTerms terms = nested.getAggregations().get(ATTRIBUTE_VALUES_AGG);
+        return terms.getBuckets().stream()
+                .map(MultiBucketsAggregation.Bucket::getKeyAsString)
+                .collect(Collectors.toList());
+    }
 
     @Override
     public ProductServiceResponse getAllProductsByQuery(ProductRequest request) {
-        QueryBuilder mainQuery = getQueryByText(request.getTextQuery());
-        return getProducts(mainQuery, request);
+        long startNanos = System.nanoTime();
+        ProductAttributeExtractor.ExtractedAttributes attributes = attributeExtractor.extract(request.getTextQuery());
+        QueryBuilder shingleBoostQuery = createShingleBoostQuery(attributes);
+        if (rescoreEnabled && shingleBoostQuery != null) {
+            return getProducts(getQueryByText(attributes, null), shingleBoostQuery, request,
+                    createSkuFilter(attributes), startNanos);
+        }
+        QueryBuilder mainQuery = getQueryByText(attributes, shingleBoostQuery);
+        return getProducts(mainQuery, null, request, createSkuFilter(attributes), startNanos);
+    }
+
+    @Override
+    public void scrollAllProductsByQuery(ProductRequest request, int slice, int slices, Predicate<List<Product>> batchConsumer) {
+        ProductAttributeExtractor.ExtractedAttributes attributes = attributeExtractor.extract(request.getTextQuery());
+        BiPredicate<String, String> skuFilter = createSkuFilter(attributes);
+
+        // Nothing is scored for facets here, so the selections simply join the query as filters
+        BoolQueryBuilder query = QueryBuilders.boolQuery().must(getQueryByText(attributes, null));
+        createFacetFilters(request.getFilters()).values().forEach(query::filter);
+
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+                .query(query)
+                .size(exportBatchSize)
+                .fetchSource(null, DENORMALIZED_SKU_FIELDS)
+                .sort(new FieldSortBuilder("_doc"));
+        if (slices > 1) {
+            searchSourceBuilder.slice(new SliceBuilder(slice, slices));
+        }
+
+        TimeValue keepAlive = TimeValue.parseTimeValue(exportScrollKeepAlive, "product.search.export.scrollKeepAlive");
+        SearchRequest searchRequest = new SearchRequest(aliasName)
+                .source(searchSourceBuilder)
+                .scroll(keepAlive);
+
+        String scrollId = null;
+        try {
+            SearchResponse searchResponse = esClient.search(searchRequest, RequestOptions.DEFAULT);
+            scrollId = searchResponse.getScrollId();
+            while (searchResponse.getHits().getHits().length > 0
+                    && batchConsumer.test(getExportBatch(searchResponse.getHits().getHits(), skuFilter))) {
+                searchResponse = esClient.scroll(new SearchScrollRequest(scrollId).scroll(keepAlive), RequestOptions.DEFAULT);
+                scrollId = searchResponse.getScrollId();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to scroll products for: " + request.getTextQuery(), ex);
+        } finally {
+            clearScroll(scrollId);
+        }
     }
 
-    private ProductServiceResponse getProducts(QueryBuilder mainQuery, ProductRequest request) {
+    private void clearScroll(String scrollId) {
+        if (scrollId == null) {
+            return;
+        }
+        try {
+            ClearScrollRequest clearScrollRequest = new ClearScrollRequest();
+            clearScrollRequest.addScrollId(scrollId);
+            esClient.clearScroll(clearScrollRequest, RequestOptions.DEFAULT);
+        } catch (IOException ex) {
+            log.warn("Can not clear scroll {}: {}", scrollId, ex.getMessage());
+        }
+    }
+
+    @Override
+    public void streamProductsByQuery(ProductRequest request, ProductSearchListener listener) {
+        ProductAttributeExtractor.ExtractedAttributes attributes = attributeExtractor.extract(request.getTextQuery());
+        QueryBuilder shingleBoostQuery = createShingleBoostQuery(attributes);
+        boolean rescore = rescoreEnabled && shingleBoostQuery != null;
+        QueryBuilder mainQuery = getQueryByText(attributes, rescore ? null : shingleBoostQuery);
+        Map<String, QueryBuilder> facetFilters = createFacetFilters(request.getFilters());
+        BiPredicate<String, String> skuFilter = createSkuFilter(attributes);
+
+        AtomicInteger pending = new AtomicInteger(1 + FACETS.size());
+        Runnable partDone = () -> {
+            if (pending.decrementAndGet() == 0) {
+                listener.onComplete();
+            }
+        };
+
+        // Hits are read from the ES source here: a doc store miss would need a blocking mget on a client thread
+        SearchSourceBuilder hitsSource = createHitsOnlySource(mainQuery, request, facetFilters)
+                .fetchSource(null, DENORMALIZED_SKU_FIELDS);
+        applyLatencyBudget(hitsSource, request.getTimeoutMs());
+        if (rescore) {
+            hitsSource.addRescorer(createRescorer(shingleBoostQuery, request));
+        } else {
+            hitsSource.sort(new FieldSortBuilder(SCORE_FIELD).order(SortOrder.DESC));
+            hitsSource.sort(new FieldSortBuilder(ID_FIELD).order(SortOrder.DESC));
+        }
+        searchPartAsync(hitsSource, STREAM_HITS_PART, listener, partDone, searchResponse -> {
+            ProductServiceResponse response = new ProductServiceResponse();
+            response.setTotalHits(searchResponse.getHits().getTotalHits().value);
+            setProducts(response, decodeProducts(searchResponse.getHits().getHits(), skuFilter));
+            if (isPartial(searchResponse)) {
+                response.setPartial(true);
+            }
+            listener.onHits(response);
+        });
+
+        for (String facet : FACETS) {
+            SearchSourceBuilder facetSource = new SearchSourceBuilder()
+                    .query(mainQuery)
+                    .size(0)
+                    .trackTotalHits(false)
+                    .aggregation(createFilteredFacetAgg(facet, facetFilters));
+            applyLatencyBudget(facetSource, request.getTimeoutMs());
+            searchPartAsync(facetSource, facet, listener, partDone, searchResponse -> {
+                ProductServiceResponse response = new ProductServiceResponse();
+                mapFacet(facet, getFacetAggregations(searchResponse.getAggregations(), facet), response);
+                limitFacets(response, facetTopSize);
+                if (isPartial(searchResponse)) {
+                    response.setPartial(true);
+                }
+                listener.onFacet(facet, response);
+            });
+        }
+    }
+
+    private void searchPartAsync(SearchSourceBuilder source, String part, ProductSearchListener listener,
+                                 Runnable partDone, Consumer<SearchResponse> responseHandler) {
+        esClient.searchAsync(new SearchRequest(aliasName).source(source), RequestOptions.DEFAULT,
+                new ActionListener<SearchResponse>() {
+                    @Override
+                    public void onResponse(SearchResponse searchResponse) {
+                        // The client would report an exception thrown here to onFailure as well
+                        try {
+                            responseHandler.accept(searchResponse);
+                        } catch (RuntimeException ex) {
+                            listener.onFailure(part, ex);
+                        } finally {
+                            partDone.run();
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Exception ex) {
+                        log.error("Streamed search of " + part + " failed", ex);
+                        try {
+                            listener.onFailure(part, ex);
+                        } finally {
+                            partDone.run();
+                        }
+                    }
+                });
+    }
+
+    @Override
+    public ProductFacetPage getFacetValues(String facet, ProductFacetRequest request) {
+        ProductAttributeExtractor.ExtractedAttributes attributes = attributeExtractor.extract(request.getTextQuery());
+
+        // The request counts only, so the selections of the other facets simply join the query as filters
+        BoolQueryBuilder query = QueryBuilders.boolQuery().must(getQueryByText(attributes, null));
+        combineFacetFilters(createFacetFilters(request.getFilters()), facet).filter().forEach(query::filter);
+
+        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
+                .query(query)
+                .size(0)
+                .aggregation(createFacetValuesAgg(facet, request));
+        applyLatencyBudget(searchSourceBuilder, request.getTimeoutMs());
+
+        try {
+            SearchResponse searchResponse = esClient.search(new SearchRequest(aliasName).source(searchSourceBuilder), RequestOptions.DEFAULT);
+            ProductFacetPage page = getFacetPage(facet, searchResponse.getAggregations(), request.getSize());
+            if (isPartial(searchResponse)) {
+                page.setPartial(true);
+            }
+            return page;
+        } catch (SocketTimeoutException ex) {
+            // As for searches: ES has not answered within the client socket timeout, an empty partial page
+            log.error("Values of facet " + facet + " timed out", ex);
+            return ProductFacetPage.builder()
+                    .facet(facet)
+                    .values(Collections.emptyList())
+                    .partial(true)
+                    .build();
+        } catch (IOException ex) {
+            throw new RuntimeException("Can not load values of facet " + facet, ex);
+        }
+    }
+
+    // Composite aggregations page through all the values in key order; nested is the only parent they accept
+    private AggregationBuilder createFacetValuesAgg(String facet, ProductFacetRequest request) {
+        String field;
+        boolean nested = false;
+        switch (facet) {
+            case BRAND_FIELD:
+                field = BRAND_KEYWORD_FIELD;
+                break;
+            case COLOR:
+                field = denormalizedSkus ? SKU_COLORS_FIELD : SKU_COLOR;
+                nested = !denormalizedSkus;
+                break;
+            case SIZE:
+                field = denormalizedSkus ? SKU_SIZES_FIELD : SKU_SIZE;
+                nested = !denormalizedSkus;
+                break;
+            default:
+                throw new UnknownFacetException(facet);
+        }
+
+        CompositeAggregationBuilder composite = new CompositeAggregationBuilder(FACET_VALUES_AGG,
+                Collections.singletonList(new TermsValuesSourceBuilder(FACET_VALUE_SOURCE).field(field)))
+                .size(request.getSize());
+        if (request.getAfter() != null) {
+            composite.aggregateAfter(Collections.singletonMap(FACET_VALUE_SOURCE, request.getAfter()));
+        }
+        if (!nested) {
+            return composite;
+        }
+        composite.subAggregation(AggregationBuilders.reverseNested(REVERSE_NESTED_AGG));
+        return AggregationBuilders.nested(FACET_VALUES_NESTED_AGG, SKU_FIELD).subAggregation(composite);
+    }
+
+    private ProductFacetPage getFacetPage(String facet, Aggregations aggregations, int size) {
+        ParsedNested nested = aggregations.get(FACET_VALUES_NESTED_AGG);
+        CompositeAggregation composite = nested != null
+                ? nested.getAggregations().get(FACET_VALUES_AGG)
+                : aggregations.get(FACET_VALUES_AGG);
+        Function<String, String> valueFormatter = getFacetValueFormatter(facet);
+
+        List<ProductAggregationDto> values = composite.getBuckets().stream()
+                .map(bucket -> {
+                    long count = nested != null
+                            ? ((ParsedReverseNested) bucket.getAggregations().get(REVERSE_NESTED_AGG)).getDocCount()
+                            : bucket.getDocCount();
+                    return ProductAggregationDto.builder()
+                            .count(count)
+                            .value(valueFormatter.apply(bucket.getKey().get(FACET_VALUE_SOURCE).toString()))
+                            .build();
+                })
+                .collect(Collectors.toList());
+
+        // A short page is the last one, so no after key is handed out for it
+        String after = values.size() == size && composite.afterKey() != null
+                ? composite.afterKey().get(FACET_VALUE_SOURCE).toString()
+                : null;
+        return ProductFacetPage.builder()
+                .facet(facet)
+                .values(values)
+                .after(after)
+                .build();
+    }
+
+    static Function<String, String> getFacetValueFormatter(String facet) {
+        switch (facet) {
+            case COLOR:
+                return ProductRepositoryImpl::capitalize;
+            case SIZE:
+                return String::toUpperCase;
+            default:
+                return Function.identity();
+        }
+    }
+
+    /**
+     * @param rescoreQuery when set, it is applied to the top hits of {@code mainQuery} in a rescore window
+     *                     instead of being scored for every match
+     */
+    private ProductServiceResponse getProducts(QueryBuilder mainQuery, QueryBuilder rescoreQuery, ProductRequest request,
+                                               BiPredicate<String, String> skuFilter, long startNanos) {
+        // With a local doc store ES only returns ids and scores, the documents are read from the store
+        ProductDocStore.Snapshot docStore = productDocStore.getCurrent();
         SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder()
                 .query(mainQuery)
                 .from(request.getPage() * request.getSize())
                 .size(request.getSize());
+        if (docStore != null) {
+            searchSourceBuilder.fetchSource(false);
+        } else {
+            searchSourceBuilder.fetchSource(null, DENORMALIZED_SKU_FIELDS);
+        }
+        applyLatencyBudget(searchSourceBuilder, request.getTimeoutMs());
 
-        searchSourceBuilder.sort(new FieldSortBuilder(SCORE_FIELD).order(SortOrder.DESC));
-        searchSourceBuilder.sort(new FieldSortBuilder(ID_FIELD).order(SortOrder.DESC));
+        if (rescoreQuery != null) {
+            // ES rejects explicit sorts together with rescore, so hits come in plain _score order
+            searchSourceBuilder.addRescorer(createRescorer(rescoreQuery, request));
+        } else {
+            searchSourceBuilder.sort(new FieldSortBuilder(SCORE_FIELD).order(SortOrder.DESC));
+            searchSourceBuilder.sort(new FieldSortBuilder(ID_FIELD).order(SortOrder.DESC));
+        }
 
-        List<AggregationBuilder> aggs = createAggs();
-        aggs.forEach(searchSourceBuilder::aggregation);
+        // Facet selections narrow the hits only, so the facets themselves keep multi-select counts
+        Map<String, QueryBuilder> facetFilters = createFacetFilters(request.getFilters());
+        if (!facetFilters.isEmpty()) {
+            searchSourceBuilder.postFilter(combineFacetFilters(facetFilters, null));
+        }
 
         SearchRequest searchRequest = new SearchRequest(aliasName).source(searchSourceBuilder);
         try {
-            SearchResponse searchResponse = esClient.search(searchRequest, RequestOptions.DEFAULT);
-            return getServiceResponse(searchResponse);
+            // Known from an earlier request with the same text, the first one is always counted by ES exactly
+            Long mainQueryTotal = mainQueryTotals.getIfPresent(getQueryTotalsKey(request));
+            BitmapFacetEngine.FacetIndex facetIndex = bitmapFacetEngine.getCurrent();
+            // The ids of a query known to be small enough are fetched next to the hits, not before them
+            CompletableFuture<SearchResponse> idsSearch = facetIndex != null && mainQueryTotal != null
+                    && mainQueryTotal <= bitmapFacetsMaxMatches
+                    ? searchIdsAsync(mainQuery, request)
+                    : null;
+            boolean approximateFacets = idsSearch == null && approximateFacetsEnabled
+                    && mainQueryTotal != null && mainQueryTotal >= approximateFacetsHitsThreshold;
+            if (idsSearch == null) {
+                List<AggregationBuilder> aggs = createAggs(facetFilters, approximateFacets);
+                aggs.forEach(searchSourceBuilder::aggregation);
+                // Sees every match of the main query, unlike the post filtered total hits
+                searchSourceBuilder.aggregation(AggregationBuilders.filter(MAIN_QUERY_COUNT_AGG, QueryBuilders.matchAllQuery()));
+            }
+            searchSourceBuilder.profile(request.isProfile());
+
+            long requestBuiltNanos = System.nanoTime();
+            SearchResponse searchResponse = hedgedSearchExecutor.search(searchRequest);
+            long responseReceivedNanos = System.nanoTime();
+            ProductServiceResponse response = getServiceResponse(searchResponse, skuFilter, docStore);
+            recordMainQueryTotal(request, searchResponse);
+            if (idsSearch != null) {
+                Map<String, Map<String, Long>> localFacets = countFacetsLocally(facetIndex, idsSearch, request);
+                if (localFacets != null) {
+                    mapLocalFacets(localFacets, response);
+                } else {
+                    // The matches have changed since the total was recorded, rare enough to pay a round trip
+                    mapFacets(searchFacetsOnly(mainQuery, facetFilters, false).getAggregations(), response);
+                }
+            }
+            limitFacets(response, facetTopSize);
+            if (approximateFacets) {
+                response.setApproximateFacets(true);
+            }
+            if (isPartial(searchResponse)) {
+                response.setPartial(true);
+            }
+
+            if (request.isProfile()) {
+                response.setProfile(SearchProfileMapper.map(searchResponse,
+                        requestBuiltNanos - startNanos,
+                        responseReceivedNanos - requestBuiltNanos,
+                        System.nanoTime() - responseReceivedNanos));
+                if (approximateFacets) {
+                    response.getProfile().setFacetApproximation(compareWithExactFacets(mainQuery, facetFilters));
+                }
+                if (rescoreQuery != null) {
+                    response.getProfile().setRescoreComparison(compareWithFullScoring(mainQuery, rescoreQuery, request, facetFilters));
+                }
+            }
+            slowQueryLog.log(request, searchSourceBuilder, searchResponse, System.nanoTime() - startNanos);
+            return response;
+        } catch (RuntimeException ex) {
+            slowQueryLog.logFailure(request, searchSourceBuilder, ex, System.nanoTime() - startNanos);
+            throw ex;
         } catch (IOException ex) {
+            slowQueryLog.logFailure(request, searchSourceBuilder, ex, System.nanoTime() - startNanos);
             log.error(ex.getMessage(), ex);
-            return new ProductServiceResponse();
+            ProductServiceResponse response = new ProductServiceResponse();
+            // ES has not answered within the client socket timeout, there is nothing to return but the flag
+            if (ex instanceof SocketTimeoutException) {
+                response.setPartial(true);
+            }
+            return response;
         }
     }
 
-    private List<AggregationBuilder> createAggs() {
-        //Price aggregation
-        List<AggregationBuilder> result = new ArrayList<>();
-        RangeAggregationBuilder itemCountAgg = AggregationBuilders
-                .range(PRICE_AGG)
-                .field(PRICE)
-                .keyed(true)
-                .addRange(new RangeAggregator.Range("Cheap", 0.0, 99.99))
-                .addRange(new RangeAggregator.Range("Average", 100.0, 499.99))
-                .addRange(new RangeAggregator.Range("Expensive", 500.0, null));
+    /**
+     * Maps the latency budget to the ES search timeout: shards stop collecting when it runs out and
+     * the response is flagged as timed out instead of failing. The client socket timeout is the hard
+     * stop for a node that does not answer at all.
+     */
+    private void applyLatencyBudget(SearchSourceBuilder source, Long timeoutMs) {
+        if (timeoutMs != null && timeoutMs > 0) {
+            source.timeout(TimeValue.timeValueMillis(timeoutMs));
+        }
+        if (terminateAfter > 0) {
+            source.terminateAfter(terminateAfter);
+        }
+    }
 
-        result.add(itemCountAgg);
+    private static boolean isPartial(SearchResponse searchResponse) {
+        return searchResponse.isTimedOut() || Boolean.TRUE.equals(searchResponse.isTerminatedEarly());
+    }
+
+    private QueryRescorerBuilder createRescorer(QueryBuilder rescoreQuery, ProductRequest request) {
+        // The window must reach the requested page, otherwise the page would mix rescored and plain scores
+        int windowSize = Math.max(rescoreWindowSize, (request.getPage() + 1) * request.getSize());
+        return new QueryRescorerBuilder(rescoreQuery)
+                .windowSize(windowSize)
+                .setQueryWeight(1.0f)
+                .setRescoreQueryWeight(1.0f);
+    }
+
+    /**
+     * Runs the requested page once with the phrase boost in a rescore window and once with it scored
+     * for every match (the behavior without rescore), hits only. The full scoring ranking serves as the
+     * reference: its scores are the gains for nDCG of the rescored ranking.
+     */
+    private ProductSearchProfile.RescoreComparison compareWithFullScoring(QueryBuilder mainQuery, QueryBuilder rescoreQuery,
+                                                                          ProductRequest request,
+                                                                          Map<String, QueryBuilder> facetFilters) throws IOException {
+        SearchSourceBuilder rescoredSource = createHitsOnlySource(mainQuery, request, facetFilters)
+                .addRescorer(createRescorer(rescoreQuery, request));
+        SearchSourceBuilder fullSource = createHitsOnlySource(QueryBuilders.boolQuery().must(mainQuery).should(rescoreQuery),
+                request, facetFilters)
+                .sort(new FieldSortBuilder(SCORE_FIELD).order(SortOrder.DESC))
+                .sort(new FieldSortBuilder(ID_FIELD).order(SortOrder.DESC));
+
+        SearchResponse rescored = esClient.search(new SearchRequest(aliasName).source(rescoredSource), RequestOptions.DEFAULT);
+        SearchResponse full = esClient.search(new SearchRequest(aliasName).source(fullSource), RequestOptions.DEFAULT);
+
+        return SearchProfileMapper.compareRankings(rescored.getTook().millis(), full.getTook().millis(),
+                rescored.getHits().getHits(), full.getHits().getHits());
+    }
+
+    private SearchSourceBuilder createHitsOnlySource(QueryBuilder query, ProductRequest request,
+                                                     Map<String, QueryBuilder> facetFilters) {
+        SearchSourceBuilder source = new SearchSourceBuilder()
+                .query(query)
+                .from(request.getPage() * request.getSize())
+                .size(request.getSize())
+                .fetchSource(false);
+        if (!facetFilters.isEmpty()) {
+            source.postFilter(combineFacetFilters(facetFilters, null));
+        }
+        return source;
+    }
+
+    private CompletableFuture<SearchResponse> searchIdsAsync(QueryBuilder mainQuery, ProductRequest request) {
+        SearchSourceBuilder idsSource = new SearchSourceBuilder()
+                .query(mainQuery)
+                .size(bitmapFacetsMaxMatches)
+                .fetchSource(false)
+                .sort(new FieldSortBuilder("_doc"))
+                .trackTotalHitsUpTo(bitmapFacetsMaxMatches + 1);
+        applyLatencyBudget(idsSource, request.getTimeoutMs());
+        CompletableFuture<SearchResponse> result = new CompletableFuture<>();
+        esClient.searchAsync(new SearchRequest(aliasName).source(idsSource), RequestOptions.DEFAULT,
+                ActionListener.wrap(result::complete, result::completeExceptionally));
+        return result;
+    }
+
+    /**
+     * Counts the facets with the bitmap engine over the ids of all matches of the main query.
+     * Returns null, so the facets are aggregated by ES, when the ids search has failed, is cut short
+     * or has matched more than maxMatches products, or was answered by another index than the facet index.
+     */
+    private Map<String, Map<String, Long>> countFacetsLocally(BitmapFacetEngine.FacetIndex facetIndex,
+                                                            CompletableFuture<SearchResponse> idsSearch,
+                                                            ProductRequest request) throws IOException {
+        SearchResponse idsResponse;
+        try {
+            idsResponse = idsSearch.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Search has been interrupted", ex);
+        } catch (ExecutionException ex) {
+            log.warn("Search of the matching ids has failed: {}", ex.getCause().getMessage());
+            return null;
+        }
+        // Counts over a cut short id list would be wrong rather than partial
+        if (isPartial(idsResponse)) {
+            return null;
+        }
+        mainQueryTotals.put(getQueryTotalsKey(request), idsResponse.getHits().getTotalHits().value);
+        if (idsResponse.getHits().getTotalHits().value > bitmapFacetsMaxMatches) {
+            return null;
+        }
+
+        List<String> ids = new ArrayList<>(idsResponse.getHits().getHits().length);
+        for (SearchHit hit : idsResponse.getHits().getHits()) {
+            if (!hit.getIndex().equals(facetIndex.getIndexName())) {
+                return null;
+            }
+            ids.add(hit.getId());
+        }
+        RoaringBitmap matches = facetIndex.toBitmap(ids);
+        return matches == null ? null : facetIndex.count(matches, normalizeSelections(request.getFilters()));
+    }
+
+    // Selections in the form of the facet index keys, matching what createFacetFilters sends to ES
+    static Map<String, Collection<String>> normalizeSelections(Map<String, List<String>> selections) {
+        Map<String, Collection<String>> result = new HashMap<>();
+        if (selections == null) {
+            return result;
+        }
+
+        selections.forEach((facet, values) -> {
+            if (values == null || values.isEmpty()) {
+                return;
+            }
+            switch (facet) {
+                case PRICE:
+                    List<String> rangeKeys = PRICE_RANGES.stream()
+                            .map(RangeAggregator.Range::getKey)
+                            .filter(key -> values.stream().anyMatch(key::equalsIgnoreCase))
+                            .collect(Collectors.toList());
+                    if (!rangeKeys.isEmpty()) {
+                        result.put(PRICE, rangeKeys);
+                    }
+                    break;
+                case BRAND_FIELD:
+                    result.put(BRAND_FIELD, values);
+                    break;
+                case COLOR:
+                case SIZE:
+                    result.put(facet, toLowerCase(values));
+                    break;
+                default:
+                    log.debug("Ignoring a filter by unknown facet: {}", facet);
+            }
+        });
+        return result;
+    }
 
-        //Brand aggregation
-        TermsAggregationBuilder brandAggregation = AggregationBuilders.terms(BRAND_AGG)
-                .field(BRAND_KEYWORD_FIELD)
-                .size(AGGREGATION_SIZE)
+    static void mapLocalFacets(Map<String, Map<String, Long>> facets, ProductServiceResponse response) {
+        facets.forEach((facet, counts) -> {
+            Function<String, String> valueFormatter = getFacetValueFormatter(facet);
+            List<ProductAggregationDto> facetValues = counts.entrySet().stream()
+                    .map(entry -> ProductAggregationDto.builder()
+                            .count(entry.getValue())
+                            .value(valueFormatter.apply(entry.getKey()))
+                            .build())
+                    .collect(Collectors.toList());
+            response.getFacets().put(facet, facetValues);
+        });
+    }
+
+    // Keyed like the response cache, so a query counts as the same whenever its cached responses do
+    static String getQueryTotalsKey(ProductRequest request) {
+        return ProductCacheKey.normalizeQuery(request.getTextQuery());
+    }
+
+    // A response cut short by the budget has not seen every match
+    private void recordMainQueryTotal(ProductRequest request, SearchResponse searchResponse) {
+        Filter mainQueryCount = searchResponse.getAggregations() != null
+                ? searchResponse.getAggregations().get(MAIN_QUERY_COUNT_AGG)
+                : null;
+        if (mainQueryCount != null && !isPartial(searchResponse)) {
+            mainQueryTotals.put(getQueryTotalsKey(request), mainQueryCount.getDocCount());
+        }
+    }
+
+    // Runs the facets alone in both modes, so the reported latencies are not skewed by the hits
+    private ProductSearchProfile.FacetApproximation compareWithExactFacets(QueryBuilder mainQuery,
+                                                                           Map<String, QueryBuilder> facetFilters) throws IOException {
+        SearchResponse sampled = searchFacetsOnly(mainQuery, facetFilters, true);
+        SearchResponse exact = searchFacetsOnly(mainQuery, facetFilters, false);
+
+        ProductServiceResponse sampledFacets = new ProductServiceResponse();
+        mapFacets(sampled.getAggregations(), sampledFacets);
+        ProductServiceResponse exactFacets = new ProductServiceResponse();
+        mapFacets(exact.getAggregations(), exactFacets);
+
+        return SearchProfileMapper.compareFacets(sampled.getTook().millis(), exact.getTook().millis(),
+                sampledFacets.getFacets(), exactFacets.getFacets());
+    }
+
+    private SearchResponse searchFacetsOnly(QueryBuilder mainQuery, Map<String, QueryBuilder> facetFilters,
+                                            boolean approximate) throws IOException {
+        SearchSourceBuilder facetsSource = new SearchSourceBuilder()
+                .query(mainQuery)
+                .size(0);
+        createAggs(facetFilters, approximate).forEach(facetsSource::aggregation);
+        return esClient.search(new SearchRequest(aliasName).source(facetsSource), RequestOptions.DEFAULT);
+    }
+
+    private List<AggregationBuilder> createAggs(Map<String, QueryBuilder> facetFilters, boolean approximate) {
+        List<AggregationBuilder> result = FACETS.stream()
+                .map(facet -> createFilteredFacetAgg(facet, facetFilters))
+                .collect(Collectors.toList());
+
+        if (!approximate) {
+            return result;
+        }
+        // The sampler keeps only the top scoring docs of each shard, every facet is counted over them
+        AggregationBuilder sampler = approximateFacetsDiversifyField.isEmpty()
+                ? AggregationBuilders.sampler(FACET_SAMPLER_AGG).shardSize(approximateFacetsShardSize)
+                : new DiversifiedAggregationBuilder(FACET_SAMPLER_AGG)
+                        .field(approximateFacetsDiversifyField)
+                        .maxDocsPerValue(approximateFacetsMaxDocsPerValue)
+                        .shardSize(approximateFacetsShardSize);
+        result.forEach(sampler::subAggregation);
+        return Collections.singletonList(sampler);
+    }
+
+    // Each facet is counted against the selections of all the other facets
+    private AggregationBuilder createFilteredFacetAgg(String facet, Map<String, QueryBuilder> facetFilters) {
+        AggregationBuilder facetAgg = createFacetAgg(facet);
+        BoolQueryBuilder otherFilters = combineFacetFilters(facetFilters, facet);
+        if (otherFilters.filter().isEmpty()) {
+            return facetAgg;
+        }
+        return AggregationBuilders.filter(facet + FACET_FILTER_AGG_SUFFIX, otherFilters)
+                .subAggregation(facetAgg);
+    }
+
+    private AggregationBuilder createFacetAgg(String facet) {
+        switch (facet) {
+            case PRICE:
+                //Price aggregation
+                RangeAggregationBuilder itemCountAgg = AggregationBuilders
+                        .range(PRICE_AGG)
+                        .field(PRICE)
+                        .keyed(true);
+                PRICE_RANGES.forEach(itemCountAgg::addRange);
+                return itemCountAgg;
+            case BRAND_FIELD:
+                //Brand aggregation
+                return AggregationBuilders.terms(BRAND_AGG)
+                        .field(BRAND_KEYWORD_FIELD)
+                        .size(facetTopSize + 1)
+                        .order(BucketOrder.compound(
+                                Arrays.asList(
+                                        BucketOrder.count(false),
+                                        BucketOrder.key(true)
+                                )
+                        ));
+            case SIZE:
+                //SKU aggregation
+                if (denormalizedSkus) {
+                    return createDenormalizedSkuAgg(SIZE_AGG, SKU_SIZES_FIELD);
+                }
+                return AggregationBuilders.nested(NESTED_SKU_SIZE_FIELD, SKU_FIELD)
+                        .subAggregation(
+                                AggregationBuilders.terms(SIZE_AGG)
+                                        .field(SKU_SIZE)
+                                        .size(facetTopSize + 1)
+                                        .order(BucketOrder.compound(
+                                                Arrays.asList(
+                                                        BucketOrder.aggregation("reverse_to_product.doc_count", false),
+                                                        BucketOrder.key(true)
+                                                )
+                                        )).subAggregation(AggregationBuilders.reverseNested("reverse_to_product")));
+            case COLOR:
+                if (denormalizedSkus) {
+                    return createDenormalizedSkuAgg(COLOR_AGG, SKU_COLORS_FIELD);
+                }
+                return AggregationBuilders.nested(NESTED_SKU_COLOR_FIELD, SKU_FIELD)
+                        .subAggregation(
+                                AggregationBuilders.terms(COLOR_AGG)
+                                        .field(SKU_COLOR)
+                                        .size(facetTopSize + 1)
+                                        .order(BucketOrder.compound(
+                                                Arrays.asList(
+                                                        BucketOrder.aggregation("reverse_to_product.doc_count", false),
+                                                        BucketOrder.key(true)
+                                                )
+                                        )
+                )
+                        .subAggregation(AggregationBuilders.reverseNested("reverse_to_product")));
+            default:
+                throw new IllegalArgumentException("Unknown facet: " + facet);
+        }
+    }
+
+    // Flattened SKU values are plain doc-values terms on the product, so no nested/reverse_nested pass is needed
+    private AggregationBuilder createDenormalizedSkuAgg(String aggName, String field) {
+        return AggregationBuilders.terms(aggName)
+                .field(field)
+                .size(facetTopSize + 1)
                 .order(BucketOrder.compound(
                         Arrays.asList(
                                 BucketOrder.count(false),
                                 BucketOrder.key(true)
                         )
                 ));
-        result.add(brandAggregation);
-
-        //SKU aggregation
-        AggregationBuilder skuSizeAggregation = AggregationBuilders.nested(NESTED_SKU_SIZE_FIELD, SKU_FIELD)
-                .subAggregation(
-                        AggregationBuilders.terms(SIZE_AGG)
-                                .field(SKU_SIZE)
-                                .size(AGGREGATION_SIZE)
-                                .order(BucketOrder.compound(
-                                        Arrays.asList(
-                                                BucketOrder.aggregation("reverse_to_product.doc_count", false),
-                                                BucketOrder.key(true)
-                                        )
-                                )).subAggregation(AggregationBuilders.reverseNested("reverse_to_product")));
-        result.add(skuSizeAggregation);
-
-        AggregationBuilder skuColorAggregation = AggregationBuilders.nested(NESTED_SKU_COLOR_FIELD, SKU_FIELD)
-                .subAggregation(
-                        AggregationBuilders.terms(COLOR_AGG)
-                                .field(SKU_COLOR)
-                                .size(AGGREGATION_SIZE)
-                                .order(BucketOrder.compound(
-                                        Arrays.asList(
-                                                BucketOrder.aggregation("reverse_to_product.doc_count", false),
-                                                BucketOrder.key(true)
-                                        )
-                                )
-        )
-                .subAggregation(AggregationBuilders.reverseNested("reverse_to_product")));
-        result.add(skuColorAggregation);
+    }
 
+    private Map<String, QueryBuilder> createFacetFilters(Map<String, List<String>> selections) {
+        Map<String, QueryBuilder> result = new LinkedHashMap<>();
+        if (selections == null) {
+            return result;
+        }
+
+        selections.forEach((facet, values) -> {
+            if (values == null || values.isEmpty()) {
+                return;
+            }
+            switch (facet) {
+                case PRICE:
+                    BoolQueryBuilder priceFilter = QueryBuilders.boolQuery();
+                    PRICE_RANGES.stream()
+                            .filter(range -> values.stream().anyMatch(value -> value.equalsIgnoreCase(range.getKey())))
+                            .map(range -> QueryBuilders.rangeQuery(PRICE)
+                                    .from(range.getFrom() == Double.NEGATIVE_INFINITY ? null : range.getFrom(), true)
+                                    .to(range.getTo() == Double.POSITIVE_INFINITY ? null : range.getTo(), false))
+                            .forEach(priceFilter::should);
+                    if (!priceFilter.should().isEmpty()) {
+                        result.put(PRICE, priceFilter);
+                    }
+                    break;
+                case BRAND_FIELD:
+                    result.put(BRAND_FIELD, QueryBuilders.termsQuery(BRAND_KEYWORD_FIELD, values));
+                    break;
+                case COLOR:
+                    result.put(COLOR, createSkuAttributeFilter(SKU_COLOR, SKU_COLORS_FIELD, toLowerCase(values)));
+                    break;
+                case SIZE:
+                    result.put(SIZE, createSkuAttributeFilter(SKU_SIZE, SKU_SIZES_FIELD, toLowerCase(values)));
+                    break;
+                default:
+                    log.debug("Ignoring a filter by unknown facet: {}", facet);
+            }
+        });
+        return result;
+    }
+
+    private QueryBuilder createSkuAttributeFilter(String nestedField, String denormalizedField, Collection<String> values) {
+        if (denormalizedSkus) {
+            return QueryBuilders.termsQuery(denormalizedField, values);
+        }
+        return QueryBuilders.nestedQuery(SKU_FIELD, QueryBuilders.termsQuery(nestedField, values), ScoreMode.None);
+    }
+
+    private static BoolQueryBuilder combineFacetFilters(Map<String, QueryBuilder> facetFilters, String excludedFacet) {
+        BoolQueryBuilder result = QueryBuilders.boolQuery();
+        facetFilters.forEach((facet, filter) -> {
+            if (!facet.equals(excludedFacet)) {
+                result.filter(filter);
+            }
+        });
         return result;
     }
 
-    private ProductServiceResponse getServiceResponse(SearchResponse searchResponse) {
+    private static List<String> toLowerCase(Collection<String> values) {
+        return values.stream()
+                .map(String::toLowerCase)
+                .collect(Collectors.toList());
+    }
+
+    private ProductServiceResponse getServiceResponse(SearchResponse searchResponse, BiPredicate<String, String> skuFilter,
+                                                      ProductDocStore.Snapshot docStore) throws IOException {
         ProductServiceResponse response = new ProductServiceResponse();
 
         response.setTotalHits(searchResponse.getHits().getTotalHits().value);
 
-        List<Map<String, Object>> products = Arrays.stream(searchResponse.getHits().getHits())
-                .map(SearchHit::getSourceAsMap)
-                .collect(Collectors.toList());
-        response.setProducts(products);
+        SearchHit[] hits = searchResponse.getHits().getHits();
+        setProducts(response, docStore != null ? hydrateProducts(hits, skuFilter, docStore) : decodeProducts(hits, skuFilter));
 
-        mapPriceAggregation(searchResponse, response);
-        mapBrandAggregation(searchResponse, response);
-        mapSkuColorAggregation(searchResponse, response);
-        mapSkuSizeAggregation(searchResponse, response);
+        if (searchResponse.getAggregations() != null) {
+            mapFacets(searchResponse.getAggregations(), response);
+        }
 
         return response;
     }
 
-    private static void mapPriceAggregation(SearchResponse searchResponse, ProductServiceResponse response) {
-        ParsedRange parsedRange = searchResponse.getAggregations().get(PRICE_AGG);
+    private void mapFacets(Aggregations aggregations, ProductServiceResponse response) {
+        Sampler sampler = aggregations.get(FACET_SAMPLER_AGG);
+        if (sampler != null) {
+            aggregations = sampler.getAggregations();
+        }
+
+        for (String facet : FACETS) {
+            mapFacet(facet, getFacetAggregations(aggregations, facet), response);
+        }
+    }
+
+    private void mapFacet(String facet, Aggregations aggregations, ProductServiceResponse response) {
+        switch (facet) {
+            case PRICE:
+                mapPriceAggregation(aggregations, response);
+                break;
+            case BRAND_FIELD:
+                mapBrandAggregation(aggregations, response);
+                break;
+            case COLOR:
+                mapSkuColorAggregation(aggregations, response);
+                break;
+            case SIZE:
+                mapSkuSizeAggregation(aggregations, response);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown facet: " + facet);
+        }
+    }
+
+    /**
+     * @return products in the order of the hits, null where a hit can not be decoded
+     */
+    static Product[] decodeProducts(SearchHit[] hits, BiPredicate<String, String> skuFilter) {
+        Product[] products = new Product[hits.length];
+        for (int i = 0; i < hits.length; i++) {
+            try {
+                products[i] = ProductHitDecoder.decode(hits[i].getSourceRef(), skuFilter);
+            } catch (IOException ex) {
+                log.error("Can not decode product {}: {}", hits[i].getId(), ex.getMessage());
+            }
+        }
+        return products;
+    }
+
+    // A hit that is lost makes the page partial, so it is neither cached nor tagged
+    static void setProducts(ProductServiceResponse response, Product[] products) {
+        List<Product> found = Arrays.stream(products)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        response.setProducts(found);
+        if (found.size() < products.length) {
+            response.setPartial(true);
+        }
+    }
+
+    // An export has no partial flag, it fails rather than leave products out
+    private static List<Product> getExportBatch(SearchHit[] hits, BiPredicate<String, String> skuFilter) {
+        Product[] products = decodeProducts(hits, skuFilter);
+        for (int i = 0; i < products.length; i++) {
+            if (products[i] == null) {
+                throw new IllegalStateException("Can not decode product " + hits[i].getId());
+            }
+        }
+        return Arrays.asList(products);
+    }
+
+    /**
+     * Reads the hits from the doc store. Hits of another index (the alias has just moved) or ids the
+     * store does not know are fetched from ES with a multi get, so no hit is lost.
+     *
+     * @return products in the order of the hits, null where a hit can not be fetched or decoded
+     */
+    Product[] hydrateProducts(SearchHit[] hits, BiPredicate<String, String> skuFilter,
+                                          ProductDocStore.Snapshot docStore) throws IOException {
+        Product[] products = new Product[hits.length];
+        MultiGetRequest missingRequest = new MultiGetRequest();
+        List<Integer> missingPositions = new ArrayList<>();
+        FetchSourceContext fetchSource = new FetchSourceContext(true, null, DENORMALIZED_SKU_FIELDS);
+
+        for (int i = 0; i < hits.length; i++) {
+            SearchHit hit = hits[i];
+            byte[] source = hit.getIndex().equals(docStore.getIndexName()) ? docStore.get(hit.getId()) : null;
+            if (source != null) {
+                products[i] = decodeProduct(hit.getId(), source, skuFilter);
+            } else {
+                missingRequest.add(new MultiGetRequest.Item(hit.getIndex(), hit.getId()).fetchSourceContext(fetchSource));
+                missingPositions.add(i);
+            }
+        }
+
+        if (!missingPositions.isEmpty()) {
+            log.debug("{} of {} hits are not in doc store {}", missingPositions.size(), hits.length, docStore.getIndexName());
+            MultiGetResponse missingResponse = esClient.mget(missingRequest, RequestOptions.DEFAULT);
+            MultiGetItemResponse[] items = missingResponse.getResponses();
+            for (int i = 0; i < items.length; i++) {
+                if (!items[i].isFailed() && items[i].getResponse().isExists()) {
+                    BytesReference source = items[i].getResponse().getSourceAsBytesRef();
+                    products[missingPositions.get(i)] = decodeProduct(items[i].getId(), BytesReference.toBytes(source), skuFilter);
+                }
+            }
+        }
+
+        return products;
+    }
+
+    private static Product decodeProduct(String id, byte[] source, BiPredicate<String, String> skuFilter) {
+        try {
+            return ProductHitDecoder.decode(source, 0, source.length, skuFilter);
+        } catch (IOException ex) {
+            log.error("Can not decode product {}: {}", id, ex.getMessage());
+            return null;
+        }
+    }
+
+    // Facets are requested with one bucket more than returned, the extra one only tells there are more
+    @SuppressWarnings("unchecked")
+    static void limitFacets(ProductServiceResponse response, int topSize) {
+        Map<String, Boolean> hasMore = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> facet : response.getFacets().entrySet()) {
+            List<ProductAggregationDto> facetValues = (List<ProductAggregationDto>) facet.getValue();
+            if (!PRICE.equals(facet.getKey()) && facetValues.size() > topSize) {
+                facet.setValue(new ArrayList<>(facetValues.subList(0, topSize)));
+                hasMore.put(facet.getKey(), true);
+            }
+        }
+        if (!hasMore.isEmpty()) {
+            response.setFacetsHasMore(hasMore);
+        }
+    }
+
+    private static Aggregations getFacetAggregations(Aggregations aggregations, String facet) {
+        Filter facetFilter = aggregations.get(facet + FACET_FILTER_AGG_SUFFIX);
+        return facetFilter != null ? facetFilter.getAggregations() : aggregations;
+    }
+
+    private static void mapPriceAggregation(Aggregations aggregations, ProductServiceResponse response) {
+        ParsedRange parsedRange = aggregations.get(PRICE_AGG);
 
         List<ProductAggregationDto> priceAggregationData = parsedRange.getBuckets().stream()
                 .map(bucket -> ProductAggregationDto.builder()
@@ -197,20 +1125,9 @@ public class ProductRepositoryImpl implements ProductRepository {
         response.getFacets().put(PRICE, priceAggregationData);
     }
 
-    private static void mapSkuColorAggregation(SearchResponse searchResponse, ProductServiceResponse response) {
-        ParsedNested nested = searchResponse.getAggregations().get(NESTED_SKU_COLOR_FIELD);
-        ParsedTerms colorTerms = nested.getAggregations().get(COLOR_AGG);
-
-        List<ProductAggregationDto> colorFacet = colorTerms.getBuckets().stream()
-                .map(bucket -> {
-                    ParsedReverseNested reverseNested = bucket.getAggregations().get("reverse_to_product");
-                    long productCount = reverseNested.getDocCount();
-                    return ProductAggregationDto.builder()
-                            .count(productCount)
-                            .value(capitalize(bucket.getKeyAsString()))
-                            .build();
-                })
-                .collect(Collectors.toList());
+    private void mapSkuColorAggregation(Aggregations aggregations, ProductServiceResponse response) {
+        List<ProductAggregationDto> colorFacet = getSkuFacet(aggregations, NESTED_SKU_COLOR_FIELD, COLOR_AGG,
+                ProductRepositoryImpl::capitalize);
 
         response.getFacets().put(COLOR, colorFacet);
     }
@@ -219,26 +1136,41 @@ public class ProductRepositoryImpl implements ProductRepository {
         return s == null || s.isEmpty() ? s : Character.toUpperCase(s.charAt(0)) + s.substring(1);
     }
 
-    private static void mapSkuSizeAggregation(SearchResponse searchResponse, ProductServiceResponse response) {
-        ParsedNested nested = searchResponse.getAggregations().get(NESTED_SKU_SIZE_FIELD);
-        ParsedTerms colorTerms = nested.getAggregations().get(SIZE_AGG);
+    private void mapSkuSizeAggregation(Aggregations aggregations, ProductServiceResponse response) {
+        List<ProductAggregationDto> sizeFacet = getSkuFacet(aggregations, NESTED_SKU_SIZE_FIELD, SIZE_AGG,
+                String::toUpperCase);
+
+        response.getFacets().put(SIZE, sizeFacet);
+    }
+
+    private List<ProductAggregationDto> getSkuFacet(Aggregations aggregations, String nestedAggName, String termsAggName,
+                                                    Function<String, String> valueFormatter) {
+        if (denormalizedSkus) {
+            ParsedTerms terms = aggregations.get(termsAggName);
+            return terms.getBuckets().stream()
+                    .map(bucket -> ProductAggregationDto.builder()
+                            .count(bucket.getDocCount())
+                            .value(valueFormatter.apply(bucket.getKeyAsString()))
+                            .build())
+                    .collect(Collectors.toList());
+        }
 
-        List<ProductAggregationDto> colorFacet = colorTerms.getBuckets().stream()
+        ParsedNested nested = aggregations.get(nestedAggName);
+        ParsedTerms terms = nested.getAggregations().get(termsAggName);
+        return terms.getBuckets().stream()
                 .map(bucket -> {
                     ParsedReverseNested reverseNested = bucket.getAggregations().get("reverse_to_product");
                     long productCount = reverseNested.getDocCount();
                     return ProductAggregationDto.builder()
                             .count(productCount)
-                            .value(bucket.getKeyAsString().toUpperCase())
+                            .value(valueFormatter.apply(bucket.getKeyAsString()))
                             .build();
                 })
                 .collect(Collectors.toList());
-
-        response.getFacets().put(SIZE, colorFacet);
     }
 
-    private static void mapBrandAggregation(SearchResponse searchResponse, ProductServiceResponse response) {
-        Terms terms = searchResponse.getAggregations().get(BRAND_AGG);
+    private static void mapBrandAggregation(Aggregations aggregations, ProductServiceResponse response) {
+        Terms terms = aggregations.get(BRAND_AGG);
 
         List<ProductAggregationDto> brandFacet = terms.getBuckets().stream()
                 .map(bucket -> {
@@ -252,37 +1184,27 @@ public class ProductRepositoryImpl implements ProductRepository {
         response.getFacets().put(BRAND_FIELD, brandFacet);
     }
 
-    private QueryBuilder getQueryByText(String textQuery) {
-        String[] tokens = textQuery.toLowerCase().split("\\s+");
-        List<String> sizes = Arrays.asList("xxs", "xs", "s", "m", "l", "xl", "xxl", "xxxl");
-        List<String> colors = Arrays.asList("green", "black", "white", "blue", "yellow", "red", "brown", "orange", "grey");
-
+    /**
+     * @param shingleBoostQuery optional phrase boost added as a should clause, see {@link #createShingleBoostQuery}
+     */
+    private QueryBuilder getQueryByText(ProductAttributeExtractor.ExtractedAttributes attributes,
+                                        QueryBuilder shingleBoostQuery) {
         BoolQueryBuilder mainBoolQuery = QueryBuilders.boolQuery();
-        List<String> generalTokens = new ArrayList<>();
-
-        String matchedSize = null;
-        String matchedColor = null;
-
-        for (String token : tokens) {
-            if (sizes.contains(token)) {
-                matchedSize = token;
-            } else if (colors.contains(token)) {
-                matchedColor = token;
-            } else {
-                generalTokens.add(token);
-            }
-        }
+        List<String> generalTokens = attributes.getGeneralTokens();
 
-        if (matchedColor != null || matchedSize != null) {
+        // SKU attributes only narrow the results, so they are cached filters that add no score
+        if (attributes.hasSkuConstraints() && denormalizedSkus) {
+            mainBoolQuery.filter(createDenormalizedSkuQuery(attributes));
+        } else if (attributes.hasSkuConstraints()) {
             BoolQueryBuilder nestedSkuQuery = QueryBuilders.boolQuery();
-            if (matchedColor != null) {
-                nestedSkuQuery.must(QueryBuilders.matchQuery(SKU_COLOR, matchedColor));
+            if (!attributes.getColors().isEmpty()) {
+                nestedSkuQuery.filter(QueryBuilders.termsQuery(SKU_COLOR, attributes.getColors()));
             }
-            if (matchedSize != null) {
-                nestedSkuQuery.must(QueryBuilders.matchQuery(SKU_SIZE, matchedSize));
+            if (!attributes.getSizes().isEmpty()) {
+                nestedSkuQuery.filter(QueryBuilders.termsQuery(SKU_SIZE, attributes.getSizes()));
             }
 
-            mainBoolQuery.must(QueryBuilders.nestedQuery(SKU_FIELD, nestedSkuQuery, ScoreMode.Avg));
+            mainBoolQuery.filter(QueryBuilders.nestedQuery(SKU_FIELD, nestedSkuQuery, ScoreMode.None));
         }
 
         if (!generalTokens.isEmpty()) {
@@ -298,20 +1220,54 @@ public class ProductRepositoryImpl implements ProductRepository {
 
             mainBoolQuery.must(crossFieldQuery);
 
-            // Shingles boost query
-            MultiMatchQueryBuilder shinglesBoostQuery = QueryBuilders.multiMatchQuery(
-                            generalQueryText,
-                            NAME_SHINGLE, BRAND_SHINGLE
-                    )
-                    .type(MultiMatchQueryBuilder.Type.PHRASE)
-                    .boost(5);
-
-            mainBoolQuery.should(shinglesBoostQuery);
+            if (shingleBoostQuery != null) {
+                mainBoolQuery.should(shingleBoostQuery);
+            }
         }
 
         return mainBoolQuery;
     }
 
+    // Shingles boost query, null when there is no free text to match as a phrase
+    private static QueryBuilder createShingleBoostQuery(ProductAttributeExtractor.ExtractedAttributes attributes) {
+        if (attributes.getGeneralTokens().isEmpty()) {
+            return null;
+        }
+        return QueryBuilders.multiMatchQuery(
+                        String.join(" ", attributes.getGeneralTokens()),
+                        NAME_SHINGLE, BRAND_SHINGLE
+                )
+                .type(MultiMatchQueryBuilder.Type.PHRASE)
+                .boost(5);
+    }
+
+    // Trimming happens while decoding, so SKUs that do not match the query attributes are never allocated
+    BiPredicate<String, String> createSkuFilter(ProductAttributeExtractor.ExtractedAttributes attributes) {
+        if (!onlyMatchingSkus || !attributes.hasSkuConstraints()) {
+            return ProductHitDecoder.ALL_SKUS;
+        }
+
+        Set<String> colors = attributes.getColors();
+        Set<String> sizes = attributes.getSizes();
+        return (color, size) -> (colors.isEmpty() || (color != null && colors.contains(color.toLowerCase())))
+                && (sizes.isEmpty() || (size != null && sizes.contains(size.toLowerCase())));
+    }
+
+    // Color and size of the same SKU are correlated through the combined color|size keys
+    private static QueryBuilder createDenormalizedSkuQuery(ProductAttributeExtractor.ExtractedAttributes attributes) {
+        if (attributes.getSizes().isEmpty()) {
+            return QueryBuilders.termsQuery(SKU_COLORS_FIELD, attributes.getColors());
+        }
+        if (attributes.getColors().isEmpty()) {
+            return QueryBuilders.termsQuery(SKU_SIZES_FIELD, attributes.getSizes());
+        }
+
+        List<String> colorSizes = new ArrayList<>();
+        attributes.getColors().forEach(color -> attributes.getSizes()
+                .forEach(size -> colorSizes.add(ProductSkuAttributes.colorSize(color, size))));
+        return QueryBuilders.termsQuery(SKU_COLOR_SIZES_FIELD, colorSizes);
+    }
+
     private int getDistanceByTermLength(final String token) {
         return token.length() >= fuzzyTwoStartsFromLength
                 ? 2
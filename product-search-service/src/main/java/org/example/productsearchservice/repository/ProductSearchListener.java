@@ -0,0 +1,30 @@
+package org.example.productsearchservice.repository;
+
+import org.example.productsearchservice.model.ProductServiceResponse;
+
+/**
+ * Receives the parts of a progressive search as they complete. Calls come from the ES client
+ * threads and may run concurrently, so implementations have to be thread safe and must not block.
+ */
+public interface ProductSearchListener {
+
+    /**
+     * @param response total hits and products of the requested page, without facets
+     */
+    void onHits(ProductServiceResponse response);
+
+    /**
+     * @param response the single facet in {@code facets}, plus its {@code facetsHasMore} flag when it was cut
+     */
+    void onFacet(String facet, ProductServiceResponse response);
+
+    /**
+     * @param part "hits" or the name of the facet that could not be loaded
+     */
+    void onFailure(String part, Exception ex);
+
+    /**
+     * Called once, after every part has been reported either way.
+     */
+    void onComplete();
+}
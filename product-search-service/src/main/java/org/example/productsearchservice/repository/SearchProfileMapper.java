@@ -0,0 +1,159 @@
+package org.example.productsearchservice.repository;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.profile.ProfileResult;
+import org.elasticsearch.search.profile.ProfileShardResult;
+import org.elasticsearch.search.profile.query.QueryProfileShardResult;
+import org.example.productsearchservice.model.ProductAggregationDto;
+import org.example.productsearchservice.model.ProductSearchProfile;
+import org.example.productsearchservice.model.ProductSearchProfile.FacetApproximation;
+import org.example.productsearchservice.model.ProductSearchProfile.ProfileEntry;
+import org.example.productsearchservice.model.ProductSearchProfile.RescoreComparison;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Condenses the ES profile API output into one tree per query clause and aggregation.
+ * Shards run the same query tree, so the timings of matching nodes are summed.
+ */
+final class SearchProfileMapper {
+
+    private static final int MAX_DESCRIPTION_LENGTH = 200;
+    private static final double NANOS_IN_MILLI = 1_000_000.0;
+    private static final int COMPARED_FACET_VALUES = 10;
+
+    private SearchProfileMapper() {
+    }
+
+    static ProductSearchProfile map(SearchResponse searchResponse,
+                                    long queryBuildNanos, long esRoundTripNanos, long responseMappingNanos) {
+        List<ProfileEntry> queries = new ArrayList<>();
+        List<ProfileEntry> aggregations = new ArrayList<>();
+
+        Map<String, ProfileShardResult> shardResults = searchResponse.getProfileResults();
+        if (shardResults != null) {
+            shardResults.values().forEach(shardResult -> {
+                for (QueryProfileShardResult queryResult : shardResult.getQueryProfileResults()) {
+                    merge(queries, queryResult.getQueryResults());
+                }
+                if (shardResult.getAggregationProfileResults() != null) {
+                    merge(aggregations, shardResult.getAggregationProfileResults().getProfileResults());
+                }
+            });
+        }
+
+        return ProductSearchProfile.builder()
+                .queryBuildMillis(queryBuildNanos / NANOS_IN_MILLI)
+                .esRoundTripMillis(esRoundTripNanos / NANOS_IN_MILLI)
+                .esTookMillis(searchResponse.getTook().millis())
+                .responseMappingMillis(responseMappingNanos / NANOS_IN_MILLI)
+                .queries(queries)
+                .aggregations(aggregations)
+                .build();
+    }
+
+    /**
+     * Compares the facets computed over a sample with the exact ones. For every facet the
+     * precision is the share of the top sampled values found among the same number of top exact values.
+     */
+    @SuppressWarnings("unchecked")
+    static FacetApproximation compareFacets(long sampledTookMillis, long exactTookMillis,
+                                            Map<String, Object> sampledFacets, Map<String, Object> exactFacets) {
+        Map<String, Double> precision = new LinkedHashMap<>();
+        sampledFacets.forEach((facet, sampledValues) -> {
+            List<String> sampledTop = topValues((List<ProductAggregationDto>) sampledValues, COMPARED_FACET_VALUES);
+            if (sampledTop.isEmpty()) {
+                return;
+            }
+            Object exactValues = exactFacets.get(facet);
+            Set<String> exactTop = exactValues == null
+                    ? new HashSet<>()
+                    : new HashSet<>(topValues((List<ProductAggregationDto>) exactValues, sampledTop.size()));
+            long found = sampledTop.stream().filter(exactTop::contains).count();
+            precision.put(facet, (double) found / sampledTop.size());
+        });
+
+        return FacetApproximation.builder()
+                .sampledTookMillis(sampledTookMillis)
+                .exactTookMillis(exactTookMillis)
+                .precision(precision)
+                .build();
+    }
+
+    /**
+     * nDCG of {@code candidateHits} where the gain of a document is its score in {@code referenceHits}
+     * (0 when it is not there); the reference order itself is the ideal ranking.
+     */
+    static RescoreComparison compareRankings(long rescoreTookMillis, long fullScoringTookMillis,
+                                             SearchHit[] candidateHits, SearchHit[] referenceHits) {
+        Map<String, Double> gains = new HashMap<>();
+        double idealDcg = 0;
+        for (int i = 0; i < referenceHits.length; i++) {
+            gains.put(referenceHits[i].getId(), (double) referenceHits[i].getScore());
+            idealDcg += referenceHits[i].getScore() / log2(i + 2);
+        }
+
+        double dcg = 0;
+        for (int i = 0; i < candidateHits.length; i++) {
+            dcg += gains.getOrDefault(candidateHits[i].getId(), 0.0) / log2(i + 2);
+        }
+
+        return RescoreComparison.builder()
+                .rescoreTookMillis(rescoreTookMillis)
+                .fullScoringTookMillis(fullScoringTookMillis)
+                .ndcg(idealDcg == 0 ? 1.0 : dcg / idealDcg)
+                .build();
+    }
+
+    private static double log2(int value) {
+        return Math.log(value) / Math.log(2);
+    }
+
+    private static List<String> topValues(List<ProductAggregationDto> buckets, int limit) {
+        return buckets.stream()
+                .filter(bucket -> bucket.getCount() > 0)
+                .sorted(Comparator.comparingLong(ProductAggregationDto::getCount).reversed())
+                .limit(limit)
+                .map(ProductAggregationDto::getValue)
+                .collect(Collectors.toList());
+    }
+
+    private static void merge(List<ProfileEntry> target, List<ProfileResult> results) {
+        for (ProfileResult result : results) {
+            String description = abbreviate(result.getLuceneDescription());
+
+            ProfileEntry entry = target.stream()
+                    .filter(existing -> Objects.equals(existing.getType(), result.getQueryName())
+                            && Objects.equals(existing.getDescription(), description))
+                    .findFirst()
+                    .orElse(null);
+            if (entry == null) {
+                entry = ProfileEntry.builder()
+                        .type(result.getQueryName())
+                        .description(description)
+                        .children(new ArrayList<>())
+                        .build();
+                target.add(entry);
+            }
+
+            entry.setTimeMillis(entry.getTimeMillis() + result.getTime() / NANOS_IN_MILLI);
+            merge(entry.getChildren(), result.getProfiledChildren());
+        }
+    }
+
+    private static String abbreviate(String description) {
+        return description == null || description.length() <= MAX_DESCRIPTION_LENGTH
+                ? description
+                : description.substring(0, MAX_DESCRIPTION_LENGTH) + "...";
+    }
+}
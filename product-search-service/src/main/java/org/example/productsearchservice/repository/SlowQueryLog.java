@@ -0,0 +1,73 @@
+package org.example.productsearchservice.repository;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.example.productsearchservice.model.ProductRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records product searches above the configured thresholds, and a sample of the faster ones,
+ * to the {@code slowlog.product} logger. logback-spring.xml routes that logger to its own
+ * rolling file through an async appender, so the request thread only formats the entry.
+ */
+@Component
+public class SlowQueryLog {
+
+    private static final Logger slowLog = LoggerFactory.getLogger("slowlog.product");
+
+    @Value("${product.search.slowlog.warnThresholdMs:1000}")
+    private long warnThresholdMs;
+    @Value("${product.search.slowlog.infoThresholdMs:300}")
+    private long infoThresholdMs;
+    // Share of the queries below infoThresholdMs that are logged anyway, 0.0 - 1.0
+    @Value("${product.search.slowlog.sampleRate:0.0}")
+    private double sampleRate;
+
+    public void log(ProductRequest request, SearchSourceBuilder source, SearchResponse response, long wallNanos) {
+        long wallMillis = TimeUnit.NANOSECONDS.toMillis(wallNanos);
+        if (wallMillis >= warnThresholdMs) {
+            if (slowLog.isWarnEnabled()) {
+                slowLog.warn(format("slow", request, source, response, wallMillis));
+            }
+        } else if (wallMillis >= infoThresholdMs) {
+            if (slowLog.isInfoEnabled()) {
+                slowLog.info(format("slow", request, source, response, wallMillis));
+            }
+        } else if (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate) {
+            if (slowLog.isInfoEnabled()) {
+                slowLog.info(format("sampled", request, source, response, wallMillis));
+            }
+        }
+    }
+
+    /**
+     * Failed searches are logged whatever their duration, with the exception that ended them.
+     */
+    public void logFailure(ProductRequest request, SearchSourceBuilder source, Exception failure, long wallNanos) {
+        if (slowLog.isWarnEnabled()) {
+            slowLog.warn(format("failed", request, source, null, TimeUnit.NANOSECONDS.toMillis(wallNanos)) + " error=" + failure);
+        }
+    }
+
+    private static String format(String reason, ProductRequest request, SearchSourceBuilder source,
+                                 SearchResponse response, long wallMillis) {
+        return String.format("%s wall=%dms took=%dms hits=%d textQuery=\"%s\" page=%s size=%s filters=%s source=%s",
+                reason,
+                wallMillis,
+                response == null ? -1 : response.getTook().millis(),
+                response == null || response.getHits().getTotalHits() == null ? -1 : response.getHits().getTotalHits().value,
+                request.getTextQuery(),
+                request.getPage(),
+                request.getSize(),
+                request.getFilters(),
+                // Compact JSON, one line per entry
+                Strings.toString(source));
+    }
+}
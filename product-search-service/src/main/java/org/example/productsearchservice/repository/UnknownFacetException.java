@@ -0,0 +1,12 @@
+package org.example.productsearchservice.repository;
+
+/**
+ * A facet values page was requested for a facet that does not exist or has no values to page through
+ * (price has a fixed set of ranges).
+ */
+public class UnknownFacetException extends RuntimeException {
+
+    public UnknownFacetException(String facet) {
+        super("Facet can not be expanded: " + facet);
+    }
+}
@@ -0,0 +1,113 @@
+package org.example.productsearchservice.rest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import org.example.productsearchservice.model.ProductConditionalStats;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Answers conditional requests. The strong ETag is a hash of the response tag (index version plus the
+ * normalized request, see ProductServiceImpl), so a matching If-None-Match gets 304 before any search runs
+ * and a new index behind the alias invalidates every tag at once. Incomplete and approximate responses get no ETag.
+ * <p>
+ * Bodies are serialized here to know their size; the size of the last body sent per ETag is what a 304 saves.
+ */
+@Component
+class ProductConditionalResponses {
+
+    private final ObjectMapper objectMapper;
+    private final Cache<String, Integer> bodySizes;
+
+    private final AtomicLong taggedCount = new AtomicLong();
+    private final AtomicLong notModifiedCount = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    ProductConditionalResponses(ObjectMapper objectMapper,
+                                @Value("${product.search.conditional.maxTrackedTags:10000}") int maxTrackedTags) {
+        this.objectMapper = objectMapper;
+        this.bodySizes = CacheBuilder.newBuilder()
+                .maximumSize(maxTrackedTags)
+                .build();
+    }
+
+    /**
+     * @param tag        identifies the response, null when it can not be validated
+     * @param isComplete whether the response may be served again under the same ETag
+     */
+    <T> ResponseEntity<byte[]> respond(String tag, String ifNoneMatch, Supplier<T> search, Predicate<T> isComplete) {
+        String etag = tag == null ? null : toETag(tag);
+        if (etag != null) {
+            taggedCount.incrementAndGet();
+            if (ifNoneMatch != null && matches(ifNoneMatch, etag)) {
+                notModifiedCount.incrementAndGet();
+                Integer size = bodySizes.getIfPresent(etag);
+                if (size != null) {
+                    bytesSaved.addAndGet(size);
+                }
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+            }
+        }
+
+        T response = search.get();
+        byte[] body = serialize(response);
+        bytesSent.addAndGet(body.length);
+        ResponseEntity.BodyBuilder builder = ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON);
+        if (etag != null && isComplete.test(response)) {
+            bodySizes.put(etag, body.length);
+            builder.eTag(etag);
+        }
+        return builder.body(body);
+    }
+
+    ProductConditionalStats getStats() {
+        long tagged = taggedCount.get();
+        long notModified = notModifiedCount.get();
+        return ProductConditionalStats.builder()
+                .taggedCount(tagged)
+                .notModifiedCount(notModified)
+                .notModifiedRate(tagged == 0 ? 0.0 : (double) notModified / tagged)
+                .bytesSent(bytesSent.get())
+                .bytesSaved(bytesSaved.get())
+                .build();
+    }
+
+    private static String toETag(String tag) {
+        return "\"" + Hashing.murmur3_128().hashString(tag, Charsets.UTF_8) + "\"";
+    }
+
+    // If-None-Match uses the weak comparison, so W/ prefixes added by proxies still match
+    private static boolean matches(String ifNoneMatch, String etag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            if (value.startsWith("W/")) {
+                value = value.substring(2);
+            }
+            if (value.equals("*") || value.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private byte[] serialize(Object response) {
+        try {
+            return objectMapper.writeValueAsBytes(response);
+        } catch (JsonProcessingException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
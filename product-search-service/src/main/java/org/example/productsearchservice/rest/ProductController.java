@@ -1,25 +1,108 @@
 package org.example.productsearchservice.rest;
 
+import org.example.productsearchservice.model.ProductCacheStats;
+import org.example.productsearchservice.model.ProductConditionalStats;
+import org.example.productsearchservice.model.ProductFacetRequest;
+import org.example.productsearchservice.model.ProductHedgingStats;
 import org.example.productsearchservice.model.ProductRequest;
-import org.example.productsearchservice.model.ProductServiceResponse;
+import org.example.productsearchservice.repository.HedgedSearchExecutor;
+import org.example.productsearchservice.repository.UnknownFacetException;
+import org.example.productsearchservice.service.ProductExportService;
 import org.example.productsearchservice.service.ProductServiceImpl;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 @RestController
 @RequestMapping(value = "/v1/products")
 public class ProductController {
 
+    private static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+
     @Autowired
     private ProductServiceImpl productService;
+    @Autowired
+    private ProductExportService productExportService;
+    @Autowired
+    private ProductConditionalResponses conditionalResponses;
+    @Autowired
+    private HedgedSearchExecutor hedgedSearchExecutor;
+
+    @Value("${product.search.stream.timeoutMs:30000}")
+    private long streamTimeoutMs;
 
     @PostMapping(consumes = MediaType.APPLICATION_JSON_VALUE,
         produces = MediaType.APPLICATION_JSON_VALUE)
-    public ProductServiceResponse getSearchServiceResponse(@RequestBody ProductRequest request) {
-        return productService.getServiceResponse(request);
+    public ResponseEntity<byte[]> getSearchServiceResponse(@RequestBody ProductRequest request,
+                                                           @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        return conditionalResponses.respond(productService.getResponseTag(request), ifNoneMatch,
+            () -> productService.getServiceResponse(request),
+            // Facets are sampled once the query total is known, so the same tag can answer exact and approximate bodies
+            response -> response.getTotalHits() != null && !Boolean.TRUE.equals(response.getPartial())
+                && !Boolean.TRUE.equals(response.getApproximateFacets()));
+    }
+
+    @PostMapping(value = "/stream",
+        consumes = MediaType.APPLICATION_JSON_VALUE,
+        produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamSearchServiceResponse(@RequestBody ProductRequest request) {
+        SseEmitter emitter = new SseEmitter(streamTimeoutMs);
+        productService.streamServiceResponse(request, new ProductSseListener(emitter));
+        return emitter;
+    }
+
+    @PostMapping(value = "/export",
+        consumes = MediaType.APPLICATION_JSON_VALUE,
+        produces = APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> exportProducts(@RequestBody ProductRequest request) {
+        StreamingResponseBody body = out -> productExportService.exportProducts(request, out);
+        return ResponseEntity.ok()
+            .contentType(MediaType.parseMediaType(APPLICATION_NDJSON_VALUE))
+            .body(body);
+    }
+
+    @PostMapping(value = "/facets/{facet}",
+        consumes = MediaType.APPLICATION_JSON_VALUE,
+        produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<byte[]> getFacetValues(@PathVariable String facet, @RequestBody ProductFacetRequest request,
+                                                 @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        return conditionalResponses.respond(productService.getFacetValuesTag(facet, request), ifNoneMatch,
+            () -> productService.getFacetValues(facet, request),
+            page -> !Boolean.TRUE.equals(page.getPartial()));
+    }
+
+    @ExceptionHandler(UnknownFacetException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public String handleUnknownFacet(UnknownFacetException ex) {
+        return ex.getMessage();
+    }
+
+    @GetMapping(value = "/cache/stats", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ProductCacheStats getCacheStats() {
+        return productService.getCacheStats();
+    }
+
+    @GetMapping(value = "/conditional/stats", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ProductConditionalStats getConditionalStats() {
+        return conditionalResponses.getStats();
+    }
+
+    @GetMapping(value = "/hedging/stats", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ProductHedgingStats getHedgingStats() {
+        return hedgedSearchExecutor.getStats();
     }
 }
@@ -0,0 +1,61 @@
+package org.example.productsearchservice.rest;
+
+import lombok.extern.slf4j.Slf4j;
+import org.example.productsearchservice.model.ProductServiceResponse;
+import org.example.productsearchservice.repository.ProductSearchListener;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ * Writes the parts of a progressive search as Server-Sent Events: one {@code products} event,
+ * one {@code facet} event per facet and an {@code error} event per failed part, in completion order.
+ * Every payload has the shape of the regular search response, so a client can merge them into one.
+ */
+@Slf4j
+class ProductSseListener implements ProductSearchListener {
+
+    static final String PRODUCTS_EVENT = "products";
+    static final String FACET_EVENT = "facet";
+    static final String ERROR_EVENT = "error";
+
+    private final SseEmitter emitter;
+
+    ProductSseListener(SseEmitter emitter) {
+        this.emitter = emitter;
+    }
+
+    @Override
+    public void onHits(ProductServiceResponse response) {
+        send(PRODUCTS_EVENT, response);
+    }
+
+    @Override
+    public void onFacet(String facet, ProductServiceResponse response) {
+        send(FACET_EVENT, response);
+    }
+
+    @Override
+    public void onFailure(String part, Exception ex) {
+        send(ERROR_EVENT, Collections.singletonMap("part", part));
+    }
+
+    @Override
+    public void onComplete() {
+        emitter.complete();
+    }
+
+    // Parts arrive on different client threads, the emitter serializes the sends
+    private void send(String event, Object data) {
+        try {
+            emitter.send(SseEmitter.event()
+                    .name(event)
+                    .data(data, MediaType.APPLICATION_JSON));
+        } catch (IOException | IllegalStateException ex) {
+            // The client is gone or the stream has timed out, the remaining parts are dropped
+            log.debug("Can not send {} event: {}", event, ex.getMessage());
+        }
+    }
+}
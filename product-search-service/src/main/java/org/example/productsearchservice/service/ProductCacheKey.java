@@ -0,0 +1,53 @@
+package org.example.productsearchservice.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.example.productsearchservice.model.ProductRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+@Data
+@AllArgsConstructor
+public class ProductCacheKey {
+    private final String indexVersion;
+    private final String textQuery;
+    private final int page;
+    private final int size;
+    private final Map<String, List<String>> filters;
+
+    public static ProductCacheKey of(String indexVersion, ProductRequest request) {
+        return new ProductCacheKey(
+                indexVersion,
+                normalizeQuery(request.getTextQuery()),
+                request.getPage(),
+                request.getSize(),
+                normalizeFilters(request.getFilters()));
+    }
+
+    public ProductCacheKey nextPage() {
+        return new ProductCacheKey(indexVersion, textQuery, page + 1, size, filters);
+    }
+
+    public static String normalizeQuery(String textQuery) {
+        return textQuery.trim().toLowerCase().replaceAll("\\s+", " ");
+    }
+
+    // Selection order does not change the result, so the values are sorted
+    static Map<String, List<String>> normalizeFilters(Map<String, List<String>> filters) {
+        Map<String, List<String>> result = new TreeMap<>();
+        if (filters != null) {
+            filters.forEach((facet, values) -> {
+                if (values != null && !values.isEmpty()) {
+                    List<String> sortedValues = new ArrayList<>(values);
+                    Collections.sort(sortedValues);
+                    result.put(facet, sortedValues);
+                }
+            });
+        }
+        return result;
+    }
+}
@@ -0,0 +1,203 @@
+package org.example.productsearchservice.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.example.productsearchservice.model.Product;
+import org.example.productsearchservice.model.ProductExportStatus;
+import org.example.productsearchservice.model.ProductRequest;
+import org.example.productsearchservice.repository.ProductRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Writes every product matching a query as NDJSON. The result set is walked with
+ * (optionally sliced) scrolls; slices hand their batches over through a small bounded
+ * queue, so a slow client pauses the scrolls and memory stays constant.
+ * <p>
+ * The last line is a {@link ProductExportStatus}: the 200 is sent with the first products, so an export
+ * that fails halfway can only say so in the body. The first failing slice stops the other ones.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ProductExportService {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+    private static final List<Product> END_OF_SLICE = Collections.emptyList();
+    private static final byte[] NEW_LINE = {'\n'};
+
+    private final ProductRepository productRepository;
+
+    @Value("${product.search.request.minQueryLength}")
+    private int minQueryLength;
+    @Value("${product.search.export.slices:1}")
+    private int slices;
+    @Value("${product.search.export.queueSize:4}")
+    private int queueSize;
+    @Value("${product.search.export.threads:8}")
+    private int threads;
+    @Value("${product.search.export.maxQueuedSlices:16}")
+    private int maxQueuedSlices;
+
+    private ThreadPoolExecutor sliceExecutor;
+
+    @PostConstruct
+    public void init() {
+        // Every running slice holds a scroll context, slices over the queue are refused instead of piling up
+        sliceExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(maxQueuedSlices),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("product-export-%d")
+                        .setDaemon(true)
+                        .build());
+        sliceExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sliceExecutor.shutdownNow();
+    }
+
+    public void exportProducts(ProductRequest request, OutputStream out) throws IOException {
+        ExportWriter writer = new ExportWriter(out);
+        if (request.getTextQuery() == null || request.getTextQuery().length() < minQueryLength) {
+            writer.finish(null);
+            return;
+        }
+
+        String error = null;
+        try {
+            if (slices <= 1) {
+                productRepository.scrollAllProductsByQuery(request, 0, 1, writer::write);
+            } else {
+                exportSlices(request, writer);
+            }
+        } catch (RuntimeException ex) {
+            log.warn("Product export of '{}' has failed after {} products", request.getTextQuery(), writer.count, ex);
+            error = ex.getMessage() != null ? ex.getMessage() : ex.getClass().getSimpleName();
+        }
+        writer.finish(error);
+    }
+
+    private void exportSlices(ProductRequest request, ExportWriter writer) {
+        BlockingQueue<List<Product>> queue = new ArrayBlockingQueue<>(queueSize);
+        AtomicBoolean cancelled = new AtomicBoolean();
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+        int runningSlices = 0;
+        try {
+            for (int slice = 0; slice < slices; slice++) {
+                int sliceId = slice;
+                try {
+                    sliceExecutor.execute(() -> {
+                        try {
+                            if (!cancelled.get()) {
+                                productRepository.scrollAllProductsByQuery(request, sliceId, slices,
+                                        batch -> offer(queue, batch, cancelled));
+                            }
+                        } catch (RuntimeException ex) {
+                            // The other slices see the flag on their next batch and close their scrolls
+                            failure.compareAndSet(null, ex);
+                            cancelled.set(true);
+                        } finally {
+                            offer(queue, END_OF_SLICE, cancelled);
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    throw new IllegalStateException("Too many exports are running, try again later", ex);
+                }
+                runningSlices++;
+            }
+
+            while (runningSlices > 0 && failure.get() == null) {
+                List<Product> batch = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (batch == END_OF_SLICE) {
+                    runningSlices--;
+                } else if (batch != null && !writer.write(batch)) {
+                    return;
+                }
+            }
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Export has been interrupted", ex);
+        } finally {
+            cancelled.set(true);
+            queue.clear();
+        }
+    }
+
+    // Blocks while the writer is behind, which is what pauses the scroll of this slice
+    private static boolean offer(BlockingQueue<List<Product>> queue, List<Product> batch, AtomicBoolean cancelled) {
+        try {
+            while (!cancelled.get()) {
+                if (queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    // Used by the request thread only, the slices hand their batches over to it
+    private static final class ExportWriter {
+        private final OutputStream out;
+        private long count;
+        private IOException failure;
+
+        private ExportWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        // A client that stops reading stops the scrolls
+        private boolean write(List<Product> batch) {
+            try {
+                for (Product product : batch) {
+                    objectMapper.writeValue(out, product);
+                    out.write(NEW_LINE);
+                    count++;
+                }
+                return true;
+            } catch (IOException ex) {
+                failure = ex;
+                return false;
+            }
+        }
+
+        private void finish(String error) throws IOException {
+            if (failure != null) {
+                log.info("Product export has been aborted: {}", failure.getMessage());
+                throw failure;
+            }
+            objectMapper.writeValue(out, ProductExportStatus.builder()
+                    .complete(error == null ? true : null)
+                    .count(count)
+                    .error(error)
+                    .build());
+            out.write(NEW_LINE);
+            out.flush();
+        }
+    }
+}
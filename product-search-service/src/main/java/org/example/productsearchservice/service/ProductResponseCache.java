@@ -0,0 +1,210 @@
+package org.example.productsearchservice.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.example.productsearchservice.model.ProductAggregationDto;
+import org.example.productsearchservice.model.ProductCacheStats;
+import org.example.productsearchservice.model.ProductRequest;
+import org.example.productsearchservice.model.ProductServiceResponse;
+import org.example.productsearchservice.repository.ProductIndexVersionTracker;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Bounded cache of product search pages. Keys carry the index version behind the alias,
+ * so entries of a replaced index are never served and are dropped as soon as the alias moves.
+ * Serving page N schedules a low priority prefetch of page N+1.
+ * <p>
+ * Responses are mutable, so the cache keeps its own copy and every caller gets another one.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class ProductResponseCache {
+
+    private final ProductIndexVersionTracker indexVersionTracker;
+
+    private final Set<ProductCacheKey> inFlightPrefetches = ConcurrentHashMap.newKeySet();
+    private final AtomicLong prefetchCount = new AtomicLong();
+    private final AtomicLong prefetchHitCount = new AtomicLong();
+    private final AtomicLong prefetchRejectedCount = new AtomicLong();
+
+    @Value("${product.search.cache.enabled:true}")
+    private boolean enabled;
+    @Value("${product.search.cache.maxSize:10000}")
+    private long maxSize;
+    @Value("${product.search.cache.expireAfterWriteSeconds:300}")
+    private long expireAfterWriteSeconds;
+    @Value("${product.search.cache.prefetch.enabled:true}")
+    private boolean prefetchEnabled;
+    @Value("${product.search.cache.prefetch.threads:1}")
+    private int prefetchThreads;
+    @Value("${product.search.cache.prefetch.queueSize:100}")
+    private int prefetchQueueSize;
+
+    private Cache<ProductCacheKey, CachedResponse> cache;
+    private ThreadPoolExecutor prefetchExecutor;
+
+    @PostConstruct
+    public void init() {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(expireAfterWriteSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+
+        // Prefetches must never compete with user requests, so they run on a few low priority threads
+        // and are dropped when the queue is full
+        prefetchExecutor = new ThreadPoolExecutor(prefetchThreads, prefetchThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(prefetchQueueSize),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("product-prefetch-%d")
+                        .setDaemon(true)
+                        .setPriority(Thread.MIN_PRIORITY)
+                        .build());
+
+        indexVersionTracker.addListener(indexName -> cache.invalidateAll());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        prefetchExecutor.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public ProductCacheKey createKey(ProductRequest request) {
+        return ProductCacheKey.of(indexVersionTracker.getCurrentVersion(), request);
+    }
+
+    public ProductServiceResponse get(ProductCacheKey key) {
+        CachedResponse cached = cache.getIfPresent(key);
+        if (cached == null) {
+            return null;
+        }
+        if (cached.prefetched && cached.served.compareAndSet(false, true)) {
+            prefetchHitCount.incrementAndGet();
+        }
+        return copy(cached.response);
+    }
+
+    public void put(ProductCacheKey key, ProductServiceResponse response) {
+        if (isCacheable(response)) {
+            cache.put(key, new CachedResponse(copy(response), false));
+        }
+    }
+
+    /**
+     * Loads the page after {@code key} in the background unless it is cached, being loaded,
+     * or beyond the last hit.
+     */
+    public void prefetchNextPage(ProductCacheKey key, long totalHits, Supplier<ProductServiceResponse> loader) {
+        ProductCacheKey nextKey = key.nextPage();
+        if (!prefetchEnabled || (long) nextKey.getPage() * nextKey.getSize() >= totalHits
+                || cache.getIfPresent(nextKey) != null || !inFlightPrefetches.add(nextKey)) {
+            return;
+        }
+
+        try {
+            prefetchExecutor.execute(() -> {
+                try {
+                    ProductServiceResponse response = loader.get();
+                    if (isCacheable(response)) {
+                        cache.put(nextKey, new CachedResponse(response, true));
+                        prefetchCount.incrementAndGet();
+                    }
+                } catch (RuntimeException ex) {
+                    log.warn("Prefetch of page {} for '{}' failed: {}", nextKey.getPage(), nextKey.getTextQuery(), ex.getMessage());
+                } finally {
+                    inFlightPrefetches.remove(nextKey);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            inFlightPrefetches.remove(nextKey);
+            prefetchRejectedCount.incrementAndGet();
+        }
+    }
+
+    public ProductCacheStats getStats() {
+        CacheStats stats = cache.stats();
+        long prefetches = prefetchCount.get();
+        long prefetchHits = prefetchHitCount.get();
+        return ProductCacheStats.builder()
+                .size(cache.size())
+                .hitCount(stats.hitCount())
+                .missCount(stats.missCount())
+                .hitRate(stats.hitRate())
+                .prefetchCount(prefetches)
+                .prefetchHitCount(prefetchHits)
+                .prefetchHitRate(prefetches == 0 ? 0.0 : (double) prefetchHits / prefetches)
+                .prefetchRejectedCount(prefetchRejectedCount.get())
+                .build();
+    }
+
+    // Failed searches come back without totalHits, searches cut short by the latency budget are partial
+    private static boolean isCacheable(ProductServiceResponse response) {
+        return response != null && response.getTotalHits() != null && !Boolean.TRUE.equals(response.getPartial());
+    }
+
+    static ProductServiceResponse copy(ProductServiceResponse response) {
+        return response.toBuilder()
+                .products(copyList(response.getProducts(), product -> product.toBuilder()
+                        .skus(copyList(product.getSkus(), sku -> sku.toBuilder().build()))
+                        .build()))
+                .facets(copyFacets(response.getFacets()))
+                .facetsHasMore(response.getFacetsHasMore() == null ? null : new LinkedHashMap<>(response.getFacetsHasMore()))
+                .build();
+    }
+
+    // Facet values are lists of buckets, the price ones in range order
+    private static Map<String, Object> copyFacets(Map<String, Object> facets) {
+        if (facets == null) {
+            return null;
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        facets.forEach((facet, values) -> result.put(facet, values instanceof List
+                ? copyList((List<?>) values, bucket -> bucket instanceof ProductAggregationDto
+                        ? ((ProductAggregationDto) bucket).toBuilder().build()
+                        : bucket)
+                : values));
+        return result;
+    }
+
+    private static <T, R> List<R> copyList(List<T> values, Function<T, R> copy) {
+        return values == null ? null : values.stream().map(copy).collect(Collectors.toList());
+    }
+
+    private static class CachedResponse {
+        private final ProductServiceResponse response;
+        private final boolean prefetched;
+        private final AtomicBoolean served = new AtomicBoolean();
+
+        private CachedResponse(ProductServiceResponse response, boolean prefetched) {
+            this.response = response;
+            this.prefetched = prefetched;
+        }
+    }
+}
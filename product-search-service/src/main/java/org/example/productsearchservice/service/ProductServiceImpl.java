@@ -22,9 +22,15 @@ import org.elasticsearch.client.indices.CreateIndexRequest;
 import org.elasticsearch.client.indices.CreateIndexResponse;
 import org.elasticsearch.client.indices.GetIndexRequest;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.example.productindexer.service.ProductSkuAttributes;
+import org.example.productsearchservice.model.ProductCacheStats;
+import org.example.productsearchservice.model.ProductFacetPage;
+import org.example.productsearchservice.model.ProductFacetRequest;
 import org.example.productsearchservice.model.ProductRequest;
 import org.example.productsearchservice.model.ProductServiceResponse;
+import org.example.productsearchservice.repository.ProductIndexVersionTracker;
 import org.example.productsearchservice.repository.ProductRepository;
+import org.example.productsearchservice.repository.ProductSearchListener;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
@@ -47,6 +53,8 @@ import static java.util.Collections.emptyMap;
 public class ProductServiceImpl {
 
     private final ProductRepository productRepository;
+    private final ProductIndexVersionTracker indexVersionTracker;
+    private final ProductResponseCache responseCache;
     private final RestHighLevelClient esClient;
     private static final ObjectMapper objectMapper = new ObjectMapper();
 
@@ -56,6 +64,14 @@ public class ProductServiceImpl {
     private int defaultSize;
     @Value("${product.search.request.minQueryLength}")
     private int minQueryLength;
+    @Value("${product.search.request.default.facetPageSize:50}")
+    private int defaultFacetPageSize;
+    @Value("${product.search.budget.products.timeoutMs:1000}")
+    private long productsTimeoutMs;
+    @Value("${product.search.budget.facets.timeoutMs:500}")
+    private long facetsTimeoutMs;
+    @Value("${product.search.budget.maxTimeoutMs:5000}")
+    private long maxTimeoutMs;
 
     @Value("${product.search.files.mappings:classpath:elastic/product/mappings.json}")
     private Resource productsMappingsFile;
@@ -81,6 +97,7 @@ public class ProductServiceImpl {
         deleteOutdatedIndex(aliasName, newIndexName);
 
         processBulkInsertData(productsBulkInsertDataFile, newIndexName);
+        indexVersionTracker.update(newIndexName);
     }
 
     private void updateAliasesByName(String aliasName, String newIndexName) {
@@ -145,6 +162,7 @@ public class ProductServiceImpl {
 
             products.stream()
                     .map(product -> {
+                        ProductSkuAttributes.addDenormalized(product);
                         String id = product.get("id").toString();
                         return new IndexRequest(newIndexName)
                                 .id(id)
@@ -209,7 +227,93 @@ public class ProductServiceImpl {
                     .build();
         }
         prepareServiceRequest(request);
-        return productRepository.getAllProductsByQuery(request);
+        // Profiled requests must reach ES to be measured
+        if (!responseCache.isEnabled() || request.isProfile()) {
+            return productRepository.getAllProductsByQuery(request);
+        }
+
+        ProductCacheKey cacheKey = responseCache.createKey(request);
+        ProductServiceResponse response = responseCache.get(cacheKey);
+        if (response == null) {
+            response = productRepository.getAllProductsByQuery(request);
+            responseCache.put(cacheKey, response);
+        }
+
+        if (response.getTotalHits() != null) {
+            ProductRequest nextPageRequest = getNextPageRequest(request);
+            responseCache.prefetchNextPage(cacheKey, response.getTotalHits(),
+                    () -> productRepository.getAllProductsByQuery(nextPageRequest));
+        }
+        return response;
+    }
+
+    /**
+     * Progressive variant of {@link #getServiceResponse}: parts are reported to the listener as they
+     * arrive. It always goes to ES, partial results are not cached.
+     */
+    public void streamServiceResponse(ProductRequest request, ProductSearchListener listener) {
+        if (request.getTextQuery() == null || request.getTextQuery().isEmpty() || request.getTextQuery().length() < minQueryLength) {
+            listener.onHits(ProductServiceResponse.builder()
+                    .totalHits(0L)
+                    .products(emptyList())
+                    .build());
+            listener.onComplete();
+            return;
+        }
+        prepareServiceRequest(request);
+        productRepository.streamProductsByQuery(request, listener);
+    }
+
+    /**
+     * Identifies the response of the request for conditional requests: the index behind the alias
+     * plus the normalized request. Null when the index is not known yet or the response can not repeat.
+     */
+    public String getResponseTag(ProductRequest request) {
+        String indexVersion = indexVersionTracker.getCurrentVersion();
+        if (indexVersion == null || request.getTextQuery() == null || request.isProfile()) {
+            return null;
+        }
+        prepareServiceRequest(request);
+        return ProductCacheKey.of(indexVersion, request).toString();
+    }
+
+    public String getFacetValuesTag(String facet, ProductFacetRequest request) {
+        String indexVersion = indexVersionTracker.getCurrentVersion();
+        if (indexVersion == null || request.getTextQuery() == null) {
+            return null;
+        }
+        int size = request.getSize() == null || request.getSize() <= 0 ? defaultFacetPageSize : request.getSize();
+        return String.join("|", indexVersion, facet, ProductCacheKey.normalizeQuery(request.getTextQuery()),
+                ProductCacheKey.normalizeFilters(request.getFilters()).toString(),
+                String.valueOf(size), String.valueOf(request.getAfter()));
+    }
+
+    public ProductFacetPage getFacetValues(String facet, ProductFacetRequest request) {
+        if (request.getTextQuery() == null || request.getTextQuery().length() < minQueryLength) {
+            return ProductFacetPage.builder()
+                    .facet(facet)
+                    .values(emptyList())
+                    .build();
+        }
+        if (request.getSize() == null || request.getSize() <= 0) {
+            request.setSize(defaultFacetPageSize);
+        }
+        request.setTimeoutMs(resolveTimeout(request.getTimeoutMs(), facetsTimeoutMs));
+        return productRepository.getFacetValues(facet, request);
+    }
+
+    public ProductCacheStats getCacheStats() {
+        return responseCache.getStats();
+    }
+
+    private static ProductRequest getNextPageRequest(ProductRequest request) {
+        ProductRequest nextPageRequest = new ProductRequest();
+        nextPageRequest.setTextQuery(request.getTextQuery());
+        nextPageRequest.setFilters(request.getFilters());
+        nextPageRequest.setPage(request.getPage() + 1);
+        nextPageRequest.setSize(request.getSize());
+        nextPageRequest.setTimeoutMs(request.getTimeoutMs());
+        return nextPageRequest;
     }
 
     private void prepareServiceRequest(ProductRequest request) {
@@ -219,5 +323,14 @@ public class ProductServiceImpl {
         if (request.getPage() == null || request.getPage() <= 0) {
             request.setPage(defaultPage);
         }
+        request.setTimeoutMs(resolveTimeout(request.getTimeoutMs(), productsTimeoutMs));
+    }
+
+    // A client may ask for a tighter or looser budget, but never for more than maxTimeoutMs
+    private long resolveTimeout(Long requested, long defaultTimeoutMs) {
+        if (requested == null || requested <= 0) {
+            return defaultTimeoutMs;
+        }
+        return Math.min(requested, maxTimeoutMs);
     }
 }
@@ -0,0 +1,71 @@
+package org.example.productsearchservice;
+
+import org.example.productsearchservice.service.ProductServiceImpl;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Facets are sampled once a query is known to match at least hitsThreshold products. The response cache is off,
+ * so the repeated request reaches ES.
+ */
+@TestPropertySource(properties = {
+        "product.search.facets.approximate.enabled=true",
+        "product.search.facets.approximate.hitsThreshold=5",
+        "product.search.cache.enabled=false"
+})
+public class ApproximateFacetsIntegrationTest extends BaseTest {
+
+    private final APIClient client = new APIClient();
+
+    @Autowired
+    ProductServiceImpl productService;
+
+    @Before
+    public void init() throws InterruptedException {
+        productService.recreateIndex();
+        Thread.sleep(1100);
+    }
+
+    @Test
+    public void testRepeatedQueryOverThresholdGetsSampledFacets() {
+        // The total of the query is not known yet, so the facets are exact
+        client.productRequest()
+                .body("{\"textQuery\": \"jeans\"}")
+                .post()
+                .then()
+                .statusCode(200)
+                .body("totalHits", is(8))
+                .body("approximateFacets", nullValue())
+                .header("ETag", notNullValue());
+
+        // The same query, normalized like the cache key; the sample holds every match of the small fixture
+        client.productRequest()
+                .body("{\"textQuery\": \"  JEANS \"}")
+                .post()
+                .then()
+                .statusCode(200)
+                .body("totalHits", is(8))
+                .body("approximateFacets", is(true))
+                .body("facets.brand.value", contains("Calvin Klein", "Levi's"))
+                .body("facets.brand.count", contains(4, 4))
+                .header("ETag", nullValue());
+    }
+
+    @Test
+    public void testQueryUnderThresholdKeepsExactFacets() {
+        for (int i = 0; i < 2; i++) {
+            client.productRequest()
+                    .body("{\"textQuery\": \"Calvin klein L blue ankle skinny jeans\"}")
+                    .post()
+                    .then()
+                    .statusCode(200)
+                    .body("totalHits", is(1))
+                    .body("approximateFacets", nullValue());
+        }
+    }
+
+}
@@ -11,6 +11,9 @@ import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.context.support.DependencyInjectionTestExecutionListener;
 
+import java.util.Arrays;
+import java.util.List;
+
 import static io.restassured.RestAssured.given;
 
 @RunWith(SpringRunner.class)
@@ -44,6 +47,19 @@ public abstract class BaseTest {
                 .header("Content-Type", "application/json");
         }
 
+        /**
+         * @return lines of the NDJSON export, the status line last
+         */
+        public List<String> exportProducts(String body) {
+            String export = productRequest()
+                .body(body)
+                .post("/export")
+                .then()
+                .statusCode(200)
+                .extract().asString();
+            return Arrays.asList(export.split("\n"));
+        }
+
         public RequestSpecification baseRequest() {
             RequestSpecification requestSpecification = given()
                 .baseUri("http://localhost").port(getSpringBootPort())
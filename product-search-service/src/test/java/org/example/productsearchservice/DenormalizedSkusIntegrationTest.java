@@ -0,0 +1,10 @@
+package org.example.productsearchservice;
+
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * The tests of {@link ExercisesIntegrationTest} over the flattened SKU fields instead of the nested ones.
+ */
+@TestPropertySource(properties = "product.search.facets.denormalizedSkus=true")
+public class DenormalizedSkusIntegrationTest extends ExercisesIntegrationTest {
+}
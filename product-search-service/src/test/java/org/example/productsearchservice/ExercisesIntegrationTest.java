@@ -1,10 +1,15 @@
 package org.example.productsearchservice;
 
+import io.restassured.path.json.JsonPath;
 import org.example.productsearchservice.service.ProductServiceImpl;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
 
 public class ExercisesIntegrationTest extends BaseTest {
@@ -121,4 +126,132 @@ public class ExercisesIntegrationTest extends BaseTest {
                 .body("facets.size[5].count", is(2));
     }
 
+    @Test
+    public void testFacetFiltersKeepMultiSelectCounts() {
+        client.productRequest()
+                .body("{\"textQuery\": \"jeans\", \"filters\": {\"brand\": [\"Levi's\"], \"price\": [\"Average\"]}}")
+                .post()
+                .then()
+                .statusCode(200)
+                .body("totalHits", is(4))
+                .body("products.brand", everyItem(is("Levi's")))
+
+                // the brand facet ignores its own selection but respects the price one
+                .body("facets.brand", hasSize(2))
+                .body("facets.brand[0].value", is("Levi's"))
+                .body("facets.brand[0].count", is(4))
+                .body("facets.brand[1].value", is("Calvin Klein"))
+                .body("facets.brand[1].count", is(2))
+
+                // the price facet is narrowed by the brand selection only
+                .body("facets.price[1].value", is("Average"))
+                .body("facets.price[1].count", is(4));
+    }
+
+    @Test
+    public void testQueryWithSeveralSizesMatchesAnyOfThem() {
+        client.productRequest()
+                .body("{\"textQuery\": \"women xs xxl jeans\"}")
+                .post()
+                .then()
+                .statusCode(200)
+                .body("totalHits", is(2))
+                .body("products.id", containsInAnyOrder("3", "6"));
+    }
+
+    @Test
+    public void testProfileModeReturnsTimings() {
+        client.productRequest()
+                .body("{\"textQuery\": \"Calvin Klein\", \"profile\": true}")
+                .post()
+                .then()
+                .statusCode(200)
+                .body("profile", notNullValue())
+                .body("profile.queries", not(empty()))
+                .body("profile.esTookMillis", greaterThanOrEqualTo(0));
+    }
+
+    @Test
+    public void testFacetExpansionPagesValuesInKeyOrder() {
+        client.productRequest()
+                .body("{\"textQuery\": \"jeans\", \"size\": 4}")
+                .post("/facets/size")
+                .then()
+                .statusCode(200)
+                .body("values.value", contains("L", "M", "S", "XL"))
+                .body("values.count", contains(8, 8, 6, 5))
+                .body("after", is("xl"));
+
+        client.productRequest()
+                .body("{\"textQuery\": \"jeans\", \"size\": 4, \"after\": \"xl\"}")
+                .post("/facets/size")
+                .then()
+                .statusCode(200)
+                .body("values.value", contains("XS", "XXL"))
+                .body("after", nullValue());
+    }
+
+    @Test
+    public void testStreamSendsProductsAndEveryFacet() {
+        client.productRequest()
+                .body("{\"textQuery\": \"jeans\"}")
+                .post("/stream")
+                .then()
+                .statusCode(200)
+                .body(containsString("event:products"),
+                        containsString("\"totalHits\":8"),
+                        containsString("\"price\":"),
+                        containsString("\"brand\":"),
+                        containsString("\"color\":"),
+                        containsString("\"size\":"),
+                        not(containsString("event:error")));
+    }
+
+    @Test
+    public void testRequestBudgetIsAppliedWithoutCuttingResults() {
+        client.productRequest()
+                .body("{\"textQuery\": \"jeans\", \"timeoutMs\": 60000}")
+                .post()
+                .then()
+                .statusCode(200)
+                .body("totalHits", is(8))
+                .body("partial", nullValue());
+    }
+
+    @Test
+    public void testRepeatedRequestWithETagIsNotModified() {
+        String etag = client.productRequest()
+                .body("{\"textQuery\": \"jeans\"}")
+                .post()
+                .then()
+                .statusCode(200)
+                .header("ETag", notNullValue())
+                .extract().header("ETag");
+
+        client.productRequest()
+                .header("If-None-Match", etag)
+                .body("{\"textQuery\": \"jeans\"}")
+                .post()
+                .then()
+                .statusCode(304);
+    }
+
+    @Test
+    public void testExportWritesEveryMatchAndStatusLine() {
+        assertExportsJeans(client.exportProducts("{\"textQuery\": \"jeans\"}"));
+    }
+
+    static void assertExportsJeans(List<String> lines) {
+        assertThat(lines, hasSize(9));
+        List<String> ids = lines.subList(0, 8).stream()
+                .map(line -> JsonPath.from(line).getString("id"))
+                .collect(Collectors.toList());
+        assertThat(ids, containsInAnyOrder("1", "2", "3", "4", "5", "6", "7", "8"));
+
+        JsonPath status = JsonPath.from(lines.get(8));
+        assertThat(status.getBoolean("complete"), is(true));
+        assertThat(status.getInt("count"), is(8));
+        assertThat(status.getString("error"), nullValue());
+    }
+
 }
@@ -0,0 +1,122 @@
+package org.example.productsearchservice;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.example.productindexer.service.ProductLuceneIndexWriter;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+
+/**
+ * The lucene engine over the fixture of {@link ExercisesIntegrationTest}, held to the counts the ES engine returns there.
+ */
+@TestPropertySource(properties = {
+        "product.search.engine=lucene",
+        "product.search.lucene.dir=" + LuceneEngineIntegrationTest.LUCENE_DIR
+})
+public class LuceneEngineIntegrationTest extends BaseTest {
+
+    static final String LUCENE_DIR = "target/lucene-integration-test";
+
+    private final APIClient client = new APIClient();
+
+    // Written before the context starts, the engine opens the newest index of the alias on startup
+    @BeforeClass
+    public static void writeIndex() throws IOException {
+        Path directory = Paths.get(LUCENE_DIR);
+        ProductLuceneIndexWriter.deleteRecursively(directory);
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        List<Map<String, Object>> products;
+        try (InputStream in = new ClassPathResource("elastic/product/task_8_data.json").getInputStream()) {
+            products = objectMapper.readValue(in, new TypeReference<List<Map<String, Object>>>() {});
+        }
+        try (ProductLuceneIndexWriter writer = new ProductLuceneIndexWriter(directory, "test_products_20000101000000")) {
+            for (Map<String, Object> product : products) {
+                writer.add(product, objectMapper.writeValueAsBytes(product));
+            }
+            writer.commit();
+        }
+    }
+
+    @Test
+    public void testFacetsJeansMatchElasticsearch() {
+        client.productRequest()
+                .body("{\"textQuery\": \"jeans\"}")
+                .post()
+                .then()
+                .statusCode(200)
+                .body("totalHits", is(8))
+                .body("facets.brand.value", contains("Calvin Klein", "Levi's"))
+                .body("facets.brand.count", contains(4, 4))
+                .body("facets.price.value", contains("Cheap", "Average", "Expensive"))
+                .body("facets.price.count", contains(2, 6, 0))
+                .body("facets.color.value", contains("Blue", "Black", "Red", "White"))
+                .body("facets.color.count", contains(8, 7, 1, 1))
+                .body("facets.size.value", contains("L", "M", "S", "XL", "XXL", "XS"))
+                .body("facets.size.count", contains(8, 8, 6, 5, 3, 2));
+    }
+
+    @Test
+    public void testFacetFiltersKeepMultiSelectCountsMatchElasticsearch() {
+        client.productRequest()
+                .body("{\"textQuery\": \"jeans\", \"filters\": {\"brand\": [\"Levi's\"], \"price\": [\"Average\"]}}")
+                .post()
+                .then()
+                .statusCode(200)
+                .body("totalHits", is(4))
+                .body("products.brand", everyItem(is("Levi's")))
+                .body("facets.brand.value", contains("Levi's", "Calvin Klein"))
+                .body("facets.brand.count", contains(4, 2))
+                .body("facets.price[1].value", is("Average"))
+                .body("facets.price[1].count", is(4));
+    }
+
+    @Test
+    public void testHappyPathMatchesElasticsearch() {
+        client.productRequest()
+                .body("{\"textQuery\": \"Calvin klein L blue ankle skinny jeans\"}")
+                .post()
+                .then()
+                .statusCode(200)
+                .body("totalHits", is(1))
+                .body("products.id", contains("2"))
+                .body("products[0].skus", hasSize(9));
+    }
+
+    @Test
+    public void testFacetExpansionPagesValuesInKeyOrderMatchElasticsearch() {
+        client.productRequest()
+                .body("{\"textQuery\": \"jeans\", \"size\": 4}")
+                .post("/facets/size")
+                .then()
+                .statusCode(200)
+                .body("values.value", contains("L", "M", "S", "XL"))
+                .body("values.count", contains(8, 8, 6, 5))
+                .body("after", is("xl"));
+
+        client.productRequest()
+                .body("{\"textQuery\": \"jeans\", \"size\": 4, \"after\": \"xl\"}")
+                .post("/facets/size")
+                .then()
+                .statusCode(200)
+                .body("values.value", contains("XS", "XXL"))
+                .body("after", nullValue());
+    }
+
+    @Test
+    public void testExportWritesEveryMatchAndStatusLine() {
+        ExercisesIntegrationTest.assertExportsJeans(client.exportProducts("{\"textQuery\": \"jeans\"}"));
+    }
+
+}
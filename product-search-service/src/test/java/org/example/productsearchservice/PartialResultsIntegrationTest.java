@@ -0,0 +1,54 @@
+package org.example.productsearchservice;
+
+import org.example.productsearchservice.service.ProductServiceImpl;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+
+import static org.hamcrest.Matchers.*;
+
+/**
+ * A per shard cap of one doc cuts every search with more matches short, the way an exhausted latency budget does.
+ */
+@TestPropertySource(properties = "product.search.budget.terminateAfter=1")
+public class PartialResultsIntegrationTest extends BaseTest {
+
+    private final APIClient client = new APIClient();
+
+    @Autowired
+    ProductServiceImpl productService;
+
+    @Before
+    public void init() throws InterruptedException {
+        productService.recreateIndex();
+        Thread.sleep(1100);
+    }
+
+    @Test
+    public void testPartialResponseIsNeitherCachedNorTagged() {
+        int hitCount = client.baseRequest()
+                .get("/v1/products/cache/stats")
+                .then()
+                .statusCode(200)
+                .extract().path("hitCount");
+
+        for (int i = 0; i < 2; i++) {
+            client.productRequest()
+                    .body("{\"textQuery\": \"jeans\"}")
+                    .post()
+                    .then()
+                    .statusCode(200)
+                    .body("partial", is(true))
+                    .header("ETag", nullValue());
+        }
+
+        client.baseRequest()
+                .get("/v1/products/cache/stats")
+                .then()
+                .statusCode(200)
+                .body("size", is(0))
+                .body("hitCount", is(hitCount));
+    }
+
+}
@@ -0,0 +1,71 @@
+package org.example.productsearchservice;
+
+import io.restassured.path.json.JsonPath;
+import org.example.productsearchservice.service.ProductServiceImpl;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * The phrase boost in a rescore window of two hits, held to the ranking of the phrase boost scored for every match.
+ */
+@TestPropertySource(properties = {
+        "product.search.rescore.enabled=true",
+        "product.search.rescore.windowSize=2"
+})
+public class RescoreIntegrationTest extends BaseTest {
+
+    private final APIClient client = new APIClient();
+
+    @Autowired
+    ProductServiceImpl productService;
+
+    @Before
+    public void init() throws InterruptedException {
+        productService.recreateIndex();
+        Thread.sleep(1100);
+    }
+
+    @Test
+    public void testRescoredTopHitMatchesFullScoring() {
+        JsonPath response = client.productRequest()
+                .body("{\"textQuery\": \"calvin klein jeans\", \"profile\": true}")
+                .post()
+                .then()
+                .statusCode(200)
+                .body("totalHits", is(4))
+                .body("products[0].brand", is("Calvin Klein"))
+                .body("products.brand", everyItem(is("Calvin Klein")))
+                .extract().jsonPath();
+
+        assertThat(response.getDouble("profile.rescoreComparison.ndcg"), closeTo(1.0, 1e-6));
+    }
+
+    @Test
+    public void testPageBeyondTheWindowIsRescoredAsWell() {
+        List<String> ids = new ArrayList<>();
+        for (int page = 0; page < 2; page++) {
+            JsonPath response = client.productRequest()
+                    .body("{\"textQuery\": \"calvin klein jeans\", \"profile\": true, \"page\": " + page + ", \"size\": 2}")
+                    .post()
+                    .then()
+                    .statusCode(200)
+                    .body("products", hasSize(2))
+                    .extract().jsonPath();
+
+            assertThat(response.getDouble("profile.rescoreComparison.ndcg"), closeTo(1.0, 1e-6));
+            ids.addAll(response.getList("products.id", String.class));
+        }
+
+        // The window grows to reach the page, so no product moves across the page boundary
+        assertThat(ids.stream().distinct().count(), is(4L));
+    }
+
+}
@@ -0,0 +1,31 @@
+package org.example.productsearchservice;
+
+import org.example.productsearchservice.service.ProductServiceImpl;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * Exports over several scroll slices, merged into one stream by the request thread.
+ */
+@TestPropertySource(properties = "product.search.export.slices=3")
+public class SlicedExportIntegrationTest extends BaseTest {
+
+    private final APIClient client = new APIClient();
+
+    @Autowired
+    ProductServiceImpl productService;
+
+    @Before
+    public void init() throws InterruptedException {
+        productService.recreateIndex();
+        Thread.sleep(1100);
+    }
+
+    @Test
+    public void testSlicedExportWritesEveryMatchOnce() {
+        ExercisesIntegrationTest.assertExportsJeans(client.exportProducts("{\"textQuery\": \"jeans\"}"));
+    }
+
+}
@@ -0,0 +1,107 @@
+package org.example.productsearchservice.repository;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.example.productindexer.service.ProductDocStoreWriter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.roaringbitmap.RoaringBitmap;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Facet counts over a snapshot of the fixture of {@link org.example.productsearchservice.ExercisesIntegrationTest},
+ * held to the counts ES returns there. Every product of the fixture matches "jeans".
+ */
+public class BitmapFacetEngineTest {
+
+    private static final String INDEX = "products_20000101000000";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BitmapFacetEngine.FacetIndex facetIndex;
+    private RoaringBitmap jeans;
+
+    @Before
+    public void init() throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        List<Map<String, Object>> products;
+        try (InputStream in = new ClassPathResource("elastic/product/task_8_data.json").getInputStream()) {
+            products = objectMapper.readValue(in, new TypeReference<List<Map<String, Object>>>() {});
+        }
+        try (ProductDocStoreWriter writer = new ProductDocStoreWriter(folder.getRoot().toPath(), INDEX)) {
+            for (Map<String, Object> product : products) {
+                writer.add(product.get("id").toString(), objectMapper.writeValueAsBytes(product));
+            }
+            writer.commit();
+        }
+
+        ProductIndexVersionTracker tracker = new ProductIndexVersionTracker(null);
+        ProductDocStore docStore = new ProductDocStore(tracker);
+        ReflectionTestUtils.setField(docStore, "enabled", true);
+        ReflectionTestUtils.setField(docStore, "directory", folder.getRoot().toString());
+        docStore.init();
+        BitmapFacetEngine engine = new BitmapFacetEngine(docStore);
+        ReflectionTestUtils.setField(engine, "enabled", true);
+        engine.init();
+        tracker.update(INDEX);
+
+        facetIndex = engine.getCurrent();
+        jeans = facetIndex.toBitmap(Arrays.asList("1", "2", "3", "4", "5", "6", "7", "8"));
+    }
+
+    @Test
+    public void testCountsMatchElasticsearch() {
+        Map<String, Map<String, Long>> counts = facetIndex.count(jeans, Collections.emptyMap());
+
+        assertThat(counts.keySet(), contains("price", "brand", "color", "size"));
+        assertCounts(counts.get("brand"), "Calvin Klein", 4, "Levi's", 4);
+        assertCounts(counts.get("price"), "Cheap", 2, "Average", 6, "Expensive", 0);
+        assertCounts(counts.get("color"), "blue", 8, "black", 7, "red", 1, "white", 1);
+        assertCounts(counts.get("size"), "l", 8, "m", 8, "s", 6, "xl", 5, "xxl", 3, "xs", 2);
+    }
+
+    @Test
+    public void testEachFacetIgnoresItsOwnSelection() {
+        Map<String, Collection<String>> selections = new HashMap<>();
+        selections.put("brand", Collections.singletonList("Levi's"));
+        selections.put("price", Collections.singletonList("Average"));
+
+        Map<String, Map<String, Long>> counts = facetIndex.count(jeans, selections);
+
+        assertCounts(counts.get("brand"), "Levi's", 4, "Calvin Klein", 2);
+        assertThat(counts.get("price").get("Average"), is(4L));
+        // Colors and sizes are narrowed by both selections, the four Levi's products
+        assertCounts(counts.get("color"), "black", 4, "blue", 4);
+    }
+
+    @Test
+    public void testProductsOutsideTheSnapshotAreNotCounted() {
+        assertThat(facetIndex.toBitmap(Arrays.asList("1", "9")), nullValue());
+        assertThat(facetIndex.getIndexName(), is(INDEX));
+    }
+
+    private static void assertCounts(Map<String, Long> counts, Object... expected) {
+        Map<String, Long> expectedCounts = new LinkedHashMap<>();
+        for (int i = 0; i < expected.length; i += 2) {
+            expectedCounts.put((String) expected[i], ((Integer) expected[i + 1]).longValue());
+        }
+        assertThat(counts.entrySet(), contains(expectedCounts.entrySet().toArray()));
+    }
+}
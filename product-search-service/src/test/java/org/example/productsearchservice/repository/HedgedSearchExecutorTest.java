@@ -0,0 +1,210 @@
+package org.example.productsearchservice.repository;
+
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.rest.RestStatus;
+import org.example.productsearchservice.model.ProductHedgingStats;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+/**
+ * The client answers on the calling thread unless an attempt is told to stay silent, so only the hedge delay
+ * is waited for.
+ */
+public class HedgedSearchExecutorTest {
+
+    private final RestHighLevelClient esClient = mock(RestHighLevelClient.class);
+    private final SearchResponse primaryResponse = mock(SearchResponse.class);
+    private final SearchResponse hedgeResponse = mock(SearchResponse.class);
+    // Listeners of the attempts that did not answer, primary first
+    private final List<ActionListener<SearchResponse>> silent = Collections.synchronizedList(new ArrayList<>());
+    private HedgedSearchExecutor executor;
+
+    @Before
+    public void init() {
+        executor = new HedgedSearchExecutor(esClient);
+        ReflectionTestUtils.setField(executor, "enabled", true);
+        ReflectionTestUtils.setField(executor, "replicated", true);
+        ReflectionTestUtils.setField(executor, "hedgeDelayMillis", 20L);
+        ReflectionTestUtils.setField(executor, "budget", 2.0);
+        ReflectionTestUtils.setField(executor, "windowSize", 1000);
+        ReflectionTestUtils.setField(executor, "minSamples", 100);
+    }
+
+    @Test
+    public void testHedgeAnswersForSlowPrimary() throws IOException {
+        answer(null, hedgeResponse);
+
+        assertThat(executor.search(new SearchRequest("products")), sameInstance(hedgeResponse));
+
+        ProductHedgingStats stats = executor.getStats();
+        assertThat(stats.getSearchCount(), is(1L));
+        assertThat(stats.getHedgeCount(), is(1L));
+        assertThat(stats.getHedgeWinCount(), is(1L));
+        // The late primary response is dropped
+        silent.get(0).onResponse(primaryResponse);
+        assertThat(executor.getStats().getHedgeWinCount(), is(1L));
+    }
+
+    @Test
+    public void testFastPrimaryIsNotHedged() throws IOException {
+        answer(primaryResponse, hedgeResponse);
+
+        assertThat(executor.search(new SearchRequest("products")), sameInstance(primaryResponse));
+        assertThat(executor.getStats().getHedgeCount(), is(0L));
+    }
+
+    @Test
+    public void testHedgeAnswersWhenPrimaryFailsLate() throws IOException {
+        doAnswer(invocation -> {
+            SearchRequest request = invocation.getArgument(0);
+            ActionListener<SearchResponse> listener = invocation.getArgument(2);
+            if (request.preference() == null) {
+                silent.add(listener);
+            } else {
+                // The primary fails once the hedge is on its way, the hedge still answers
+                silent.get(0).onFailure(new ElasticsearchStatusException("node left", RestStatus.SERVICE_UNAVAILABLE));
+                listener.onResponse(hedgeResponse);
+            }
+            return null;
+        }).when(esClient).searchAsync(any(SearchRequest.class), any(RequestOptions.class), any());
+
+        assertThat(executor.search(new SearchRequest("products")), sameInstance(hedgeResponse));
+    }
+
+    @Test
+    public void testFailedPrimaryIsNotHedged() throws IOException {
+        ElasticsearchStatusException failure = new ElasticsearchStatusException("bad query", RestStatus.BAD_REQUEST);
+        doAnswer(invocation -> {
+            ActionListener<SearchResponse> listener = invocation.getArgument(2);
+            listener.onFailure(failure);
+            return null;
+        }).when(esClient).searchAsync(any(SearchRequest.class), any(RequestOptions.class), any());
+
+        try {
+            executor.search(new SearchRequest("products"));
+            fail("The failure of the primary is expected");
+        } catch (ElasticsearchStatusException ex) {
+            assertThat(ex, sameInstance(failure));
+        }
+        assertThat(executor.getStats().getHedgeCount(), is(0L));
+    }
+
+    @Test
+    public void testPrimaryFailingAtTheHedgeDelayIsNotHedged() throws Exception {
+        answer(null, hedgeResponse);
+        ElasticsearchStatusException failure = new ElasticsearchStatusException("node left", RestStatus.SERVICE_UNAVAILABLE);
+        CompletableFuture<Object> outcome = new CompletableFuture<>();
+        Thread search = new Thread(() -> {
+            try {
+                outcome.complete(executor.search(new SearchRequest("products")));
+            } catch (Exception ex) {
+                outcome.complete(ex);
+            }
+        });
+        search.start();
+
+        // The search times out and waits for the budget while the primary fails
+        awaitState(search, Thread.State.TIMED_WAITING);
+        synchronized (executor) {
+            awaitState(search, Thread.State.BLOCKED);
+            silent.get(0).onFailure(failure);
+        }
+
+        assertThat(outcome.get(5, TimeUnit.SECONDS), sameInstance(failure));
+        assertThat(executor.getStats().getHedgeCount(), is(0L));
+        // budgetPercent is 0, so the budget is back where it started
+        assertThat(executor.getStats().getBudget(), is(2.0));
+    }
+
+    @Test
+    public void testSearchFailsOnceEveryAttemptHasFailed() throws IOException {
+        doAnswer(invocation -> {
+            SearchRequest request = invocation.getArgument(0);
+            ActionListener<SearchResponse> listener = invocation.getArgument(2);
+            if (request.preference() == null) {
+                silent.add(listener);
+            } else {
+                listener.onFailure(new ElasticsearchStatusException("hedge failed", RestStatus.SERVICE_UNAVAILABLE));
+                silent.get(0).onFailure(new ElasticsearchStatusException("primary failed", RestStatus.SERVICE_UNAVAILABLE));
+            }
+            return null;
+        }).when(esClient).searchAsync(any(SearchRequest.class), any(RequestOptions.class), any());
+
+        try {
+            executor.search(new SearchRequest("products"));
+            fail("The failure of the last attempt is expected");
+        } catch (ElasticsearchStatusException ex) {
+            assertThat(ex.getMessage(), is("primary failed"));
+        }
+    }
+
+    @Test
+    public void testNoHedgeWithoutBudget() throws IOException {
+        ReflectionTestUtils.setField(executor, "budget", 0.0);
+        doAnswer(invocation -> {
+            ActionListener<SearchResponse> listener = invocation.getArgument(2);
+            // Answers after the hedge delay, from another thread
+            new Thread(() -> {
+                sleep(100);
+                listener.onResponse(primaryResponse);
+            }).start();
+            return null;
+        }).when(esClient).searchAsync(any(SearchRequest.class), any(RequestOptions.class), any());
+
+        assertThat(executor.search(new SearchRequest("products")), sameInstance(primaryResponse));
+        assertThat(executor.getStats().getHedgeCount(), is(0L));
+    }
+
+    /**
+     * @param primary response of the first attempt, null to leave it unanswered
+     */
+    private void answer(SearchResponse primary, SearchResponse hedge) {
+        doAnswer(invocation -> {
+            SearchRequest request = invocation.getArgument(0);
+            ActionListener<SearchResponse> listener = invocation.getArgument(2);
+            SearchResponse response = request.preference() == null ? primary : hedge;
+            if (response == null) {
+                silent.add(listener);
+            } else {
+                listener.onResponse(response);
+            }
+            return null;
+        }).when(esClient).searchAsync(any(SearchRequest.class), any(RequestOptions.class), any());
+    }
+
+    private static void awaitState(Thread thread, Thread.State state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (thread.getState() != state) {
+            assertThat("Search thread state", System.currentTimeMillis(), lessThan(deadline));
+            Thread.sleep(1);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package org.example.productsearchservice.repository;
+
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.index.get.GetResult;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchShardTarget;
+import org.example.productindexer.service.ProductDocStoreWriter;
+import org.example.productsearchservice.model.Product;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class ProductDocStoreTest {
+
+    private static final String INDEX = "products_20000101000000";
+    private static final String NEXT_INDEX = "products_20000102000000";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ProductIndexVersionTracker tracker = new ProductIndexVersionTracker(null);
+    private ProductDocStore docStore;
+
+    @Before
+    public void init() {
+        docStore = new ProductDocStore(tracker);
+        ReflectionTestUtils.setField(docStore, "enabled", true);
+        ReflectionTestUtils.setField(docStore, "directory", folder.getRoot().toString());
+        docStore.init();
+    }
+
+    @Test
+    public void testWrittenStoreIsReadBackThroughTheMapping() throws IOException {
+        writeStore(INDEX, "1", "2", "été");
+
+        tracker.update(INDEX);
+        ProductDocStore.Snapshot snapshot = docStore.getCurrent();
+
+        assertThat(snapshot.getIndexName(), is(INDEX));
+        assertThat(snapshot.size(), is(3));
+        assertThat(new String(snapshot.get("2"), StandardCharsets.UTF_8), is(source("2")));
+        assertThat(new String(snapshot.get("été"), StandardCharsets.UTF_8), is(source("été")));
+        assertThat(snapshot.get("3"), nullValue());
+
+        Map<String, String> all = new HashMap<>();
+        snapshot.forEach((id, source) -> all.put(id, new String(source, StandardCharsets.UTF_8)));
+        assertThat(all.keySet(), containsInAnyOrder("1", "2", "été"));
+        assertThat(all.get("1"), is(source("1")));
+    }
+
+    @Test
+    public void testUncommittedOrForeignFilesAreNotOpened() throws IOException {
+        try (ProductDocStoreWriter writer = new ProductDocStoreWriter(folder.getRoot().toPath(), INDEX)) {
+            writer.add("1", source("1").getBytes(StandardCharsets.UTF_8));
+        }
+        tracker.update(INDEX);
+        assertThat(docStore.getCurrent(), nullValue());
+
+        Files.write(ProductDocStoreWriter.storeFile(folder.getRoot().toPath(), NEXT_INDEX), new byte[32]);
+        tracker.update(NEXT_INDEX);
+        assertThat(docStore.getCurrent(), nullValue());
+    }
+
+    @Test
+    public void testHydrationFetchesMissesWithMultiGetInHitOrder() throws IOException {
+        writeStore(INDEX, "1", "3");
+        tracker.update(INDEX);
+
+        RestHighLevelClient esClient = mock(RestHighLevelClient.class);
+        // "2" is not in the store, "4" is a hit of the index the alias has just moved to
+        when(esClient.mget(any(MultiGetRequest.class), any())).thenReturn(new MultiGetResponse(new MultiGetItemResponse[]{
+                found(INDEX, "2"),
+                found(NEXT_INDEX, "4")
+        }));
+        ProductRepositoryImpl repository = new ProductRepositoryImpl(esClient, tracker, null, null, docStore, null);
+
+        SearchHit[] hits = {hit(INDEX, "1"), hit(INDEX, "2"), hit(INDEX, "3"), hit(NEXT_INDEX, "4")};
+        Product[] products = repository.hydrateProducts(hits, ProductHitDecoder.ALL_SKUS, docStore.getCurrent());
+
+        assertThat(products, arrayWithSize(4));
+        assertThat(products[0].getName(), is("Product 1"));
+        assertThat(products[1].getName(), is("Product 2"));
+        assertThat(products[2].getName(), is("Product 3"));
+        assertThat(products[3].getName(), is("Product 4"));
+
+        ArgumentCaptor<MultiGetRequest> request = ArgumentCaptor.forClass(MultiGetRequest.class);
+        verify(esClient).mget(request.capture(), any());
+        assertThat(request.getValue().getItems().stream().map(MultiGetRequest.Item::id).collect(Collectors.toList()),
+                contains("2", "4"));
+    }
+
+    @Test
+    public void testHydrationLeavesAHoleForAProductGoneFromES() throws IOException {
+        writeStore(INDEX, "1");
+        tracker.update(INDEX);
+
+        RestHighLevelClient esClient = mock(RestHighLevelClient.class);
+        when(esClient.mget(any(MultiGetRequest.class), any())).thenReturn(new MultiGetResponse(new MultiGetItemResponse[]{
+                new MultiGetItemResponse(new GetResponse(new GetResult(INDEX, "_doc", "2", -2, 0, -1, false, null, null)), null)
+        }));
+        ProductRepositoryImpl repository = new ProductRepositoryImpl(esClient, tracker, null, null, docStore, null);
+
+        Product[] products = repository.hydrateProducts(new SearchHit[]{hit(INDEX, "1"), hit(INDEX, "2")},
+                ProductHitDecoder.ALL_SKUS, docStore.getCurrent());
+
+        assertThat(products[0].getId(), is("1"));
+        assertThat(products[1], nullValue());
+    }
+
+    @Test
+    public void testStoreIsDroppedWhenTheAliasMovesToAnIndexWithoutOne() throws IOException {
+        writeStore(INDEX, "1");
+        tracker.update(INDEX);
+        assertThat(docStore.getCurrent(), notNullValue());
+
+        tracker.update(NEXT_INDEX);
+        assertThat(docStore.getCurrent(), nullValue());
+    }
+
+    private void writeStore(String indexName, String... ids) throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (ProductDocStoreWriter writer = new ProductDocStoreWriter(directory, indexName)) {
+            for (String id : ids) {
+                writer.add(id, source(id).getBytes(StandardCharsets.UTF_8));
+            }
+            writer.commit();
+        }
+    }
+
+    private static String source(String id) {
+        return "{\"id\": \"" + id + "\", \"brand\": \"Levi's\", \"name\": \"Product " + id + "\", \"price\": 10.0, "
+                + "\"skus\": [{\"color\": \"Blue\", \"size\": \"M\"}]}";
+    }
+
+    private static SearchHit hit(String index, String id) {
+        SearchHit hit = new SearchHit(0, id, new Text("_doc"), Collections.emptyMap());
+        hit.shard(new SearchShardTarget("node", new ShardId(index, "_na_", 0), null, null));
+        return hit;
+    }
+
+    private static MultiGetItemResponse found(String index, String id) {
+        return new MultiGetItemResponse(new GetResponse(new GetResult(index, "_doc", id, 0, 1, 1, true,
+                new BytesArray(source(id)), Collections.emptyMap())), null);
+    }
+}
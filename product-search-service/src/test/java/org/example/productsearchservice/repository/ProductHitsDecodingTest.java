@@ -0,0 +1,88 @@
+package org.example.productsearchservice.repository;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.search.SearchHit;
+import org.example.productsearchservice.model.Product;
+import org.example.productsearchservice.model.ProductServiceResponse;
+import org.example.productsearchservice.model.Sku;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.function.BiPredicate;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ProductHitsDecodingTest {
+
+    private static final String SOURCE = "{\"id\": \"2\", \"brand\": \"Calvin Klein\", \"name\": \"Women ankle skinny jeans\", "
+            + "\"price\": 129.99, \"skus\": [{\"color\": \"Black\", \"size\": \"L\"}, {\"color\": \"Blue\", \"size\": \"M\"}, "
+            + "{\"color\": \"Blue\", \"size\": \"L\"}, {\"color\": \"White\", \"size\": \"L\"}]}";
+
+    private final ProductAttributeExtractor extractor = new ProductAttributeExtractor(
+            Arrays.asList("Black", "Blue", "White"), Arrays.asList("M", "L"));
+
+    @Test
+    public void testUndecodableHitMakesTheResponsePartial() {
+        SearchHit[] hits = {hit("1", "{\"id\": \"1\", \"skus\": "), hit("2", SOURCE)};
+
+        ProductServiceResponse response = new ProductServiceResponse();
+        ProductRepositoryImpl.setProducts(response, ProductRepositoryImpl.decodeProducts(hits, ProductHitDecoder.ALL_SKUS));
+
+        assertThat(response.getProducts(), hasSize(1));
+        assertThat(response.getProducts().get(0).getId(), is("2"));
+        assertThat(response.getPartial(), is(true));
+    }
+
+    @Test
+    public void testDecodedHitsLeaveTheResponseComplete() {
+        ProductServiceResponse response = new ProductServiceResponse();
+        ProductRepositoryImpl.setProducts(response, ProductRepositoryImpl.decodeProducts(
+                new SearchHit[]{hit("2", SOURCE)}, ProductHitDecoder.ALL_SKUS));
+
+        assertThat(response.getProducts(), hasSize(1));
+        assertThat(response.getProducts().get(0).getSkus(), hasSize(4));
+        assertThat(response.getPartial(), nullValue());
+    }
+
+    @Test
+    public void testOnlyMatchingSkusKeepsSkusOfTheQueryColorAndSize() {
+        Product product = decode(repository(true), "calvin klein blue l jeans");
+
+        assertThat(product.getSkus(), hasSize(1));
+        assertThat(product.getSkus().get(0).getColor(), is("Blue"));
+        assertThat(product.getSkus().get(0).getSize(), is("L"));
+    }
+
+    @Test
+    public void testOnlyMatchingSkusKeepsEverySizeWhenOnlyAColorIsAsked() {
+        Product product = decode(repository(true), "blue jeans");
+
+        assertThat(product.getSkus(), everyItem(hasProperty("color", is("Blue"))));
+        assertThat(product.getSkus().stream().map(Sku::getSize).toArray(), arrayContaining("M", "L"));
+    }
+
+    @Test
+    public void testSkusAreKeptWithoutAttributesInTheQueryOrWhenDisabled() {
+        assertThat(decode(repository(true), "calvin klein jeans").getSkus(), hasSize(4));
+        assertThat(decode(repository(false), "blue l jeans").getSkus(), hasSize(4));
+    }
+
+    private Product decode(ProductRepositoryImpl repository, String textQuery) {
+        BiPredicate<String, String> skuFilter = repository.createSkuFilter(extractor.extract(textQuery));
+        return ProductRepositoryImpl.decodeProducts(new SearchHit[]{hit("2", SOURCE)}, skuFilter)[0];
+    }
+
+    private static ProductRepositoryImpl repository(boolean onlyMatchingSkus) {
+        ProductRepositoryImpl repository = new ProductRepositoryImpl(null, null, null, null, null, null);
+        ReflectionTestUtils.setField(repository, "onlyMatchingSkus", onlyMatchingSkus);
+        return repository;
+    }
+
+    private static SearchHit hit(String id, String source) {
+        return new SearchHit(0, id, new Text("_doc"), Collections.emptyMap()).sourceRef(new BytesArray(source));
+    }
+}
@@ -0,0 +1,97 @@
+package org.example.productsearchservice.repository;
+
+import org.elasticsearch.client.GetAliasesResponse;
+import org.elasticsearch.client.IndicesClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.GetMappingsRequest;
+import org.elasticsearch.client.indices.GetMappingsResponse;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ProductIndexVersionTrackerTest {
+
+    private static final String INDEX = "products_20000101000000";
+
+    private final RestHighLevelClient esClient = mock(RestHighLevelClient.class);
+    private final IndicesClient indicesClient = mock(IndicesClient.class);
+    private final List<String> notified = new ArrayList<>();
+    private ProductIndexVersionTracker tracker;
+
+    @Before
+    public void init() throws IOException {
+        when(esClient.indices()).thenReturn(indicesClient);
+        GetAliasesResponse aliases = mock(GetAliasesResponse.class);
+        when(aliases.getAliases()).thenReturn(Collections.singletonMap(INDEX, Collections.emptySet()));
+        when(indicesClient.getAlias(any(), any())).thenReturn(aliases);
+
+        tracker = new ProductIndexVersionTracker(esClient);
+        ReflectionTestUtils.setField(tracker, "aliasName", "products");
+        tracker.addListener(notified::add);
+    }
+
+    @Test
+    public void testDeltaVersionMakesANewVersionOfTheSameIndex() throws IOException {
+        stubDeltaVersion(null);
+        tracker.refresh();
+        assertThat(tracker.getCurrentVersion(), is(INDEX));
+
+        // What the indexer stamps once a delta is applied
+        stubDeltaVersion("1577836800000");
+        tracker.refresh();
+        assertThat(tracker.getCurrentIndex(), is(INDEX));
+        assertThat(tracker.getCurrentVersion(), is(INDEX + "@1577836800000"));
+
+        tracker.refresh();
+        assertThat(notified, contains(INDEX, INDEX));
+    }
+
+    @Test
+    public void testFailedListenerIsNotifiedAgainOnTheNextPoll() throws IOException {
+        stubDeltaVersion(null);
+        List<String> loaded = new ArrayList<>();
+        AtomicInteger failures = new AtomicInteger(1);
+        tracker.addListener(index -> {
+            if (failures.getAndDecrement() > 0) {
+                throw new UncheckedIOException(new IOException("dictionary load has timed out"));
+            }
+            loaded.add(index);
+        });
+
+        tracker.refresh();
+        assertThat(loaded, empty());
+
+        tracker.refresh();
+        assertThat(loaded, contains(INDEX));
+        assertThat(notified, contains(INDEX, INDEX));
+
+        tracker.refresh();
+        assertThat(loaded, contains(INDEX));
+    }
+
+    private void stubDeltaVersion(String deltaVersion) throws IOException {
+        Map<String, Object> mapping = new HashMap<>();
+        mapping.put("properties", Collections.emptyMap());
+        if (deltaVersion != null) {
+            mapping.put("_meta", Collections.singletonMap("deltaVersion", deltaVersion));
+        }
+        when(indicesClient.getMapping(any(GetMappingsRequest.class), any())).thenReturn(new GetMappingsResponse(
+                Collections.singletonMap(INDEX, new MappingMetaData("_doc", mapping))));
+    }
+}
@@ -0,0 +1,87 @@
+package org.example.productsearchservice.repository;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import org.apache.lucene.search.TotalHits;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.example.productsearchservice.model.ProductRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SlowQueryLogTest {
+
+    private final Logger logger = (Logger) LoggerFactory.getLogger("slowlog.product");
+    private final ListAppender<ILoggingEvent> appender = new ListAppender<>();
+    private final SlowQueryLog slowQueryLog = new SlowQueryLog();
+    private final ProductRequest request = new ProductRequest();
+    private final SearchSourceBuilder source = new SearchSourceBuilder()
+            .query(QueryBuilders.matchQuery("name", "jeans"))
+            .size(10);
+
+    @Before
+    public void init() {
+        ReflectionTestUtils.setField(slowQueryLog, "warnThresholdMs", 1000L);
+        ReflectionTestUtils.setField(slowQueryLog, "infoThresholdMs", 300L);
+        request.setTextQuery("jeans");
+        appender.start();
+        logger.addAppender(appender);
+    }
+
+    @After
+    public void detach() {
+        logger.detachAppender(appender);
+    }
+
+    @Test
+    public void testSlowSearchIsLoggedOnOneLine() {
+        SearchResponse response = mock(SearchResponse.class);
+        when(response.getTook()).thenReturn(TimeValue.timeValueMillis(1200));
+        when(response.getHits()).thenReturn(new SearchHits(new SearchHit[0], new TotalHits(8, TotalHits.Relation.EQUAL_TO), 1f));
+
+        slowQueryLog.log(request, source, response, TimeUnit.MILLISECONDS.toNanos(1500));
+        slowQueryLog.log(request, source, response, TimeUnit.MILLISECONDS.toNanos(400));
+        slowQueryLog.log(request, source, response, TimeUnit.MILLISECONDS.toNanos(50));
+
+        assertThat(appender.list, hasSize(2));
+        assertThat(appender.list.get(0).getLevel(), is(Level.WARN));
+        assertThat(appender.list.get(1).getLevel(), is(Level.INFO));
+        String entry = appender.list.get(0).getFormattedMessage();
+        assertThat(entry, startsWith("slow wall=1500ms took=1200ms hits=8 textQuery=\"jeans\""));
+        assertThat(entry, endsWith("source={\"size\":10,\"query\":{\"match\":{\"name\":{\"query\":\"jeans\","
+                + "\"operator\":\"OR\",\"prefix_length\":0,\"max_expansions\":50,\"fuzzy_transpositions\":true,"
+                + "\"lenient\":false,\"zero_terms_query\":\"NONE\",\"auto_generate_synonyms_phrase_query\":true,"
+                + "\"boost\":1.0}}}}"));
+        assertThat(entry, not(containsString("\n")));
+    }
+
+    @Test
+    public void testFailedSearchIsLoggedWithItsException() {
+        slowQueryLog.logFailure(request, source, new SocketTimeoutException("30,000 milliseconds timeout"),
+                TimeUnit.MILLISECONDS.toNanos(30000));
+
+        assertThat(appender.list, hasSize(1));
+        assertThat(appender.list.get(0).getLevel(), is(Level.WARN));
+        String entry = appender.list.get(0).getFormattedMessage();
+        assertThat(entry, startsWith("failed wall=30000ms took=-1ms hits=-1 textQuery=\"jeans\""));
+        assertThat(entry, endsWith(" error=java.net.SocketTimeoutException: 30,000 milliseconds timeout"));
+        assertThat(entry, not(containsString("\n")));
+    }
+}
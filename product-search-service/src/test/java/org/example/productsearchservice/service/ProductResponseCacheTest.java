@@ -0,0 +1,171 @@
+package org.example.productsearchservice.service;
+
+import org.example.productsearchservice.model.Product;
+import org.example.productsearchservice.model.ProductAggregationDto;
+import org.example.productsearchservice.model.ProductCacheStats;
+import org.example.productsearchservice.model.ProductRequest;
+import org.example.productsearchservice.model.ProductServiceResponse;
+import org.example.productsearchservice.model.Sku;
+import org.example.productsearchservice.repository.ProductIndexVersionTracker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ProductResponseCacheTest {
+
+    private final ProductIndexVersionTracker tracker = new ProductIndexVersionTracker(null);
+    private ProductResponseCache cache;
+
+    @Before
+    public void init() {
+        tracker.update("products_20000101000000");
+        cache = new ProductResponseCache(tracker);
+        ReflectionTestUtils.setField(cache, "enabled", true);
+        ReflectionTestUtils.setField(cache, "maxSize", 100L);
+        ReflectionTestUtils.setField(cache, "expireAfterWriteSeconds", 300L);
+        ReflectionTestUtils.setField(cache, "prefetchEnabled", true);
+        ReflectionTestUtils.setField(cache, "prefetchThreads", 1);
+        ReflectionTestUtils.setField(cache, "prefetchQueueSize", 10);
+        cache.init();
+    }
+
+    @After
+    public void shutdown() {
+        cache.shutdown();
+    }
+
+    @Test
+    public void testHitRateCountsEveryLookup() {
+        ProductCacheKey key = cache.createKey(request("Jeans ", 0));
+        assertThat(cache.get(key), nullValue());
+        cache.put(key, response(8, "1"));
+
+        // The same query typed differently is the same key
+        assertThat(cache.get(cache.createKey(request("jeans", 0))), notNullValue());
+        assertThat(cache.get(key), notNullValue());
+
+        ProductCacheStats stats = cache.getStats();
+        assertThat(stats.getSize(), is(1L));
+        assertThat(stats.getHitCount(), is(2L));
+        assertThat(stats.getMissCount(), is(1L));
+        assertThat(stats.getHitRate(), closeTo(2.0 / 3, 1e-9));
+    }
+
+    @Test
+    public void testPartialResponseIsNotCached() {
+        ProductCacheKey key = cache.createKey(request("jeans", 0));
+        ProductServiceResponse response = response(8, "1");
+        response.setPartial(true);
+        cache.put(key, response);
+
+        assertThat(cache.get(key), nullValue());
+    }
+
+    @Test
+    public void testNextPageIsPrefetchedOnceAndCountedOnItsFirstHit() throws InterruptedException {
+        ProductCacheKey key = cache.createKey(request("jeans", 0));
+        AtomicInteger loads = new AtomicInteger();
+        cache.prefetchNextPage(key, 8, () -> {
+            loads.incrementAndGet();
+            return response(8, "3");
+        });
+        awaitPrefetches(1);
+        // Cached already, so nothing is loaded again
+        cache.prefetchNextPage(key, 8, () -> {
+            loads.incrementAndGet();
+            return response(8, "3");
+        });
+
+        ProductCacheKey nextKey = cache.createKey(request("jeans", 1));
+        assertThat(cache.get(nextKey).getProducts().get(0).getId(), is("3"));
+        assertThat(cache.get(nextKey), notNullValue());
+
+        ProductCacheStats stats = cache.getStats();
+        assertThat(loads.get(), is(1));
+        assertThat(stats.getPrefetchCount(), is(1L));
+        assertThat(stats.getPrefetchHitCount(), is(1L));
+        assertThat(stats.getPrefetchHitRate(), is(1.0));
+    }
+
+    @Test
+    public void testNoPrefetchBeyondTheLastHit() throws InterruptedException {
+        AtomicInteger loads = new AtomicInteger();
+        cache.prefetchNextPage(cache.createKey(request("jeans", 3)), 8, () -> {
+            loads.incrementAndGet();
+            return response(8, "9");
+        });
+        Thread.sleep(100);
+
+        assertThat(loads.get(), is(0));
+        assertThat(cache.getStats().getPrefetchCount(), is(0L));
+    }
+
+    @Test
+    public void testCallersCanNotChangeTheCachedResponse() {
+        ProductCacheKey key = cache.createKey(request("jeans", 0));
+        ProductServiceResponse response = response(8, "1");
+        cache.put(key, response);
+        response.getProducts().get(0).setName("changed by the caller that put it");
+
+        ProductServiceResponse served = cache.get(key);
+        served.setPartial(true);
+        served.getProducts().clear();
+        getBrandFacet(served).get(0).setCount(0);
+
+        ProductServiceResponse cached = cache.get(key);
+        assertThat(cached.getPartial(), nullValue());
+        assertThat(cached.getProducts(), hasSize(1));
+        assertThat(cached.getProducts().get(0).getName(), is("Product 1"));
+        assertThat(getBrandFacet(cached).get(0).getCount(), is(4L));
+    }
+
+    private void awaitPrefetches(long count) throws InterruptedException {
+        for (int i = 0; i < 100 && cache.getStats().getPrefetchCount() < count; i++) {
+            Thread.sleep(20);
+        }
+        assertThat(cache.getStats().getPrefetchCount(), is(count));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<ProductAggregationDto> getBrandFacet(ProductServiceResponse response) {
+        return (List<ProductAggregationDto>) response.getFacets().get("brand");
+    }
+
+    private static ProductRequest request(String textQuery, int page) {
+        ProductRequest request = new ProductRequest();
+        request.setTextQuery(textQuery);
+        request.setPage(page);
+        request.setSize(2);
+        return request;
+    }
+
+    private static ProductServiceResponse response(long totalHits, String id) {
+        List<Product> products = new ArrayList<>();
+        products.add(Product.builder()
+                .id(id)
+                .name("Product " + id)
+                .skus(new ArrayList<>(Collections.singletonList(Sku.builder().color("Blue").size("M").build())))
+                .build());
+        List<ProductAggregationDto> brands = new ArrayList<>();
+        brands.add(new ProductAggregationDto(4, "Levi's"));
+        Map<String, Object> facets = new HashMap<>();
+        facets.put("brand", brands);
+
+        ProductServiceResponse response = new ProductServiceResponse();
+        response.setTotalHits(totalHits);
+        response.setProducts(products);
+        response.setFacets(facets);
+        return response;
+    }
+}